@@ -0,0 +1,51 @@
+package com.retapps.smartbip.api.web.basis;
+
+import com.retapps.smartbip.basis.engines.StoresSnapshotEngine;
+import com.retapps.smartbip.basis.models.Store;
+import com.retapps.smartbip.commons.engines.BasisStoreImageDecorator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Decorates the store lists with the {@link BasisStoreImageDecorator}.
+ * <p>
+ * The stores served from the {@link StoresSnapshotEngine} snapshots are decorated when a snapshot is first used, and
+ * again after a bounded time, and handed out as decorated copies, so the lists built from them need no decoration.
+ * The other lists are decorated in one pass, a store repeated in a list once. The URLs are still built by the image
+ * decorator for every store it decorates: it resolves them internally and offers no resolved prefix to cache here.
+ */
+@Component
+public class BasisStoreBatchDecorator {
+
+    @Autowired
+    BasisStoreImageDecorator basisStoreImageDecorator;
+
+    @Autowired
+    StoresSnapshotEngine storesSnapshotEngine;
+
+    @PostConstruct
+    void init() {
+
+        storesSnapshotEngine.setDecorator(basisStoreImageDecorator::decorate);
+    }
+
+    public void decorateAll(String tid, Collection<Store> stores) {
+
+        if (stores == null || stores.isEmpty()) {
+            return;
+        }
+
+        Set<Store> decorated = Collections.newSetFromMap(new IdentityHashMap<>(stores.size()));
+        for (Store store : stores) {
+            if (store != null && decorated.add(store)) {
+                basisStoreImageDecorator.decorate(tid, store);
+            }
+        }
+    }
+}
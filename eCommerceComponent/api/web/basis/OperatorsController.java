@@ -3,10 +3,10 @@ package com.retapps.smartbip.api.web.basis;
 import com.retapps.smartbip.api.models.OperatorLogin;
 import com.retapps.smartbip.authentication.common.models.OperatorUser;
 import com.retapps.smartbip.authentication.common.security.PrincipalResolver;
+import com.retapps.smartbip.basis.engines.StoresCache;
 import com.retapps.smartbip.basis.models.Operator;
 import com.retapps.smartbip.basis.models.Store;
 import com.retapps.smartbip.basis.services.OperatorsAuthenticationService;
-import com.retapps.smartbip.basis.services.StoresService;
 import com.retapps.smartbip.common.audit.AuditLogger;
 import com.retapps.smartbip.common.models.responses.SmartBipResponse;
 import com.retapps.smartbip.common.services.TenantsService;
@@ -35,7 +35,7 @@ public class OperatorsController {
     PrincipalResolver principalResolver;
 
     @Autowired
-    StoresService storesService;
+    StoresCache storesCache;
 
     @Autowired
     OperatorsAuthenticationService authenticationService;
@@ -64,7 +64,7 @@ public class OperatorsController {
         Store store = null;
         try {
             if (isNotBlank(operatorUser.getStoreId())) {
-                store = storesService.read(operatorUser.getTid(), operatorUser.getStoreId());
+                store = storesCache.read(operatorUser.getTid(), operatorUser.getStoreId());
             }
         } catch (EntityNotFoundException e) {
             LOGGER.warn("Error fetching store {} for tenant {}: {}", operatorUser.getStoreId(), operatorUser.getTid(),
@@ -3,6 +3,8 @@ package com.retapps.smartbip.api.web.basis;
 import com.retapps.smartbip.api.web.basis.requests.StoreMssCartOpenEnableRequest;
 import com.retapps.smartbip.authentication.common.models.OperatorUser;
 import com.retapps.smartbip.authentication.common.security.PrincipalResolver;
+import com.retapps.smartbip.basis.engines.StoresCache;
+import com.retapps.smartbip.basis.engines.StoresWriter;
 import com.retapps.smartbip.basis.models.Store;
 import com.retapps.smartbip.basis.services.StoresService;
 import com.retapps.smartbip.common.audit.AuditLogger;
@@ -36,6 +38,12 @@ public class OperatorsStoresController {
     @Autowired
     StoresService storesService;
 
+    @Autowired
+    StoresWriter storesWriter;
+
+    @Autowired
+    StoresCache storesCache;
+
     @RequestMapping(method = RequestMethod.GET)
     public SmartBipResponse<Store> read(Principal principal, HttpServletRequest request) {
 
@@ -43,7 +51,7 @@ public class OperatorsStoresController {
 
         auditLogger.log(operatorUser.getTid(), OPERATOR_STORE_READ.get(principal.toString()), principal, request);
 
-        Store store = storesService.read(operatorUser.getTid(), operatorUser.getStoreId());
+        Store store = storesCache.read(operatorUser.getTid(), operatorUser.getStoreId());
 
         return new SmartBipResponse<>(store);
     }
@@ -58,9 +66,23 @@ public class OperatorsStoresController {
 
         LOGGER.info("Changing MSS cart open enabled state to {} by operator {}", storeMssCartOpenEnableRequest.getMssCartOpenEnabled(), operatorUser);
 
-        storesService.updateMssCartOpenEnabled(operatorUser.getTid(), operatorUser.getStoreId(),
-                storeMssCartOpenEnableRequest.getMssCartOpenEnabled());
+        storesWriter.write(operatorUser.getTid(), operatorUser.getStoreId(),
+                () -> storesService.updateMssCartOpenEnabled(operatorUser.getTid(), operatorUser.getStoreId(),
+                        storeMssCartOpenEnableRequest.getMssCartOpenEnabled()));
+
+        return new SmartBipResponse<>(storesCache.read(operatorUser.getTid(), operatorUser.getStoreId()));
+    }
+
+    /**
+     * The counters of the stores cache of the node serving the request.
+     */
+    @RequestMapping(value = "/cache/stats", method = RequestMethod.GET)
+    public SmartBipResponse<StoresCache.Stats> readCacheStats(Principal principal, HttpServletRequest request) {
+
+        OperatorUser operatorUser = principalResolver.getOperator(principal);
+
+        auditLogger.log(operatorUser.getTid(), OPERATOR_STORE_READ.get("cache"), principal, request);
 
-        return new SmartBipResponse<>(storesService.read(operatorUser.getTid(), operatorUser.getStoreId()));
+        return new SmartBipResponse<>(storesCache.getStats());
     }
 }
\ No newline at end of file
@@ -2,10 +2,16 @@ package com.retapps.smartbip.api.web.basis;
 
 import com.retapps.smartbip.api.models.PagedSmartBipResponse;
 import com.retapps.smartbip.authentication.common.security.PrincipalResolver;
+import com.retapps.smartbip.basis.engines.KeysetPage;
+import com.retapps.smartbip.basis.engines.StoresCache;
+import com.retapps.smartbip.basis.engines.StoresDirectory;
+import com.retapps.smartbip.basis.engines.StoresGeoIndex;
+import com.retapps.smartbip.basis.engines.StoresKeysetReader;
+import com.retapps.smartbip.basis.engines.StoresQuery;
+import com.retapps.smartbip.basis.engines.StoresQueryEngine;
 import com.retapps.smartbip.basis.models.AddressCounty;
 import com.retapps.smartbip.basis.models.AddressState;
 import com.retapps.smartbip.basis.models.Store;
-import com.retapps.smartbip.basis.services.StoresService;
 import com.retapps.smartbip.common.audit.AuditLogger;
 import com.retapps.smartbip.common.models.DeliveryMode;
 import com.retapps.smartbip.common.models.responses.SmartBipResponse;
@@ -15,20 +21,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Sort;
-import org.springframework.util.CollectionUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
 import javax.servlet.http.HttpServletRequest;
 import java.security.Principal;
-import java.util.Collections;
 import java.util.List;
 
 import static com.retapps.smartbip.common.audit.services.AuditService.ModuleStores.STORES;
 import static com.retapps.smartbip.common.config.Properties.*;
 import static org.apache.commons.lang3.StringUtils.isBlank;
-import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 @RestController
 @RequestMapping("/cli/stores")
@@ -37,11 +42,26 @@ public class StoresController {
     private static final Logger LOGGER = LoggerFactory.getLogger(StoresController.class);
 
     @Autowired
-    StoresService storesService;
+    StoresKeysetReader storesKeysetReader;
+
+    @Autowired
+    StoresCache storesCache;
+
+    @Autowired
+    StoresGeoIndex storesGeoIndex;
+
+    @Autowired
+    StoresQueryEngine storesQueryEngine;
+
+    @Autowired
+    StoresDirectory storesDirectory;
 
     @Autowired
     BasisStoreImageDecorator basisStoreImageDecorator;
 
+    @Autowired
+    BasisStoreBatchDecorator basisStoreBatchDecorator;
+
     @Autowired
     PrincipalResolver principalResolver;
 
@@ -58,7 +78,11 @@ public class StoresController {
 
         auditLogger.log(tid, STORES.get("id=" + id), principal, request);
 
-        Store result = storesService.read(tid, id, latitude, longitude);
+        Store result = storesCache.read(tid, id);
+        if (latitude != null && longitude != null && result.getLatitude() != null && result.getLongitude() != null) {
+            result.setDistance(
+                    StoresGeoIndex.distance(latitude, longitude, result.getLatitude(), result.getLongitude()));
+        }
 
         decorate(tid, result);
 
@@ -79,6 +103,7 @@ public class StoresController {
                                              @RequestParam(value = "lon", required = false) Double longitude,
                                              @RequestParam(value = "mss", required = false, defaultValue = "") Boolean enabledMss,
                                              @RequestParam(value = "blists", required = false, defaultValue = "") Boolean enabledBlists,
+                                             @RequestParam(value = "view", required = false, defaultValue = "FULL") View view,
                                              @RequestParam(value = "p", required = false, defaultValue = DEFAULT_PAGE) int page,
                                              @RequestParam(value = "s", required = false, defaultValue = DEFAULT_LIMIT) int size) {
 
@@ -86,18 +111,33 @@ public class StoresController {
 
         auditLogger.log(tid, STORES.get(), principal, request);
 
-        PageRequest pageRequest;
-        if (latitude == null && longitude == null) {
-            pageRequest = new PageRequest(page, size, Sort.Direction.ASC, "name");
-        } else {
-            pageRequest = new PageRequest(page, size);
-        }
+        return search(tid, new StoresQuery(query, state, county, city, enabledMss, enabledBlists), latitude, longitude,
+                view, page, size);
+    }
+
+    /**
+     * Keyset paginated version of {@link #list} in name order, for infinite scroll clients and exports: pass the
+     * {@code next} cursor of a page to read the following one. The total is counted only if requested.
+     */
+    @RequestMapping(value = "/scroll", method = RequestMethod.GET)
+    public SmartBipResponse<KeysetPage<Store>> scroll(Principal principal, HttpServletRequest request,
+                                                      @RequestParam(value = "tid", required = false) String tid,
+                                                      @RequestParam(value = "q", required = false) String query,
+                                                      @RequestParam(value = "mss", required = false, defaultValue = "") Boolean enabledMss,
+                                                      @RequestParam(value = "blists", required = false, defaultValue = "") Boolean enabledBlists,
+                                                      @RequestParam(value = "c", required = false) String cursor,
+                                                      @RequestParam(value = "s", required = false, defaultValue = DEFAULT_LIMIT) int size,
+                                                      @RequestParam(value = "count", required = false, defaultValue = "false") boolean count) {
 
-        Page<Store> result = storesService.search(tid, query, state, county, city, latitude, longitude,
-                true, true, enabledMss, enabledBlists, View.FULL, pageRequest);
+        tid = principalResolver.getRetailerId(principal, tid);
 
-        decorate(tid, result);
-        return new PagedSmartBipResponse<>(result);
+        auditLogger.log(tid, STORES.get(), principal, request);
+
+        KeysetPage<Store> result = storesKeysetReader.read(tid, query, enabledMss, enabledBlists, View.FULL, cursor,
+                size, count);
+
+        decorate(tid, result.getItems());
+        return new SmartBipResponse<>(result);
     }
 
     @RequestMapping(value = "/shop", method = RequestMethod.GET)
@@ -109,10 +149,16 @@ public class StoresController {
                                                  @RequestParam(value = "city", required = false) String city,
                                                  @RequestParam(value = "lat", required = false) Double latitude,
                                                  @RequestParam(value = "lon", required = false) Double longitude,
+                                                 @RequestParam(value = "view", required = false, defaultValue = "FULL") View view,
                                                  @RequestParam(value = "p", required = false, defaultValue = DEFAULT_PAGE) int page,
                                                  @RequestParam(value = "s", required = false, defaultValue = DEFAULT_LIMIT) int size) {
 
-        return list(principal, request, tid, query, state, county, city, latitude, longitude, true, null, page, size);
+        tid = principalResolver.getRetailerId(principal, tid);
+
+        auditLogger.log(tid, STORES.get(), principal, request);
+
+        return search(tid, new StoresQuery(query, state, county, city, true, null), latitude, longitude, view, page,
+                size);
     }
 
     @RequestMapping(value = "/ecommerce", method = RequestMethod.GET)
@@ -125,14 +171,22 @@ public class StoresController {
                                                       @RequestParam(value = "delivery", required = false) String delivery,
                                                       @RequestParam(value = "lat", required = false) Double latitude,
                                                       @RequestParam(value = "lon", required = false) Double longitude,
+                                                      @RequestParam(value = "view", required = false, defaultValue = "FULL") View view,
                                                       @RequestParam(value = "p", required = false, defaultValue = DEFAULT_PAGE) int page,
                                                       @RequestParam(value = "s", required = false, defaultValue = DEFAULT_LIMIT) int size) {
 
-        return list(principal, request, tid, query, state, county, city, latitude, longitude, null, true, page, size);
+        tid = principalResolver.getRetailerId(principal, tid);
+
+        auditLogger.log(tid, STORES.get(), principal, request);
+
+        DeliveryMode mode = isBlank(delivery) ? null : DeliveryMode.valueOf(delivery);
+
+        return search(tid, new StoresQuery(query, state, county, city, null, true, mode), latitude, longitude, view,
+                page, size);
     }
 
     @RequestMapping(value = "/ecommerce/delivery", method = RequestMethod.GET)
-    public List<Store> listEcommerceByDelivery(Principal principal, HttpServletRequest request,
+    public List<Store> listEcommerceByDelivery(Principal principal, HttpServletRequest request, WebRequest webRequest,
                                                @RequestParam(value = "delivery") String delivery,
                                                @RequestParam(value = "tid", required = false) String tid,
                                                @RequestParam(value = "state", required = false) String state,
@@ -143,41 +197,45 @@ public class StoresController {
 
         auditLogger.log(tid, STORES.get(), principal, request);
 
-        List<Store> result;
-        View view = View.FULL;
-        Sort sort = new Sort(Sort.Direction.ASC, "name");
+        DeliveryMode mode = DeliveryMode.valueOf(delivery);
 
-        if (isNotBlank(city)) {
-            result = storesService.readAllEnabledByDeliveryModeAndCity(tid, DeliveryMode.valueOf(delivery), city, view, sort);
-        } else if (isNotBlank(county)) {
-            result = storesService.readAllEnabledByDeliveryModeAndCounty(tid, DeliveryMode.valueOf(delivery), county, view, sort);
-        } else if (isNotBlank(state)) {
-            result = storesService.readAllEnabledByDeliveryModeAndState(tid, DeliveryMode.valueOf(delivery), state, view, sort);
-        } else {
-            result = Collections.emptyList();
+        String etag = StoresETags.etag(storesDirectory, "delivery", tid, mode, state, county, city);
+        if (webRequest.checkNotModified(etag)) {
+            return null;
         }
 
-        decorate(tid, result);
-        return result;
+        // Already decorated
+        return storesDirectory.readAllEnabledByDeliveryMode(tid, mode, state, county, city);
     }
 
     @RequestMapping(value = "/states", method = RequestMethod.GET)
-    public List<AddressState> listStates(@RequestParam(value = "tid", required = false) String tid) {
+    public List<AddressState> listStates(WebRequest webRequest,
+                                         @RequestParam(value = "tid", required = false) String tid) {
 
         tid = isBlank(tid) ? DEFAULT_TENANT : tid;
 
-        return storesService.readAllStates(tid);
+        if (webRequest.checkNotModified(StoresETags.etag("states", tid, storesDirectory.getStatesVersion(tid)))) {
+            return null;
+        }
+
+        return storesDirectory.readAllStates(tid);
     }
 
 
     @RequestMapping(value = "/counties", method = RequestMethod.GET)
-    public List<AddressCounty> listCounties(@RequestParam(value = "tid", required = false) String tid,
+    public List<AddressCounty> listCounties(WebRequest webRequest,
+                                            @RequestParam(value = "tid", required = false) String tid,
                                             @RequestParam(value = "stateId", required = false) String state,
                                             @RequestParam(value = "q", required = false) String query) {
 
         tid = isBlank(tid) ? DEFAULT_TENANT : tid;
 
-        return storesService.findCounties(tid, state, query);
+        String version = storesDirectory.getCountiesVersion(tid, state, query);
+        if (webRequest.checkNotModified(StoresETags.etag("counties", tid, version, state, query))) {
+            return null;
+        }
+
+        return storesDirectory.findCounties(tid, state, query);
     }
 
     //    @RequestMapping(value = "/stores/cities", method = RequestMethod.GET)
@@ -236,20 +294,34 @@ public class StoresController {
 ////
 ////    }
 
-    void decorate(String tid, Page<Store> result) {
+    PagedSmartBipResponse<Store> search(String tid, StoresQuery query, Double latitude, Double longitude, View view,
+                                        int page, int size) {
+
+        PageRequest pageRequest;
+        if (latitude == null && longitude == null) {
+            pageRequest = new PageRequest(page, size, Sort.Direction.ASC, "name");
+        } else {
+            pageRequest = new PageRequest(page, size);
+        }
+
+        // Already decorated
+        Page<Store> result;
+        if (latitude != null && longitude != null) {
+            StoresGeoIndex.Result nearest = storesGeoIndex.nearest(tid, latitude, longitude, query, view,
+                    pageRequest.getOffset() + size);
+            List<Store> stores = nearest.getStores();
+            result = new PageImpl<>(stores.subList(Math.min(pageRequest.getOffset(), stores.size()), stores.size()),
+                    pageRequest, nearest.getTotal());
+        } else {
+            result = storesQueryEngine.search(tid, query, view, pageRequest);
+        }
 
-        decorate(tid, result.getContent());
+        return new PagedSmartBipResponse<>(result);
     }
 
     void decorate(String tid, List<Store> result) {
 
-        if (result == null || CollectionUtils.isEmpty(result)) {
-            return;
-        }
-
-        result.forEach(s -> {
-            decorate(tid, s);
-        });
+        basisStoreBatchDecorator.decorateAll(tid, result);
     }
 
     void decorate(String tid, Store store) {
@@ -0,0 +1,46 @@
+package com.retapps.smartbip.api.web.basis;
+
+import com.retapps.smartbip.basis.engines.StoresDirectory;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Builds the entity tags of the store directory lists from a version of the {@link StoresDirectory}, which changes
+ * only when the listed stores or addresses of the tenant do, and from a digest of the query parameters.
+ */
+final class StoresETags {
+
+    private StoresETags() {
+    }
+
+    static String etag(StoresDirectory storesDirectory, String list, String tid, Object... params) {
+
+        return etag(list, tid, storesDirectory.getVersion(tid), params);
+    }
+
+    static String etag(String list, String tid, String version, Object... params) {
+
+        return "\"stores-" + list + "-" + tid + "-" + version + "-" + digest(params) + "\"";
+    }
+
+    /**
+     * Hashes the parameters with SHA-256, a null apart from "null" and each value length prefixed.
+     */
+    private static String digest(Object... params) {
+
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        for (Object param : params) {
+            if (param == null) {
+                digest.update((byte) '-');
+            } else {
+                byte[] bytes = String.valueOf(param).getBytes(StandardCharsets.UTF_8);
+                digest.update((bytes.length + ":").getBytes(StandardCharsets.US_ASCII));
+                digest.update(bytes);
+            }
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+}
@@ -4,6 +4,7 @@ import authentication.common.security.PrincipalResolver;
 import cms.common.engines.CmsBannersImageDecorator;
 import cms.common.models.Banner;
 import cms.common.services.BannersService;
+import cms.services.CmsValidityIndex;
 import common.audit.AuditLogger;
 import common.config.Properties;
 import common.services.View;
@@ -16,6 +17,7 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 
 import javax.servlet.http.HttpServletRequest;
 import java.security.Principal;
@@ -41,8 +43,11 @@ public class BannersController {
     @Autowired
     CmsBannersImageDecorator cmsBannersImageDecorator;
 
+    @Autowired
+    CmsValidityIndex validityIndex;
+
     @RequestMapping(method = RequestMethod.GET)
-    public PagedSmartBipResponse<Banner> list(Principal principal, HttpServletRequest request,
+    public PagedSmartBipResponse<Banner> list(Principal principal, HttpServletRequest request, WebRequest webRequest,
                                               @RequestParam(value = "tid", required = false) String tid,
                                               @RequestParam(value = "category", required = false) String category,
                                               @RequestParam(value = "storeId", required = false) String storeId) {
@@ -52,6 +57,11 @@ public class BannersController {
         // Audit
         auditLogger.log(tid, BANNERS.get(), principal, request);
 
+        String etag = CmsETags.etag(validityIndex, CmsValidityIndex.Type.BANNER, tid, category, storeId);
+        if (webRequest.checkNotModified(etag)) {
+            return null;
+        }
+
         List<Banner> list = bannersService.readValid(tid, trimToNull(category), trimToNull(storeId), View.FULL);
 
         decorate(tid, list);
@@ -0,0 +1,94 @@
+package com.retapps.smartbip.api.web.cms;
+
+import com.retapps.smartbip.authentication.common.models.OperatorUser;
+import com.retapps.smartbip.authentication.common.security.PrincipalResolver;
+import com.retapps.smartbip.cms.services.BrandProductsImportEngine;
+import com.retapps.smartbip.cms.services.BrandProductsImportEngine.Format;
+import com.retapps.smartbip.cms.services.BrandProductsImportEngine.Job;
+import com.retapps.smartbip.cms.services.CmsUploadSpooler;
+import com.retapps.smartbip.common.audit.AuditLogger;
+import com.retapps.smartbip.common.models.responses.SmartBipResponse;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.persistence.EntityNotFoundException;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.security.Principal;
+import java.util.List;
+
+import static com.retapps.smartbip.common.audit.services.AuditService.ModuleCms.PRODUCTS;
+
+/**
+ * Brand products catalogue imports. An import runs on the node that accepted the upload and its progress is kept in
+ * the memory of that node, so it is listed and polled there: behind a load balancer the import endpoints need sticky
+ * sessions, otherwise polling another node answers not found.
+ */
+@RestController
+@RequestMapping("/ope/cms/products/imports")
+public class BrandProductsImportController {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BrandProductsImportController.class);
+
+    @Autowired
+    PrincipalResolver principalResolver;
+
+    @Autowired
+    AuditLogger auditLogger;
+
+    @Autowired
+    CmsUploadSpooler uploadSpooler;
+
+    @Autowired
+    BrandProductsImportEngine importEngine;
+
+    @RequestMapping(method = RequestMethod.POST)
+    public SmartBipResponse<Job> create(Principal principal, HttpServletRequest request,
+                                        @RequestParam("file") MultipartFile file,
+                                        @RequestParam(value = "format", required = false) Format format)
+            throws IOException {
+
+        OperatorUser operatorUser = principalResolver.getOperator(principal);
+
+        auditLogger.log(operatorUser.getTid(), PRODUCTS.get("import"), principal, request);
+
+        if (format == null) {
+            format = StringUtils.endsWithIgnoreCase(file.getOriginalFilename(), ".json") ? Format.JSON : Format.CSV;
+        }
+
+        LOGGER.trace("Importing {} brand products file {} for tenant {}", format, file.getOriginalFilename(),
+                operatorUser.getTid());
+
+        return new SmartBipResponse<>(importEngine.submit(operatorUser.getTid(), uploadSpooler.spool(file), format));
+    }
+
+    @RequestMapping(method = RequestMethod.GET)
+    public SmartBipResponse<List<Job>> list(Principal principal, HttpServletRequest request) {
+
+        OperatorUser operatorUser = principalResolver.getOperator(principal);
+
+        auditLogger.log(operatorUser.getTid(), PRODUCTS.get("imports"), principal, request);
+
+        return new SmartBipResponse<>(importEngine.list(operatorUser.getTid()));
+    }
+
+    @RequestMapping(value = "/{id}", method = RequestMethod.GET)
+    public SmartBipResponse<Job> fetch(Principal principal, HttpServletRequest request,
+                                       @PathVariable("id") String id) {
+
+        OperatorUser operatorUser = principalResolver.getOperator(principal);
+
+        auditLogger.log(operatorUser.getTid(), PRODUCTS.get("import=" + id), principal, request);
+
+        Job job = importEngine.read(id);
+        if (job == null || !job.getTid().equals(operatorUser.getTid())) {
+            throw new EntityNotFoundException("Brand products import #" + id + " not found for tenant " + operatorUser.getTid());
+        }
+
+        return new SmartBipResponse<>(job);
+    }
+}
@@ -0,0 +1,43 @@
+package com.retapps.smartbip.api.web.cms;
+
+import com.retapps.smartbip.cms.services.CmsValidityIndex;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Builds the entity tags of the CMS lists from the fingerprint of the valid entities in the {@link CmsValidityIndex},
+ * derived from the committed rows of the tenant and the live ids, and from a digest of the query parameters. The
+ * same data gives the same tag on every node and after a restart.
+ */
+final class CmsETags {
+
+    private CmsETags() {
+    }
+
+    static String etag(CmsValidityIndex validityIndex, CmsValidityIndex.Type type, String tid, Object... params) {
+
+        return "\"" + type.name().toLowerCase() + "-" + tid + "-" + validityIndex.fingerprint(type, tid) + "-"
+                + digest(params) + "\"";
+    }
+
+    /**
+     * The SHA-256 of the parameters, each prefixed by its length so adjacent parameters never run into each other.
+     */
+    private static String digest(Object... params) {
+
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        for (Object param : params) {
+            if (param == null) {
+                digest.update((byte) '-');
+            } else {
+                byte[] bytes = String.valueOf(param).getBytes(StandardCharsets.UTF_8);
+                digest.update((bytes.length + ":").getBytes(StandardCharsets.US_ASCII));
+                digest.update(bytes);
+            }
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+}
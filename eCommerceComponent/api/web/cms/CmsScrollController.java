@@ -0,0 +1,126 @@
+package com.retapps.smartbip.api.web.cms;
+
+import com.retapps.smartbip.authentication.common.models.OperatorUser;
+import com.retapps.smartbip.authentication.common.security.PrincipalResolver;
+import com.retapps.smartbip.basis.engines.KeysetPage;
+import com.retapps.smartbip.cms.common.engines.CmsBannersImageDecorator;
+import com.retapps.smartbip.cms.common.engines.CmsContentsImageDecorator;
+import com.retapps.smartbip.cms.common.engines.CmsLeafletsImageDecorator;
+import com.retapps.smartbip.cms.common.models.Banner;
+import com.retapps.smartbip.cms.common.models.BrandProduct;
+import com.retapps.smartbip.cms.common.models.Content;
+import com.retapps.smartbip.cms.common.models.Leaflet;
+import com.retapps.smartbip.cms.services.CmsKeysetReader;
+import com.retapps.smartbip.common.audit.AuditLogger;
+import com.retapps.smartbip.common.models.responses.SmartBipResponse;
+import com.retapps.smartbip.common.services.View;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import java.security.Principal;
+
+import static com.retapps.smartbip.common.audit.services.AuditService.ModuleCms.*;
+import static com.retapps.smartbip.common.config.Properties.DEFAULT_LIMIT;
+
+/**
+ * Keyset paginated listings of the CMS entities for exports: pass the {@code next} cursor of a page to read the
+ * following one. The total is counted only if requested.
+ */
+@RestController
+@RequestMapping("/ope/cms")
+public class CmsScrollController {
+
+    @Autowired
+    PrincipalResolver principalResolver;
+
+    @Autowired
+    AuditLogger auditLogger;
+
+    @Autowired
+    CmsKeysetReader keysetReader;
+
+    @Autowired
+    CmsLeafletsImageDecorator cmsLeafletsImageDecorator;
+
+    @Autowired
+    CmsBannersImageDecorator cmsBannersImageDecorator;
+
+    @Autowired
+    CmsContentsImageDecorator cmsContentsImageDecorator;
+
+    @RequestMapping(value = "/leaflets/scroll", method = RequestMethod.GET)
+    public SmartBipResponse<KeysetPage<Leaflet>> scrollLeaflets(Principal principal, HttpServletRequest request,
+                                                                @RequestParam(value = "q", required = false) String query,
+                                                                @RequestParam(value = "c", required = false) String cursor,
+                                                                @RequestParam(value = "s", required = false, defaultValue = DEFAULT_LIMIT) int size,
+                                                                @RequestParam(value = "count", required = false, defaultValue = "false") boolean count) {
+
+        OperatorUser operatorUser = principalResolver.getOperator(principal);
+        String tid = operatorUser.getTid();
+
+        auditLogger.log(tid, LEAFLETS.get("scroll"), principal, request);
+
+        KeysetPage<Leaflet> result = keysetReader.readLeaflets(tid, query, View.FULL, cursor, size, count);
+
+        result.getItems().forEach(leaflet -> cmsLeafletsImageDecorator.decorate(tid, leaflet));
+
+        return new SmartBipResponse<>(result);
+    }
+
+    @RequestMapping(value = "/banners/scroll", method = RequestMethod.GET)
+    public SmartBipResponse<KeysetPage<Banner>> scrollBanners(Principal principal, HttpServletRequest request,
+                                                              @RequestParam(value = "q", required = false) String query,
+                                                              @RequestParam(value = "c", required = false) String cursor,
+                                                              @RequestParam(value = "s", required = false, defaultValue = DEFAULT_LIMIT) int size,
+                                                              @RequestParam(value = "count", required = false, defaultValue = "false") boolean count) {
+
+        OperatorUser operatorUser = principalResolver.getOperator(principal);
+        String tid = operatorUser.getTid();
+
+        auditLogger.log(tid, BANNERS.get("scroll"), principal, request);
+
+        KeysetPage<Banner> result = keysetReader.readBanners(tid, query, View.FULL, cursor, size, count);
+
+        result.getItems().forEach(banner -> cmsBannersImageDecorator.decorate(tid, banner));
+
+        return new SmartBipResponse<>(result);
+    }
+
+    @RequestMapping(value = "/contents/scroll", method = RequestMethod.GET)
+    public SmartBipResponse<KeysetPage<Content>> scrollContents(Principal principal, HttpServletRequest request,
+                                                                @RequestParam(value = "q", required = false) String query,
+                                                                @RequestParam(value = "c", required = false) String cursor,
+                                                                @RequestParam(value = "s", required = false, defaultValue = DEFAULT_LIMIT) int size,
+                                                                @RequestParam(value = "count", required = false, defaultValue = "false") boolean count) {
+
+        OperatorUser operatorUser = principalResolver.getOperator(principal);
+        String tid = operatorUser.getTid();
+
+        auditLogger.log(tid, CONTENTS.get("scroll"), principal, request);
+
+        KeysetPage<Content> result = keysetReader.readContents(tid, query, View.FULL, cursor, size, count);
+
+        result.getItems().forEach(content -> cmsContentsImageDecorator.decorate(tid, content));
+
+        return new SmartBipResponse<>(result);
+    }
+
+    @RequestMapping(value = "/products/scroll", method = RequestMethod.GET)
+    public SmartBipResponse<KeysetPage<BrandProduct>> scrollBrandProducts(Principal principal, HttpServletRequest request,
+                                                                          @RequestParam(value = "q", required = false) String query,
+                                                                          @RequestParam(value = "c", required = false) String cursor,
+                                                                          @RequestParam(value = "s", required = false, defaultValue = DEFAULT_LIMIT) int size,
+                                                                          @RequestParam(value = "count", required = false, defaultValue = "false") boolean count) {
+
+        OperatorUser operatorUser = principalResolver.getOperator(principal);
+        String tid = operatorUser.getTid();
+
+        auditLogger.log(tid, PRODUCTS.get("scroll"), principal, request);
+
+        return new SmartBipResponse<>(keysetReader.readBrandProducts(tid, query, View.FULL, cursor, size, count));
+    }
+}
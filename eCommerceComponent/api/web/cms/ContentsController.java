@@ -5,6 +5,7 @@ import com.retapps.smartbip.authentication.common.security.PrincipalResolver;
 import com.retapps.smartbip.cms.common.engines.CmsContentsImageDecorator;
 import com.retapps.smartbip.cms.common.models.Content;
 import com.retapps.smartbip.cms.common.services.ContentsService;
+import com.retapps.smartbip.cms.services.CmsValidityIndex;
 import com.retapps.smartbip.common.audit.AuditLogger;
 import com.retapps.smartbip.common.models.responses.SmartBipResponse;
 import com.retapps.smartbip.common.services.View;
@@ -15,6 +16,7 @@ import org.springframework.data.domain.Sort;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.util.CollectionUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
 import javax.servlet.http.HttpServletRequest;
 import java.security.Principal;
@@ -40,9 +42,12 @@ public class ContentsController {
     @Autowired
     CmsContentsImageDecorator cmsContentsImageDecorator;
 
+    @Autowired
+    CmsValidityIndex validityIndex;
+
     @PreAuthorize(PrincipalResolver.ROLE_USER)
     @RequestMapping(method = RequestMethod.GET)
-    public PagedSmartBipResponse<Content> list(Principal principal, HttpServletRequest request,
+    public PagedSmartBipResponse<Content> list(Principal principal, HttpServletRequest request, WebRequest webRequest,
                                                @RequestParam(value = "tid", required = false) String tid,
                                                @RequestParam(value = "q", required = false) String query,
                                                @RequestParam(value = "p", required = false, defaultValue = DEFAULT_PAGE) int page,
@@ -53,6 +58,11 @@ public class ContentsController {
         // Audit
         auditLogger.log(tid, CONTENTS.get(), principal, request);
 
+        String etag = CmsETags.etag(validityIndex, CmsValidityIndex.Type.CONTENT, tid, query, page, size);
+        if (webRequest.checkNotModified(etag)) {
+            return null;
+        }
+
         Page<Content> result = contentsService.search(tid, query, null, null, true, null,
                 null, View.FULL, new PageRequest(page, size, new Sort(Sort.Direction.ASC, "code")));
 
@@ -64,6 +74,7 @@ public class ContentsController {
     //    @PreAuthorize(PrincipalResolver.ROLE_USER)
     @RequestMapping(value = "/promoted", method = RequestMethod.GET)
     public PagedSmartBipResponse<Content> listPromoted(Principal principal, HttpServletRequest request,
+                                                       WebRequest webRequest,
                                                        @RequestParam(value = "tid", required = false) String tid,
                                                        @RequestParam(value = "q", required = false) String query,
                                                        @RequestParam(value = "p", required = false, defaultValue = DEFAULT_PAGE) int page,
@@ -75,6 +86,11 @@ public class ContentsController {
 //        auditLogger.log(tid, CONTENTS.get("promoted=true"), principal, request);
         auditLogger.log(tid, CONTENTS.get("promoted=true"), null, request);
 
+        String etag = CmsETags.etag(validityIndex, CmsValidityIndex.Type.CONTENT, tid, "promoted", query, page, size);
+        if (webRequest.checkNotModified(etag)) {
+            return null;
+        }
+
         Page<Content> result = contentsService.search(tid, query, true, null, true, null, null, View.FULL, new PageRequest(page, size));
 
         decorate(tid, result);
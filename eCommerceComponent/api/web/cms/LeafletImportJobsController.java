@@ -0,0 +1,60 @@
+package com.retapps.smartbip.api.web.cms;
+
+import com.retapps.smartbip.authentication.common.models.OperatorUser;
+import com.retapps.smartbip.authentication.common.security.PrincipalResolver;
+import com.retapps.smartbip.cms.services.LeafletImportJob;
+import com.retapps.smartbip.cms.services.LeafletImportJobsEngine;
+import com.retapps.smartbip.common.audit.AuditLogger;
+import com.retapps.smartbip.common.models.responses.SmartBipResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.persistence.EntityNotFoundException;
+import javax.servlet.http.HttpServletRequest;
+import java.security.Principal;
+import java.util.List;
+
+import static com.retapps.smartbip.common.audit.services.AuditService.ModuleCms.LEAFLETS;
+
+@RestController
+@RequestMapping("/ope/cms/leaflets/jobs")
+public class LeafletImportJobsController {
+
+    @Autowired
+    PrincipalResolver principalResolver;
+
+    @Autowired
+    AuditLogger auditLogger;
+
+    @Autowired
+    LeafletImportJobsEngine importJobsEngine;
+
+    @RequestMapping(method = RequestMethod.GET)
+    public SmartBipResponse<List<LeafletImportJob>> list(Principal principal, HttpServletRequest request) {
+
+        OperatorUser operatorUser = principalResolver.getOperator(principal);
+
+        auditLogger.log(operatorUser.getTid(), LEAFLETS.get("jobs"), principal, request);
+
+        return new SmartBipResponse<>(importJobsEngine.list(operatorUser.getTid()));
+    }
+
+    @RequestMapping(value = "/{id}", method = RequestMethod.GET)
+    public SmartBipResponse<LeafletImportJob> fetch(Principal principal, HttpServletRequest request,
+                                                    @PathVariable("id") String id) {
+
+        OperatorUser operatorUser = principalResolver.getOperator(principal);
+
+        auditLogger.log(operatorUser.getTid(), LEAFLETS.get("job=" + id), principal, request);
+
+        LeafletImportJob job = importJobsEngine.read(id);
+        if (job == null || !job.getTid().equals(operatorUser.getTid())) {
+            throw new EntityNotFoundException("Leaflet import job #" + id + " not found for tenant " + operatorUser.getTid());
+        }
+
+        return new SmartBipResponse<>(job);
+    }
+}
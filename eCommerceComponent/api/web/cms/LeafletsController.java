@@ -7,6 +7,7 @@ import com.retapps.smartbip.api.models.PagedSmartBipResponse;
 import com.retapps.smartbip.authentication.common.security.PrincipalResolver;
 import com.retapps.smartbip.cms.common.models.Leaflet;
 import com.retapps.smartbip.cms.common.services.LeafletsService;
+import com.retapps.smartbip.cms.services.CmsValidityIndex;
 import com.retapps.smartbip.common.audit.AuditLogger;
 import com.retapps.smartbip.common.models.responses.SmartBipResponse;
 import com.retapps.smartbip.common.services.View;
@@ -19,6 +20,7 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 
 import javax.servlet.http.HttpServletRequest;
 import java.security.Principal;
@@ -44,14 +46,21 @@ public class LeafletsController {
     @Autowired
     CmsLeafletsImageDecorator cmsLeafletsImageDecorator;
 
+    @Autowired
+    CmsValidityIndex validityIndex;
+
     @RequestMapping(method = RequestMethod.GET)
-    public PagedSmartBipResponse<Leaflet> list(Principal principal, HttpServletRequest request) {
+    public PagedSmartBipResponse<Leaflet> list(Principal principal, HttpServletRequest request, WebRequest webRequest) {
 
         String tid = getTid(principal);
 
         // Audit
         auditLogger.log(tid, LEAFLETS.get(), principal, request);
 
+        if (webRequest.checkNotModified(CmsETags.etag(validityIndex, CmsValidityIndex.Type.LEAFLET, tid))) {
+            return null;
+        }
+
         List<Leaflet> list = leafletsService.readValid(tid, View.FULL);
 
         decorate(tid, list);
@@ -64,13 +73,17 @@ public class LeafletsController {
 
     @RequestMapping(value = "/store/{id}", method = RequestMethod.GET)
     public PagedSmartBipResponse<Leaflet> listByStore(Principal principal, HttpServletRequest request,
-                                                      @PathVariable("id") String id) {
+                                                      WebRequest webRequest, @PathVariable("id") String id) {
 
         String tid = getTid(principal);
 
         // Audit
         auditLogger.log(tid, LEAFLETS.get("storeId=" + id), principal, request);
 
+        if (webRequest.checkNotModified(CmsETags.etag(validityIndex, CmsValidityIndex.Type.LEAFLET, tid, id))) {
+            return null;
+        }
+
         List<Leaflet> list = leafletsService.readValidByStore(tid, id, View.FULL);
 
         decorate(tid, list);
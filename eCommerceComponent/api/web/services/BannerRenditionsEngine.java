@@ -0,0 +1,194 @@
+package com.retapps.smartbip.cms.services;
+
+import com.retapps.smartbip.common.models.ImageSize;
+import com.retapps.smartbip.common.services.StorageService;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.retapps.smartbip.cms.services.CmsImageDerivativesEngine.FORMAT_JPEG;
+import static com.retapps.smartbip.cms.services.CmsImageDerivativesEngine.derivativeFilename;
+
+/**
+ * Renders the banner images for every placement of a tenant.
+ * <p>
+ * The placements and their pixel sizes are configured in {@code smartbip.cms.banners.renditions} as a comma separated
+ * list of {@code PLACEMENT:WIDTHxHEIGHT}, and can be overridden per tenant in
+ * {@code smartbip.cms.banners.renditions.<tid>}. A banner can be shown on any placement of its tenant, so an upload
+ * is decoded once and cropped and scaled to the exact size of every placement. The rendition of a placement is stored
+ * next to the banner image as {@code <image>_<placement>.jpg}, and the banner image itself keeps the size of the
+ * banner category placement.
+ */
+@Component
+public class BannerRenditionsEngine {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BannerRenditionsEngine.class);
+
+    private static final ImageSize DEFAULT_SIZE = new ImageSize(800, 500);
+
+    private static final String TENANT_PROPERTY = "smartbip.cms.banners.renditions.";
+
+    @Value("${smartbip.cms.banners.renditions:MC18:480x660,CC5000:1000x600,WEB:1920x485,APPS:480x660}")
+    private String renditionsConfiguration;
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private StorageService storageService;
+
+    private final ConcurrentMap<String, Map<String, ImageSize>> renditions = new ConcurrentHashMap<>();
+
+    /**
+     * The placements of a tenant and their sizes.
+     */
+    public Map<String, ImageSize> getRenditions(String tid) {
+
+        return renditions.computeIfAbsent(tid,
+                k -> parse(environment.getProperty(TENANT_PROPERTY + k, renditionsConfiguration)));
+    }
+
+    /**
+     * The size of the banner image of a category, the size of the category placement if any.
+     */
+    public ImageSize getSize(String tid, String categoryId) {
+
+        ImageSize size = getRenditions(tid).get(categoryId);
+        return size != null ? size : DEFAULT_SIZE;
+    }
+
+    public static String renditionFilename(String filename, String placement) {
+
+        return derivativeFilename(filename, placement.toLowerCase(), FORMAT_JPEG);
+    }
+
+    /**
+     * The filenames of the renditions of a banner image for all the placements of a tenant.
+     */
+    public Set<String> renditionFilenames(String tid, String filename) {
+
+        Set<String> filenames = new HashSet<>();
+        for (String placement : getRenditions(tid).keySet()) {
+            filenames.add(renditionFilename(filename, placement));
+        }
+        return filenames;
+    }
+
+    /**
+     * Whether the renditions of a banner image exist for all the placements of a tenant.
+     */
+    public boolean exist(String tid, String resourcesFolder, String filename) {
+
+        for (String renditionFilename : renditionFilenames(tid, filename)) {
+            if (!Files.exists(Paths.get(resourcesFolder, renditionFilename))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stores the renditions of a banner image for all the placements of the tenant from the image decoded once by
+     * the {@link CmsContentStore}. Renditions already stored for the same image are kept.
+     */
+    public void store(String tid, String resourcesFolder, String filename, BufferedImage image) {
+
+        if (StringUtils.isBlank(filename)) {
+            return;
+        }
+
+        Map<String, ImageSize> placements = new LinkedHashMap<>();
+        for (Map.Entry<String, ImageSize> rendition : getRenditions(tid).entrySet()) {
+            if (!Files.exists(Paths.get(resourcesFolder, renditionFilename(filename, rendition.getKey())))) {
+                placements.put(rendition.getKey(), rendition.getValue());
+            }
+        }
+        if (placements.isEmpty()) {
+            return;
+        }
+
+        try {
+            for (Map.Entry<String, ImageSize> placement : placements.entrySet()) {
+                BufferedImage rendition = crop(image, placement.getValue().getWidth(), placement.getValue().getHeight());
+                storageService.store(CmsImageDerivativesEngine.encode(rendition, FORMAT_JPEG), tid,
+                        renditionFilename(filename, placement.getKey()), resourcesFolder);
+            }
+
+            LOGGER.trace("Stored renditions {} of banner {} for tenant {}", placements.keySet(), filename, tid);
+
+        } catch (IOException e) {
+            LOGGER.warn("Error storing renditions of banner {} for tenant {}: {}", filename, tid,
+                    ExceptionUtils.getMessage(e));
+        }
+    }
+
+    /**
+     * Deletes the renditions of a banner image, missing ones are ignored.
+     */
+    public void delete(String tid, String resourcesFolder, String filename) {
+
+        if (StringUtils.isBlank(filename)) {
+            return;
+        }
+
+        for (String renditionFilename : renditionFilenames(tid, filename)) {
+            try {
+                storageService.delete(tid, resourcesFolder, renditionFilename);
+            } catch (IOException e) {
+                LOGGER.trace("Error deleting rendition {}: {}", renditionFilename, ExceptionUtils.getMessage(e));
+            }
+        }
+    }
+
+    /**
+     * Scales the image to cover the given size and crops the center, the result has exactly the given size.
+     */
+    static BufferedImage crop(BufferedImage image, int width, int height) {
+
+        double ratio = Math.max((double) width / image.getWidth(), (double) height / image.getHeight());
+
+        int scaledWidth = (int) Math.ceil(image.getWidth() * ratio);
+        int scaledHeight = (int) Math.ceil(image.getHeight() * ratio);
+
+        BufferedImage cropped = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = cropped.createGraphics();
+        try {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, (width - scaledWidth) / 2, (height - scaledHeight) / 2, scaledWidth,
+                    scaledHeight, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        return cropped;
+    }
+
+    private static Map<String, ImageSize> parse(String configuration) {
+
+        Map<String, ImageSize> sizes = new LinkedHashMap<>();
+        for (String rendition : StringUtils.split(configuration, ',')) {
+            String[] placementAndSize = StringUtils.split(rendition.trim(), ':');
+            String[] size = StringUtils.split(placementAndSize[1], 'x');
+            sizes.put(placementAndSize[0], new ImageSize(Integer.parseInt(size[0]), Integer.parseInt(size[1])));
+        }
+        return Collections.unmodifiableMap(sizes);
+    }
+}
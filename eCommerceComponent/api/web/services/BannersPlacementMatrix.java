@@ -0,0 +1,137 @@
+package com.retapps.smartbip.cms.services;
+
+import com.retapps.smartbip.cms.entities.BannerEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import static com.retapps.smartbip.cms.services.CmsValidityIndex.Type.BANNER;
+
+/**
+ * Materialized placements of the valid banners: tenant, category and store to the banners list ordered by last
+ * update.
+ * <p>
+ * The enabled banners of a tenant are loaded once and kept detached in update order; a banner write only reloads
+ * that banner, once the write is committed. The list for a category and store is the subset of the tenant banners live in the
+ * {@link CmsValidityIndex}, computed once and served from memory until the index version changes: the index
+ * version is the version stamp of the placements.
+ */
+class BannersPlacementMatrix {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BannersPlacementMatrix.class);
+
+    private static final String ANY = "*";
+
+    private static class Placements {
+
+        private volatile List<BannerEntity> banners;
+
+        private volatile long version = -1;
+
+        private final ConcurrentMap<String, List<BannerEntity>> lists = new ConcurrentHashMap<>();
+
+        Placements(List<BannerEntity> banners) {
+            this.banners = Collections.unmodifiableList(banners);
+        }
+    }
+
+    private final CmsValidityIndex validityIndex;
+
+    private final Function<String, List<BannerEntity>> loader;
+
+    private final BiFunction<String, String, BannerEntity> reader;
+
+    private final ConcurrentMap<String, Placements> tenants = new ConcurrentHashMap<>();
+
+    /**
+     * @param loader loads the enabled banners of a tenant ordered by last update, with their stores initialized
+     * @param reader reads a banner of a tenant with its stores initialized, null if not found
+     */
+    BannersPlacementMatrix(CmsValidityIndex validityIndex, Function<String, List<BannerEntity>> loader,
+                           BiFunction<String, String, BannerEntity> reader) {
+        this.validityIndex = validityIndex;
+        this.loader = loader;
+        this.reader = reader;
+    }
+
+    /**
+     * The valid banners for a category and store, null values match any category or store.
+     */
+    List<BannerEntity> read(String tid, String category, String storeId) {
+
+        // Nothing is kept for the tenant ids without banners
+        if (!validityIndex.isIndexed(BANNER, tid)) {
+            return Collections.emptyList();
+        }
+
+        Placements placements = tenants.computeIfAbsent(tid, k -> new Placements(loader.apply(k)));
+
+        long version = validityIndex.version(BANNER, tid);
+        if (placements.version != version) {
+            placements.lists.clear();
+            placements.version = version;
+        }
+
+        String key = (category == null ? ANY : category) + "|" + (storeId == null ? ANY : storeId);
+
+        List<BannerEntity> list = placements.lists.get(key);
+        if (list == null) {
+
+            Set<String> live = validityIndex.live(BANNER, tid, storeId, category);
+
+            list = new ArrayList<>(live.size());
+            for (BannerEntity banner : placements.banners) {
+                if (live.contains(banner.getId())) {
+                    list.add(banner);
+                }
+            }
+            list = Collections.unmodifiableList(list);
+
+            if (validityIndex.version(BANNER, tid) == version) {
+                placements.lists.put(key, list);
+            }
+
+            LOGGER.trace("Built banners placement {} for tenant {}: {} banners", key, tid, list.size());
+        }
+
+        return list;
+    }
+
+    /**
+     * Reloads a banner after a committed write, the banner moves to the head of the list as the last updated one.
+     */
+    synchronized void update(String tid, String id) {
+
+        Placements placements = tenants.get(tid);
+        if (placements == null) {
+            return;
+        }
+
+        List<BannerEntity> banners = new ArrayList<>(placements.banners.size() + 1);
+
+        BannerEntity banner = reader.apply(tid, id);
+        if (banner != null) {
+            banners.add(banner);
+        }
+        for (BannerEntity b : placements.banners) {
+            if (!b.getId().equals(id)) {
+                banners.add(b);
+            }
+        }
+
+        placements.banners = Collections.unmodifiableList(banners);
+        placements.lists.clear();
+
+        LOGGER.trace("Banner {} {} in placements of tenant {}", id, banner == null ? "removed" : "updated", tid);
+    }
+
+    void invalidate(String tid) {
+
+        tenants.remove(tid);
+    }
+}
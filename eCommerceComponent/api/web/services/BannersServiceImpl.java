@@ -1,13 +1,12 @@
 package com.retapps.smartbip.cms.services;
 
+import com.retapps.smartbip.basis.engines.StoresBatchReader;
 import com.retapps.smartbip.basis.models.Store;
-import com.retapps.smartbip.basis.services.StoresService;
 import com.retapps.smartbip.cms.common.models.Banner;
 import com.retapps.smartbip.cms.common.services.BannersService;
 import com.retapps.smartbip.cms.entities.BannerEntity;
 import com.retapps.smartbip.cms.repositories.BannersRepository;
 import com.retapps.smartbip.common.models.ImageSize;
-import com.retapps.smartbip.common.services.StorageService;
 import com.retapps.smartbip.common.services.View;
 import com.retapps.smartbip.common.utils.ResourcesLocationResolver;
 import org.apache.commons.collections.CollectionUtils;
@@ -23,11 +22,15 @@ import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.domain.Specifications;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.annotation.PostConstruct;
 import javax.persistence.EntityExistsException;
 import javax.persistence.EntityNotFoundException;
 import javax.validation.constraints.NotNull;
@@ -37,6 +40,7 @@ import java.util.*;
 
 import static com.retapps.smartbip.cms.mappers.BannerMapper.*;
 import static com.retapps.smartbip.cms.repositories.BannersSpecifications.*;
+import static com.retapps.smartbip.cms.services.CmsValidityIndex.Type.BANNER;
 import static org.apache.commons.lang3.StringUtils.*;
 import static org.springframework.data.jpa.domain.Specifications.where;
 
@@ -47,29 +51,56 @@ public class BannersServiceImpl implements BannersService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(BannersServiceImpl.class);
 
-    private static final ImageSize DEFAULT_BANNER_SIZE = new ImageSize(800, 500);
+    private static final int MEDIA_PAGE_SIZE = 500;
 
-    private static final Map<String, ImageSize> BANNER_SIZES = new HashMap<>();
+    @Autowired
+    private StoresBatchReader storesBatchReader;
 
     @Autowired
-    private StoresService storesService;
+    private BannersRepository repository;
 
-    static {
+    @Autowired
+    private ResourcesLocationResolver resourcesResolver;
 
-        BANNER_SIZES.put("MC18", new ImageSize(480, 660));
-        BANNER_SIZES.put("CC5000", new ImageSize(1000, 600));
-        BANNER_SIZES.put("WEB", new ImageSize(1920, 485));
-        BANNER_SIZES.put("APPS", new ImageSize(480, 660));
-    }
+    @Autowired
+    private CmsValidityIndex validityIndex;
+
+    private BannersPlacementMatrix placementMatrix;
 
     @Autowired
-    private BannersRepository repository;
+    private CmsImageDerivativesEngine derivativesEngine;
 
     @Autowired
-    private StorageService storageService;
+    private CmsMediaCollector mediaCollector;
 
     @Autowired
-    private ResourcesLocationResolver resourcesResolver;
+    private CmsUploadSpooler uploadSpooler;
+
+    @Autowired
+    private CmsContentStore contentStore;
+
+    @Autowired
+    private BannerRenditionsEngine renditionsEngine;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @PostConstruct
+    void init() {
+
+        validityIndex.register(BANNER, BannerEntity.class, this::loadValidity);
+
+        mediaCollector.register("banners", BannerEntity.class, resourcesResolver::getCmsBannersPath, this::referencedMedia);
+
+        // The placements only ever hold committed banners, read in their own transaction and kept detached
+        TransactionTemplate readTemplate = new TransactionTemplate(transactionManager);
+        readTemplate.setReadOnly(true);
+        readTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+        placementMatrix = new BannersPlacementMatrix(validityIndex,
+                tid -> readTemplate.execute(status -> findEnabled(tid)),
+                (tid, id) -> readTemplate.execute(status -> findDetached(tid, id)));
+    }
 
     @Override
     public Page<Banner> readAll(@NotNull String tid, View view, PageRequest request) {
@@ -108,6 +139,7 @@ public class BannersServiceImpl implements BannersService {
         }
 
         BannerEntity entity = repository.save(toEntity(tid, item));
+        changed(tid, entity.getId());
 
         return fromEntity(View.FULL, entity);
     }
@@ -119,11 +151,20 @@ public class BannersServiceImpl implements BannersService {
 
         Assert.hasLength(item.getId(), "Invalid id");
 
-        if (!repository.exists(item.getId())) {
+        BannerEntity previous = repository.findOne(item.getId());
+        if (previous == null) {
             throw new EntityNotFoundException("Banner #" + item.getId() + " not found for tenant " + tid);
         }
 
+        // Read before the save merges the new state into the managed entity
+        String previousImage = previous.getImage();
+
         BannerEntity entity = repository.save(toEntity(tid, item));
+        changed(tid, entity.getId());
+
+        if (!Objects.equals(previousImage, entity.getImage())) {
+            release(tid, Collections.singleton(previousImage));
+        }
 
         return fromEntity(View.FULL, entity);
     }
@@ -145,11 +186,17 @@ public class BannersServiceImpl implements BannersService {
 
         LOGGER.debug("Deleting banner #{} for tenant {}", id, tid);
 
-        if (!repository.exists(id)) {
+        BannerEntity entity = repository.findOne(id);
+        if (entity == null) {
             throw new EntityNotFoundException("Banner #" + id + " not found for tenant " + tid);
         }
 
-        repository.delete(id);
+        String image = entity.getImage();
+
+        repository.delete(entity);
+        changed(tid, id);
+
+        release(tid, Collections.singleton(image));
     }
 
     @Override
@@ -157,7 +204,12 @@ public class BannersServiceImpl implements BannersService {
 
         LOGGER.debug("Deleting all banners for tenant {}", tid);
 
+        Set<String> released = referencedMedia(tid);
+
         repository.deleteByTid(tid);
+        release(tid, released);
+        validityIndex.invalidate(BANNER, tid);
+        CmsTransactions.afterCommit(() -> placementMatrix.invalidate(tid));
     }
 
     @Override
@@ -197,6 +249,7 @@ public class BannersServiceImpl implements BannersService {
         entity.setEnabled(true);
 
         entity = repository.save(entity);
+        changed(tid, id);
 
         return fromEntity(View.FULL, entity);
     }
@@ -214,6 +267,7 @@ public class BannersServiceImpl implements BannersService {
         entity.setEnabled(false);
 
         entity = repository.save(entity);
+        changed(tid, id);
 
         return fromEntity(View.FULL, entity);
     }
@@ -223,15 +277,7 @@ public class BannersServiceImpl implements BannersService {
 
         LOGGER.debug("Reading valid banners for tenant {}", tid);
 
-        Specifications<BannerEntity> specifications = where(hasTenant(tid));
-        specifications = specifications.and(isEnabled());
-        specifications = specifications.and(isValid());
-
-        Sort sort = new Sort(Sort.Direction.DESC, "updated");
-
-        List<BannerEntity> entities = repository.findAll(where(specifications), sort);
-
-        return fromEntities(view, entities);
+        return fromEntities(view, placementMatrix.read(tid, null, null));
     }
 
     @Override
@@ -239,19 +285,7 @@ public class BannersServiceImpl implements BannersService {
 
         LOGGER.debug("Reading valid banners for category {} and tenant {}", category, tid);
 
-        Specifications<BannerEntity> specifications = where(hasTenant(tid));
-        specifications = specifications.and(isEnabled());
-        specifications = specifications.and(isValid());
-
-        if (isNotBlank(category)) {
-            specifications = specifications.and(hasCategory(trimToNull(category)));
-        }
-
-        Sort sort = new Sort(Sort.Direction.DESC, "updated");
-
-        List<BannerEntity> entities = repository.findAll(where(specifications), sort);
-
-        return fromEntities(view, entities);
+        return fromEntities(view, placementMatrix.read(tid, trimToNull(category), null));
     }
 
     @Override
@@ -259,26 +293,9 @@ public class BannersServiceImpl implements BannersService {
 
         LOGGER.debug("Reading valid banners for category {} and tenant {}", category, tid);
 
-        Specifications<BannerEntity> specifications = where(hasTenant(tid));
-        specifications = specifications.and(isEnabled());
-        specifications = specifications.and(isValid());
-
-        if (isNotBlank(category)) {
-            specifications = specifications.and(hasCategory(trimToNull(category)));
-        }
-
-        if (isNotBlank(storeId)) {
-            specifications = specifications.and(hasStore(trimToNull(storeId)));
-        }
-
-        Sort sort = new Sort(Sort.Direction.DESC, "updated");
-
-        List<BannerEntity> entities = repository.findAll(where(specifications), sort);
-
-        return fromEntities(view, entities);
+        return fromEntities(view, placementMatrix.read(tid, trimToNull(category), trimToNull(storeId)));
     }
 
-
     @Override
     public Page<Banner> search(String tid, String query, Boolean isEnabled, Boolean isValid,
                                Date validFrom, Date validTo, View view, PageRequest request) {
@@ -324,15 +341,19 @@ public class BannersServiceImpl implements BannersService {
 
             Assert.notNull(item.getCategoryId(), "Invalid category id");
 
-            ImageSize imageSize = BANNER_SIZES.containsKey(item.getCategoryId())
-                    ? BANNER_SIZES.get(item.getCategoryId()) : DEFAULT_BANNER_SIZE;
+            ImageSize imageSize = renditionsEngine.getSize(tid, item.getCategoryId());
 
             String resourcesFolder = resourcesResolver.getCmsBannersPath(tid).toString();
 
-            String filename = storageService.store(file, tid, resourcesFolder, imageSize);
+            try (CmsUploadSpooler.Upload upload = uploadSpooler.spoolImage(file)) {
 
-            if (StringUtils.isNotBlank(filename)) {
-                item.setImage(filename);
+                String filename = contentStore.store(tid, resourcesFolder, upload.getFile(), imageSize, true,
+                        (stored, image) -> renditionsEngine.store(tid, resourcesFolder, stored, image),
+                        stored -> renditionsEngine.exist(tid, resourcesFolder, stored));
+
+                if (StringUtils.isNotBlank(filename)) {
+                    item.setImage(filename);
+                }
             }
 
         } catch (IOException e) {
@@ -350,12 +371,13 @@ public class BannersServiceImpl implements BannersService {
 
             Assert.notNull(item.getCategoryId(), "Invalid category id");
 
-            ImageSize imageSize = BANNER_SIZES.containsKey(item.getCategoryId())
-                    ? BANNER_SIZES.get(item.getCategoryId()) : DEFAULT_BANNER_SIZE;
+            ImageSize imageSize = renditionsEngine.getSize(tid, item.getCategoryId());
 
             String resourcesFolder = resourcesResolver.getCmsBannersPath(tid).toString();
 
-            String filename = storageService.store(file, tid, resourcesFolder, imageSize);
+            String filename = contentStore.store(tid, resourcesFolder, file, imageSize, true,
+                    (stored, image) -> renditionsEngine.store(tid, resourcesFolder, stored, image),
+                    stored -> renditionsEngine.exist(tid, resourcesFolder, stored));
 
             if (StringUtils.isNotBlank(filename)) {
                 item.setImage(filename);
@@ -381,14 +403,10 @@ public class BannersServiceImpl implements BannersService {
         List<Store> stores = new ArrayList<>();
 
         if (CollectionUtils.isNotEmpty(entity.getStores())) {
-            Store store;
-            for (String storeId : entity.getStores()) {
-                try {
-                    store = storesService.read(tid, storeId);
-                    stores.add(store);
-                } catch (EntityNotFoundException e) {
-                    LOGGER.trace("Store {} not found for tenant {}: {}", storeId, tid, ExceptionUtils.getMessage(e));
-                }
+            StoresBatchReader.Result result = storesBatchReader.readAll(tid, entity.getStores());
+            stores.addAll(result.getFound());
+            if (!result.getMissing().isEmpty()) {
+                LOGGER.trace("Stores {} not found for tenant {}", result.getMissing(), tid);
             }
         }
 
@@ -417,7 +435,92 @@ public class BannersServiceImpl implements BannersService {
         }
 
         entity = repository.save(entity);
+        changed(tid, id);
 
         return fromEntity(View.FULL, entity);
     }
+
+    private void changed(String tid, String id) {
+
+        validityIndex.invalidate(BANNER, tid);
+        // Reloaded once committed, a rolled back write leaves the placements untouched
+        CmsTransactions.afterCommit(() -> placementMatrix.update(tid, id));
+    }
+
+    private List<BannerEntity> findEnabled(String tid) {
+
+        Specifications<BannerEntity> specifications = where(hasTenant(tid));
+        specifications = specifications.and(isEnabled());
+
+        Sort sort = new Sort(Sort.Direction.DESC, "updated");
+
+        List<BannerEntity> entities = repository.findAll(where(specifications), sort);
+
+        // Mapping once initializes the lazy associations before the entities are kept detached
+        fromEntities(View.FULL, entities);
+
+        return entities;
+    }
+
+    private BannerEntity findDetached(String tid, String id) {
+
+        BannerEntity entity = repository.findOne(id);
+        if (entity == null || !tid.equals(entity.getTid())) {
+            return null;
+        }
+
+        fromEntity(View.FULL, entity);
+
+        return entity;
+    }
+
+    /**
+     * Deletes the images no longer referenced by any banner, and their renditions, once the transaction commits.
+     */
+    private void release(String tid, Set<String> filenames) {
+
+        String resourcesFolder = resourcesResolver.getCmsBannersPath(tid).toString();
+        contentStore.release(tid, resourcesFolder, filenames,
+                filename -> renditionsEngine.delete(tid, resourcesFolder, filename));
+    }
+
+    /**
+     * The filenames of the images of the banners of a tenant.
+    private Set<String> referencedMedia(String tid) {
+
+        Set<String> filenames = new HashSet<>();
+
+        Page<BannerEntity> page;
+        PageRequest request = new PageRequest(0, MEDIA_PAGE_SIZE, new Sort(Sort.Direction.ASC, "id"));
+        do {
+            page = repository.findAll(where(hasTenant(tid)), request);
+            for (BannerEntity entity : page) {
+                if (isNotBlank(entity.getImage())) {
+                    filenames.add(entity.getImage());
+                    filenames.addAll(renditionsEngine.renditionFilenames(tid, entity.getImage()));
+                }
+            }
+            request = (PageRequest) page.nextPageable();
+        } while (page.hasNext());
+
+        return filenames;
+    }
+
+    private List<CmsValidityIndex.Entry> loadValidity(String tid) {
+
+        Date now = new Date();
+
+        Specifications<BannerEntity> specifications = where(hasTenant(tid));
+        specifications = specifications.and(isEnabled());
+
+        List<CmsValidityIndex.Entry> entries = new ArrayList<>();
+        for (BannerEntity entity : repository.findAll(specifications)) {
+            if (entity.getValidTo() == null || !entity.getValidTo().before(now)) {
+                entries.add(new CmsValidityIndex.Entry(entity.getId(), entity.getValidFrom(), entity.getValidTo(),
+                        entity.getStores(), entity.getCategoryId()));
+            }
+        }
+
+        return entries;
+    }
 }
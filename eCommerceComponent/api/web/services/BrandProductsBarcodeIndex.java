@@ -0,0 +1,450 @@
+package com.retapps.smartbip.cms.services;
+
+import com.retapps.smartbip.cms.entities.BrandProductEntity;
+import com.retapps.smartbip.cms.repositories.BrandProductsRepository;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.retapps.smartbip.cms.repositories.BrandProductsSpecifications.hasTenant;
+import static org.springframework.data.jpa.domain.Specifications.where;
+
+/**
+ * In memory index of the brand product ids by tenant and barcode.
+ * <p>
+ * Numeric barcodes of up to 17 digits (EAN-8, EAN-13, UPC, GTIN-14) are packed with their length in a {@code long}
+ * and kept in an open addressing table with linear probing, so a lookup is a few array probes without allocations;
+ * other barcodes are kept in a hash map. The index of a tenant is loaded on first use, and all the tenants are
+ * preloaded in the background at startup. Writes update the index, and since other nodes can change the products the
+ * callers verify the product read by id and fall back to the database on a miss.
+ * <p>
+ * The products read by barcode are also kept, detached, in a bounded least recently used cache, so a repeated scan
+ * is served without a database round trip. A local write evicts its product now and after the commit, and a cached
+ * product is read again after {@code smartbip.cms.brandProducts.barcodeIndex.productCacheSeconds}, which bounds how
+ * long the writes of the other nodes stay unseen.
+ */
+@Component
+public class BrandProductsBarcodeIndex implements ApplicationListener<ContextRefreshedEvent> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BrandProductsBarcodeIndex.class);
+
+    private static final int PAGE_SIZE = 5000;
+
+    private static final int MAX_PACKED_DIGITS = 17;
+
+    private static final long EMPTY = -1;
+
+    /**
+     * Open addressing map from packed barcode to product id, removals shift back the following entries of the probe
+     * sequence so no tombstone is needed.
+     */
+    static class LongTable {
+
+        private long[] keys;
+
+        private String[] values;
+
+        private int size;
+
+        LongTable(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+            keys = new long[capacity];
+            values = new String[capacity];
+            Arrays.fill(keys, EMPTY);
+        }
+
+        String get(long key) {
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask; keys[i] != EMPTY; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        void put(long key, String value) {
+            if ((size + 1) * 2 > keys.length) {
+                resize();
+            }
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            for (; keys[i] != EMPTY; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    values[i] = value;
+                    return;
+                }
+            }
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+
+        void remove(long key) {
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            for (; keys[i] != key; i = (i + 1) & mask) {
+                if (keys[i] == EMPTY) {
+                    return;
+                }
+            }
+            size--;
+            // Shifts back the entries whose probe sequence crosses the freed slot
+            for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+                int home = mix(keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    i = j;
+                }
+            }
+            keys[i] = EMPTY;
+            values[i] = null;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            String[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new String[oldKeys.length * 2];
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int mix(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    private static class Tenant {
+
+        private final LongTable packed;
+
+        private final Map<String, String> others = new HashMap<>();
+
+        Tenant(int expected) {
+            packed = new LongTable(expected);
+        }
+
+        synchronized String get(String barcode) {
+            long key = pack(barcode);
+            return key != EMPTY ? packed.get(key) : others.get(barcode);
+        }
+
+        synchronized void put(String barcode, String id) {
+            long key = pack(barcode);
+            if (key != EMPTY) {
+                packed.put(key, id);
+            } else {
+                others.put(barcode, id);
+            }
+        }
+
+        synchronized void remove(String barcode) {
+            long key = pack(barcode);
+            if (key != EMPTY) {
+                packed.remove(key);
+            } else {
+                others.remove(barcode);
+            }
+        }
+
+        synchronized int size() {
+            return packed.size() + others.size();
+        }
+    }
+
+    private static class CachedProduct {
+
+        private final BrandProductEntity entity;
+
+        private final long expiresAt;
+
+        CachedProduct(BrandProductEntity entity, long expiresAt) {
+            this.entity = entity;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    @Value("${smartbip.cms.brandProducts.barcodeIndex.preload:true}")
+    private boolean preload;
+
+    @Value("${smartbip.cms.brandProducts.barcodeIndex.productCacheSize:10000}")
+    private int productCacheSize;
+
+    @Value("${smartbip.cms.brandProducts.barcodeIndex.productCacheSeconds:60}")
+    private long productCacheSeconds;
+
+    @Autowired
+    private BrandProductsRepository repository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private final ConcurrentMap<String, Tenant> tenants = new ConcurrentHashMap<>();
+
+    /**
+     * The locks serializing the loads and invalidations of a tenant, held outside the tenants map.
+     */
+    private final ConcurrentMap<String, Object> loadLocks = new ConcurrentHashMap<>();
+
+    private Map<String, CachedProduct> products;
+
+    @PostConstruct
+    void init() {
+
+        products = Collections.synchronizedMap(new LinkedHashMap<String, CachedProduct>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedProduct> eldest) {
+                return size() > productCacheSize;
+            }
+        });
+    }
+
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+
+        if (!preload || event.getApplicationContext().getParent() != null) {
+            return;
+        }
+
+        Thread thread = new Thread(this::preload, "brand-products-barcode-index");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * The id of the product of a tenant with the given barcode, null if not indexed.
+     */
+    public String find(String tid, String barcode) {
+
+        return barcode == null ? null : tenant(tid).get(barcode);
+    }
+
+    /**
+     * The cached product of a tenant with the given barcode, null if not cached or cached for too long.
+     */
+    public BrandProductEntity findProduct(String tid, String barcode) {
+
+        String id = find(tid, barcode);
+        if (id == null) {
+            return null;
+        }
+
+        CachedProduct product = products.get(id);
+        if (product == null || product.expiresAt < System.currentTimeMillis()) {
+            return null;
+        }
+
+        // The id of an evicted barcode may be reused by a product of another barcode
+        BrandProductEntity entity = product.entity;
+        return tid.equals(entity.getTid()) && barcode.equals(entity.getBarcode()) ? entity : null;
+    }
+
+    /**
+     * Caches a product read by barcode, its lazy associations must be initialized.
+     */
+    public void putProduct(BrandProductEntity entity) {
+
+        products.put(entity.getId(),
+                new CachedProduct(entity, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(productCacheSeconds)));
+    }
+
+    /**
+     * Indexes a written product, evicting its cached copy.
+     */
+    public void put(String tid, String barcode, String id) {
+
+        if (barcode != null && id != null) {
+            tenant(tid).put(barcode, id);
+            evict(id);
+        }
+    }
+
+    /**
+     * Indexes a product read from the database, keeping its cached copy.
+     */
+    public void index(String tid, String barcode, String id) {
+
+        if (barcode != null && id != null) {
+            tenant(tid).put(barcode, id);
+        }
+    }
+
+    public void remove(String tid, String barcode) {
+
+        Tenant tenant = tenants.get(tid);
+        if (tenant != null && barcode != null) {
+            String id = tenant.get(barcode);
+            tenant.remove(barcode);
+            if (id != null) {
+                evict(id);
+            }
+        }
+    }
+
+    public void invalidate(String tid) {
+
+        // Waits for a load in progress, whose rows may predate the invalidation
+        synchronized (loadLock(tid)) {
+            tenants.remove(tid);
+        }
+
+        Runnable evictTenant = () -> {
+            synchronized (products) {
+                products.values().removeIf(product -> tid.equals(product.entity.getTid()));
+            }
+        };
+        evictTenant.run();
+        CmsTransactions.afterCommit(evictTenant);
+    }
+
+    /**
+     * Evicts a written product now, and again after the commit since a concurrent read may cache the previous state.
+     */
+    private void evict(String id) {
+
+        products.remove(id);
+        CmsTransactions.afterCommit(() -> products.remove(id));
+    }
+
+    /**
+     * The index of a tenant, loaded on first use. The database is read outside the map, a compute would block the
+     * other tenants sharing the bin for the whole load, and a second caller waits for the load instead of repeating it.
+     */
+    private Tenant tenant(String tid) {
+
+        Tenant tenant = tenants.get(tid);
+        if (tenant != null) {
+            return tenant;
+        }
+
+        synchronized (loadLock(tid)) {
+            tenant = tenants.get(tid);
+            if (tenant == null) {
+                tenant = load(tid);
+                Tenant loaded = tenants.putIfAbsent(tid, tenant);
+                if (loaded != null) {
+                    tenant = loaded;
+                }
+            }
+            return tenant;
+        }
+    }
+
+    private Object loadLock(String tid) {
+
+        return loadLocks.computeIfAbsent(tid, k -> new Object());
+    }
+
+    private Tenant load(String tid) {
+
+        Tenant tenant = new Tenant((int) Math.min(Integer.MAX_VALUE / 4, repository.countByTid(tid)));
+
+        Page<BrandProductEntity> page;
+        PageRequest request = new PageRequest(0, PAGE_SIZE, new Sort(Sort.Direction.ASC, "id"));
+        do {
+            page = repository.findAll(where(hasTenant(tid)), request);
+            for (BrandProductEntity entity : page) {
+                if (entity.getBarcode() != null) {
+                    tenant.put(entity.getBarcode(), entity.getId());
+                }
+            }
+            request = (PageRequest) page.nextPageable();
+        } while (page.hasNext());
+
+        LOGGER.debug("Loaded barcode index of tenant {}: {} products", tid, tenant.size());
+
+        return tenant;
+    }
+
+    private void preload() {
+
+        long start = System.currentTimeMillis();
+
+        try {
+            Map<String, Tenant> loaded = new HashMap<>();
+
+            TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+            transactionTemplate.setReadOnly(true);
+
+            PageRequest request = new PageRequest(0, PAGE_SIZE, new Sort(Sort.Direction.ASC, "id"));
+            while (request != null) {
+                PageRequest current = request;
+                request = transactionTemplate.execute(status -> {
+                    Page<BrandProductEntity> page = repository.findAll(current);
+                    for (BrandProductEntity entity : page) {
+                        if (entity.getBarcode() != null) {
+                            loaded.computeIfAbsent(entity.getTid(), k -> new Tenant(PAGE_SIZE))
+                                    .put(entity.getBarcode(), entity.getId());
+                        }
+                    }
+                    return page.hasNext() ? (PageRequest) page.nextPageable() : null;
+                });
+            }
+
+            // Tenants loaded or written meanwhile are already up to date
+            for (Map.Entry<String, Tenant> tenant : loaded.entrySet()) {
+                tenants.putIfAbsent(tenant.getKey(), tenant.getValue());
+            }
+
+            LOGGER.info("Preloaded barcode index of {} tenants in {} ms", loaded.size(),
+                    System.currentTimeMillis() - start);
+
+        } catch (RuntimeException e) {
+            LOGGER.warn("Error preloading the barcode index: {}", ExceptionUtils.getMessage(e));
+        }
+    }
+
+    /**
+     * Packs a numeric barcode and its length in a long, {@link #EMPTY} if the barcode is not numeric or too long.
+     */
+    static long pack(String barcode) {
+
+        int length = barcode.length();
+        if (length == 0 || length > MAX_PACKED_DIGITS) {
+            return EMPTY;
+        }
+
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = barcode.charAt(i);
+            if (c < '0' || c > '9') {
+                return EMPTY;
+            }
+            value = value * 10 + (c - '0');
+        }
+
+        return (value << 5) | length;
+    }
+}
@@ -0,0 +1,557 @@
+package com.retapps.smartbip.cms.services;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.retapps.smartbip.cms.common.models.BrandProduct;
+import com.retapps.smartbip.cms.entities.BrandProductEntity;
+import com.retapps.smartbip.cms.repositories.BrandProductsRepository;
+import com.retapps.smartbip.common.services.View;
+import com.retapps.smartbip.common.utils.ResourcesLocationResolver;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.retapps.smartbip.cms.mappers.BrandProductMapper.fromEntity;
+import static com.retapps.smartbip.cms.mappers.BrandProductMapper.toEntity;
+import static com.retapps.smartbip.cms.repositories.BrandProductsSpecifications.hasTenant;
+import static org.springframework.data.jpa.domain.Specifications.where;
+
+/**
+ * Imports brand product catalogues in bulk.
+ * <p>
+ * The catalogue file, a CSV with a header row naming the brand product properties or a JSON array of brand products,
+ * is read as a stream and upserted in chunks: the existing products of the chunk barcodes are resolved with one
+ * query, then the chunk is saved and flushed in its own transaction, so the inserts and updates are sent in JDBC
+ * batches when the persistence unit enables them. A row updating an existing product only sets the properties it
+ * names, the others keep their value, and a replaced image is released once the chunk commits. A chunk that fails is
+ * saved again one product at a time, so a bad row fails alone. The rows repeating a barcode of the same chunk are
+ * counted as duplicates, the last one is saved.
+ * <p>
+ * The imports run one at a time in the background, with a bounded queue of waiting imports, and their progress is
+ * kept in the memory of the node running them, so an import is polled on the node that accepted it.
+ */
+@Component
+public class BrandProductsImportEngine {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BrandProductsImportEngine.class);
+
+    private static final int HISTORY_SIZE = 100;
+
+    public enum Format {
+        CSV, JSON
+    }
+
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    /**
+     * The state and progress of an import.
+     */
+    public static class Job implements Serializable {
+
+        private final String id;
+
+        private final String tid;
+
+        private final Format format;
+
+        private final Date queued = new Date();
+
+        private volatile State state = State.QUEUED;
+
+        private volatile int read;
+
+        private volatile int inserted;
+
+        private volatile int updated;
+
+        private volatile int failed;
+
+        private volatile int duplicates;
+
+        private volatile String error;
+
+        private volatile Date started;
+
+        private volatile Date finished;
+
+        Job(String id, String tid, Format format) {
+            this.id = id;
+            this.tid = tid;
+            this.format = format;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getTid() {
+            return tid;
+        }
+
+        public Format getFormat() {
+            return format;
+        }
+
+        public Date getQueued() {
+            return queued;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public int getRead() {
+            return read;
+        }
+
+        public int getInserted() {
+            return inserted;
+        }
+
+        public int getUpdated() {
+            return updated;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        /**
+         * The rows overridden by a later row of the same barcode.
+         */
+        public int getDuplicates() {
+            return duplicates;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public Date getStarted() {
+            return started;
+        }
+
+        public Date getFinished() {
+            return finished;
+        }
+
+        /**
+         * The products imported per second so far.
+         */
+        public double getThroughput() {
+            if (started == null) {
+                return 0;
+            }
+            long elapsed = (finished != null ? finished.getTime() : System.currentTimeMillis()) - started.getTime();
+            return elapsed == 0 ? 0 : (inserted + updated) * 1000d / elapsed;
+        }
+    }
+
+    /**
+     * Reads the rows of a catalogue one at a time as the properties they set, null at the end.
+     */
+    private interface Reader extends Closeable {
+
+        ObjectNode next() throws IOException;
+    }
+
+    @Value("${smartbip.cms.brandProducts.import.chunkSize:1000}")
+    private int chunkSize;
+
+    @Value("${smartbip.cms.brandProducts.import.queueCapacity:10}")
+    private int queueCapacity;
+
+    @Autowired
+    private BrandProductsRepository repository;
+
+    @Autowired
+    private BrandProductsBarcodeIndex barcodeIndex;
+
+    @Autowired
+    private BrandProductsSearchIndex searchIndex;
+
+    @Autowired
+    private CmsContentStore contentStore;
+
+    @Autowired
+    private ResourcesLocationResolver resourcesResolver;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+
+    private TransactionTemplate transactionTemplate;
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    void init() {
+
+        transactionTemplate = new TransactionTemplate(transactionManager);
+
+        AtomicInteger counter = new AtomicInteger();
+        executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "brand-products-import-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    @PreDestroy
+    void destroy() {
+
+        executor.shutdownNow();
+    }
+
+    /**
+     * Queues the import of a spooled catalogue, the upload is closed when the import ends.
+     *
+     * @throws RejectedExecutionException if the queue is full, the upload is closed
+     */
+    public synchronized Job submit(String tid, CmsUploadSpooler.Upload upload, Format format)
+            throws RejectedExecutionException {
+
+        Job job = new Job(UUID.randomUUID().toString(), tid, format);
+
+        try {
+            executor.execute(() -> {
+                try {
+                    run(job, upload.getFile());
+                } finally {
+                    upload.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            upload.close();
+            throw new RejectedExecutionException("Brand products import queue is full, cannot import for tenant "
+                    + tid, e);
+        }
+
+        jobs.put(job.getId(), job);
+
+        Iterator<Job> iterator = jobs.values().iterator();
+        while (jobs.size() > HISTORY_SIZE && iterator.hasNext()) {
+            Job oldest = iterator.next();
+            if (oldest.finished != null) {
+                iterator.remove();
+            }
+        }
+
+        LOGGER.debug("Queued brand products import {} for tenant {}", job.getId(), tid);
+
+        return job;
+    }
+
+    public synchronized Job read(String id) {
+
+        return jobs.get(id);
+    }
+
+    public synchronized List<Job> list(String tid) {
+
+        List<Job> result = new ArrayList<>();
+        for (Job job : jobs.values()) {
+            if (tid.equals(job.getTid())) {
+                result.add(job);
+            }
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    private void run(Job job, File file) {
+
+        job.started = new Date();
+        job.state = State.RUNNING;
+
+        try (Reader reader = job.format == Format.JSON ? jsonReader(file) : csvReader(file)) {
+
+            List<ObjectNode> chunk = new ArrayList<>(chunkSize);
+            ObjectNode row;
+            while ((row = reader.next()) != null) {
+                job.read++;
+                if (StringUtils.isBlank(barcode(row))) {
+                    job.failed++;
+                    continue;
+                }
+                chunk.add(row);
+                if (chunk.size() == chunkSize) {
+                    upsert(job, chunk);
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                upsert(job, chunk);
+            }
+
+            job.state = State.DONE;
+
+        } catch (IOException | RuntimeException e) {
+            job.error = ExceptionUtils.getMessage(e);
+            job.state = State.FAILED;
+            LOGGER.warn("Brand products import {} for tenant {} failed: {}", job.getId(), job.getTid(), job.error);
+        }
+
+        job.finished = new Date();
+
+        LOGGER.info("Brand products import {} for tenant {} {}: {} read, {} inserted, {} updated, {} duplicates, "
+                        + "{} failed, {} products/s", job.getId(), job.getTid(), job.state, job.read, job.inserted,
+                job.updated, job.duplicates, job.failed, String.format("%.1f", job.getThroughput()));
+    }
+
+    private void upsert(Job job, List<ObjectNode> chunk) {
+
+        String tid = job.getTid();
+
+        // The last row of a barcode wins
+        Map<String, ObjectNode> items = new LinkedHashMap<>();
+        for (ObjectNode row : chunk) {
+            items.put(barcode(row), row);
+        }
+        job.duplicates += chunk.size() - items.size();
+
+        try {
+            save(job, items);
+
+        } catch (RuntimeException e) {
+            LOGGER.debug("Error importing {} brand products for tenant {}, importing one at a time: {}", items.size(),
+                    tid, ExceptionUtils.getMessage(e));
+
+            int failed = 0;
+            for (Map.Entry<String, ObjectNode> item : items.entrySet()) {
+                try {
+                    save(job, Collections.singletonMap(item.getKey(), item.getValue()));
+                } catch (RuntimeException ex) {
+                    failed++;
+                    LOGGER.debug("Error importing brand product {} for tenant {}: {}", item.getKey(), tid,
+                            ExceptionUtils.getMessage(ex));
+                }
+            }
+            job.failed += failed;
+
+            if (failed > 0) {
+                LOGGER.warn("Error importing {} of {} brand products for tenant {}: {}", failed, items.size(), tid,
+                        ExceptionUtils.getMessage(e));
+            }
+        }
+
+        LOGGER.trace("Brand products import {}: {} read", job.getId(), job.read);
+    }
+
+    /**
+     * Saves the products by barcode in one transaction, counted once committed. The rows of existing products are
+     * merged into them, and the images they replace released.
+     */
+    private void save(Job job, Map<String, ObjectNode> items) {
+
+        String tid = job.getTid();
+        AtomicInteger updated = new AtomicInteger();
+
+        List<BrandProductEntity> saved = transactionTemplate.execute(status -> {
+
+            Map<String, BrandProductEntity> existing = new HashMap<>();
+            Specification<BrandProductEntity> specification = where(hasTenant(tid)).and(hasBarcodes(items.keySet()));
+            for (BrandProductEntity entity : repository.findAll(specification)) {
+                existing.put(entity.getBarcode(), entity);
+            }
+
+            Set<String> released = new HashSet<>();
+            List<BrandProductEntity> entities = new ArrayList<>(items.size());
+            for (Map.Entry<String, ObjectNode> row : items.entrySet()) {
+                BrandProductEntity previous = existing.get(row.getKey());
+                BrandProduct item = merge(previous, row.getValue());
+                item.setId(previous != null ? previous.getId() : null);
+                if (previous != null) {
+                    // Read before the save merges the new state into the managed entity
+                    if (StringUtils.isNotBlank(previous.getImage()) && !previous.getImage().equals(item.getImage())) {
+                        released.add(previous.getImage());
+                    }
+                }
+                entities.add(toEntity(tid, item));
+            }
+
+            List<BrandProductEntity> result = repository.save(entities);
+            entityManager.flush();
+            entityManager.clear();
+
+            if (!released.isEmpty()) {
+                contentStore.release(tid, resourcesResolver.getCmsBrandProductsPath(tid).toString(), released);
+            }
+
+            updated.set(existing.size());
+            return result;
+        });
+
+        job.inserted += items.size() - updated.get();
+        job.updated += updated.get();
+
+        for (BrandProductEntity entity : saved) {
+            barcodeIndex.put(tid, entity.getBarcode(), entity.getId());
+            searchIndex.put(tid, entity);
+        }
+    }
+
+    /**
+     * Sets the properties of a row on the model of an existing product, or on a new one.
+     */
+    private BrandProduct merge(BrandProductEntity existing, ObjectNode row) {
+
+        BrandProduct item = existing != null ? fromEntity(View.FULL, existing) : new BrandProduct();
+        try {
+            return objectMapper.readerForUpdating(item).readValue(row);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid brand product " + barcode(row) + ": "
+                    + ExceptionUtils.getMessage(e), e);
+        }
+    }
+
+    private static String barcode(ObjectNode row) {
+
+        JsonNode barcode = row.get("barcode");
+        return barcode == null || barcode.isNull() ? null : barcode.asText();
+    }
+
+    private Reader jsonReader(File file) throws IOException {
+
+        JsonParser parser = objectMapper.getFactory().createParser(file);
+        if (parser.nextToken() != JsonToken.START_ARRAY) {
+            parser.close();
+            throw new IOException("Expected a JSON array of brand products");
+        }
+
+        return new Reader() {
+
+            @Override
+            public ObjectNode next() throws IOException {
+                return parser.nextToken() == JsonToken.START_OBJECT ? objectMapper.readValue(parser, ObjectNode.class)
+                        : null;
+            }
+
+            @Override
+            public void close() throws IOException {
+                parser.close();
+            }
+        };
+    }
+
+    private Reader csvReader(File file) throws IOException {
+
+        BufferedReader input = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                StandardCharsets.UTF_8));
+
+        List<String> header = readCsvRow(input);
+        if (header == null) {
+            input.close();
+            throw new IOException("Empty CSV catalogue");
+        }
+        if (!header.isEmpty() && header.get(0).startsWith("\uFEFF")) {
+            header.set(0, header.get(0).substring(1));
+        }
+
+        return new Reader() {
+
+            @Override
+            public ObjectNode next() throws IOException {
+                List<String> row = readCsvRow(input);
+                if (row == null) {
+                    return null;
+                }
+                // An empty field keeps the value of an existing product
+                ObjectNode properties = objectMapper.createObjectNode();
+                for (int i = 0; i < header.size() && i < row.size(); i++) {
+                    if (!row.get(i).isEmpty()) {
+                        properties.put(header.get(i).trim(), row.get(i));
+                    }
+                }
+                return properties;
+            }
+
+            @Override
+            public void close() throws IOException {
+                input.close();
+            }
+        };
+    }
+
+    /**
+     * Reads a CSV row, quoted fields can contain separators, quotes and new lines. Null at the end of the input.
+     */
+    private static List<String> readCsvRow(BufferedReader input) throws IOException {
+
+        int c = input.read();
+        while (c == '\r' || c == '\n') {
+            c = input.read();
+        }
+        if (c == -1) {
+            return null;
+        }
+
+        List<String> row = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for (; c != -1; c = input.read()) {
+            if (quoted) {
+                if (c == '"') {
+                    input.mark(1);
+                    if (input.read() == '"') {
+                        field.append('"');
+                    } else {
+                        input.reset();
+                        quoted = false;
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                row.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n' || c == '\r') {
+                break;
+            } else {
+                field.append((char) c);
+            }
+        }
+
+        row.add(field.toString());
+        return row;
+    }
+
+    private static Specification<BrandProductEntity> hasBarcodes(Collection<String> barcodes) {
+
+        return (root, query, cb) -> root.get("barcode").in(barcodes);
+    }
+}
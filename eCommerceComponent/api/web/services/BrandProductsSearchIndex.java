@@ -0,0 +1,580 @@
+package com.retapps.smartbip.cms.services;
+
+import com.retapps.smartbip.cms.entities.BrandProductEntity;
+import com.retapps.smartbip.cms.repositories.BrandProductsRepository;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import static com.retapps.smartbip.cms.repositories.BrandProductsSpecifications.hasTenant;
+import static org.springframework.data.jpa.domain.Specifications.where;
+
+/**
+ * In memory full text index of the brand products by tenant, over name, brand and barcode.
+ * <p>
+ * The fields are split in lower case terms without accents, and every term points to the products containing it with
+ * the weight of the best field it appears in. A query term matches the equal terms, the terms it is a prefix of, and
+ * from four characters the terms within one edit (two from eight characters) found among the terms sharing a trigram
+ * or made of the same letters, since a transposition in a short term can leave no trigram in common. A product matches
+ * when every query term matches, and is ranked by the sum of the field weights of its matches, exact matches first.
+ * <p>
+ * The searches of a tenant run concurrently under a read lock, the writes take the write lock. The index of a tenant
+ * is loaded on first use; once older than the configured refresh interval it is rebuilt in the background, so the
+ * changes made by other nodes show up, while the searches keep using the previous index. The writes of this node
+ * update the index immediately, and are replayed on an index being rebuilt.
+ */
+@Component
+public class BrandProductsSearchIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BrandProductsSearchIndex.class);
+
+    private static final int PAGE_SIZE = 5000;
+
+    private static final int NAME_WEIGHT = 3;
+
+    private static final int BRAND_WEIGHT = 2;
+
+    private static final int BARCODE_WEIGHT = 1;
+
+    private static final int EXACT_BOOST = 3;
+
+    private static final int PREFIX_BOOST = 2;
+
+    private static final int FUZZY_BOOST = 1;
+
+    private static final int MIN_FUZZY_LENGTH = 4;
+
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+    /**
+     * A page of ranked product ids and the total number of matching products.
+     */
+    public static class Hits {
+
+        private final List<String> ids;
+
+        private final long total;
+
+        Hits(List<String> ids, long total) {
+            this.ids = ids;
+            this.total = total;
+        }
+
+        public List<String> getIds() {
+            return ids;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+    }
+
+    private static class Document {
+
+        private final String name;
+
+        private final Set<String> terms;
+
+        Document(String name, Set<String> terms) {
+            this.name = name;
+            this.terms = terms;
+        }
+    }
+
+    private static class Tenant {
+
+        private final long loaded = System.currentTimeMillis();
+
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private final Map<String, Document> documents = new HashMap<>();
+
+        private final NavigableMap<String, Map<String, Integer>> postings = new TreeMap<>();
+
+        private final Map<String, Set<String>> trigrams = new HashMap<>();
+
+        private final Map<String, Set<String>> anagrams = new HashMap<>();
+
+        void put(String id, String name, String brand, String barcode) {
+
+            lock.writeLock().lock();
+            try {
+                putLocked(id, name, brand, barcode);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(String id) {
+
+            lock.writeLock().lock();
+            try {
+                removeLocked(id);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        Hits search(List<String> queryTerms, int offset, int limit) {
+
+            lock.readLock().lock();
+            try {
+                return searchLocked(queryTerms, offset, limit);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        int size() {
+
+            lock.readLock().lock();
+            try {
+                return documents.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private void putLocked(String id, String name, String brand, String barcode) {
+
+            removeLocked(id);
+
+            Map<String, Integer> weights = new HashMap<>();
+            addTerms(weights, name, NAME_WEIGHT);
+            addTerms(weights, brand, BRAND_WEIGHT);
+            addTerms(weights, barcode, BARCODE_WEIGHT);
+
+            for (Map.Entry<String, Integer> weight : weights.entrySet()) {
+                Map<String, Integer> posting = postings.get(weight.getKey());
+                if (posting == null) {
+                    posting = new HashMap<>();
+                    postings.put(weight.getKey(), posting);
+                    for (String trigram : trigrams(weight.getKey())) {
+                        trigrams.computeIfAbsent(trigram, k -> new HashSet<>()).add(weight.getKey());
+                    }
+                    anagrams.computeIfAbsent(letters(weight.getKey()), k -> new HashSet<>()).add(weight.getKey());
+                }
+                posting.put(id, weight.getValue());
+            }
+
+            documents.put(id, new Document(name != null ? normalize(name) : "", weights.keySet()));
+        }
+
+        private void removeLocked(String id) {
+
+            Document document = documents.remove(id);
+            if (document == null) {
+                return;
+            }
+
+            for (String term : document.terms) {
+                Map<String, Integer> posting = postings.get(term);
+                if (posting != null && posting.remove(id) != null && posting.isEmpty()) {
+                    postings.remove(term);
+                    for (String trigram : trigrams(term)) {
+                        Set<String> terms = trigrams.get(trigram);
+                        if (terms != null && terms.remove(term) && terms.isEmpty()) {
+                            trigrams.remove(trigram);
+                        }
+                    }
+                    String letters = letters(term);
+                    Set<String> terms = anagrams.get(letters);
+                    if (terms != null && terms.remove(term) && terms.isEmpty()) {
+                        anagrams.remove(letters);
+                    }
+                }
+            }
+        }
+
+        private Hits searchLocked(List<String> queryTerms, int offset, int limit) {
+
+            Map<String, Integer> scores = null;
+            for (String queryTerm : queryTerms) {
+                Map<String, Integer> termScores = match(queryTerm);
+                if (scores == null) {
+                    scores = termScores;
+                } else {
+                    Map<String, Integer> merged = new HashMap<>();
+                    for (Map.Entry<String, Integer> score : scores.entrySet()) {
+                        Integer termScore = termScores.get(score.getKey());
+                        if (termScore != null) {
+                            merged.put(score.getKey(), score.getValue() + termScore);
+                        }
+                    }
+                    scores = merged;
+                }
+                if (scores.isEmpty()) {
+                    break;
+                }
+            }
+
+            if (scores == null || scores.isEmpty() || offset >= scores.size()) {
+                return new Hits(Collections.emptyList(), scores == null ? 0 : scores.size());
+            }
+
+            Map<String, Integer> ranked = scores;
+            List<String> ids = new ArrayList<>(ranked.keySet());
+            ids.sort((a, b) -> {
+                int result = Integer.compare(ranked.get(b), ranked.get(a));
+                if (result == 0) {
+                    result = documents.get(a).name.compareTo(documents.get(b).name);
+                }
+                return result != 0 ? result : a.compareTo(b);
+            });
+
+            return new Hits(new ArrayList<>(ids.subList(offset, Math.min(ids.size(), offset + limit))), ids.size());
+        }
+
+        /**
+         * The products matching a query term with their best score.
+         */
+        private Map<String, Integer> match(String queryTerm) {
+
+            Map<String, Integer> scores = new HashMap<>();
+
+            for (Map.Entry<String, Map<String, Integer>> posting
+                    : postings.subMap(queryTerm, true, queryTerm + Character.MAX_VALUE, true).entrySet()) {
+                score(scores, posting.getValue(), posting.getKey().equals(queryTerm) ? EXACT_BOOST : PREFIX_BOOST);
+            }
+
+            if (queryTerm.length() >= MIN_FUZZY_LENGTH) {
+                int maxEdits = queryTerm.length() >= 8 ? 2 : 1;
+                // Short terms with a transposition can share no trigram, but are made of the same letters
+                Set<String> candidates = new HashSet<>(anagrams.getOrDefault(letters(queryTerm),
+                        Collections.emptySet()));
+                for (String trigram : trigrams(queryTerm)) {
+                    Set<String> terms = trigrams.get(trigram);
+                    if (terms != null) {
+                        candidates.addAll(terms);
+                    }
+                }
+                for (String candidate : candidates) {
+                    if (!candidate.startsWith(queryTerm) && withinEdits(queryTerm, candidate, maxEdits)) {
+                        score(scores, postings.get(candidate), FUZZY_BOOST);
+                    }
+                }
+            }
+
+            return scores;
+        }
+
+        private static void score(Map<String, Integer> scores, Map<String, Integer> posting, int boost) {
+            for (Map.Entry<String, Integer> weight : posting.entrySet()) {
+                scores.merge(weight.getKey(), weight.getValue() * boost, Math::max);
+            }
+        }
+
+        private static void addTerms(Map<String, Integer> weights, String value, int weight) {
+            for (String term : terms(value)) {
+                weights.merge(term, weight, Math::max);
+            }
+        }
+    }
+
+    @Value("${smartbip.cms.brandProducts.searchIndex.refreshMinutes:5}")
+    private long refreshMinutes;
+
+    @Autowired
+    private BrandProductsRepository repository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private final ConcurrentMap<String, Tenant> tenants = new ConcurrentHashMap<>();
+
+    /**
+     * The locks serializing the first load and the invalidations of a tenant.
+     */
+    private final ConcurrentMap<String, Object> loadLocks = new ConcurrentHashMap<>();
+
+    /**
+     * The writes made while the index of a tenant is rebuilt, replayed on the rebuilt index.
+     */
+    private final ConcurrentMap<String, List<Consumer<Tenant>>> journals = new ConcurrentHashMap<>();
+
+    private TransactionTemplate transactionTemplate;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    void init() {
+
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setReadOnly(true);
+
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "brand-products-search-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    void destroy() {
+
+        executor.shutdownNow();
+    }
+
+    /**
+     * Searches the products of a tenant, a blank query matches nothing.
+     */
+    public Hits search(String tid, String query, int offset, int limit) {
+
+        List<String> queryTerms = terms(query);
+        if (queryTerms.isEmpty()) {
+            return new Hits(Collections.emptyList(), 0);
+        }
+
+        long start = System.nanoTime();
+
+        Hits hits = tenant(tid).search(queryTerms, offset, limit);
+
+        LOGGER.trace("Searched brand products {} for tenant {}: {} hits in {} us", queryTerms, tid, hits.getTotal(),
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+
+        return hits;
+    }
+
+    /**
+     * Indexes a created or updated product, if the index of its tenant is loaded.
+     */
+    public void put(String tid, BrandProductEntity entity) {
+
+        String id = entity.getId();
+        String name = entity.getName();
+        String brand = entity.getBrand();
+        String barcode = entity.getBarcode();
+        write(tid, tenant -> tenant.put(id, name, brand, barcode));
+    }
+
+    public void remove(String tid, String id) {
+
+        write(tid, tenant -> tenant.remove(id));
+    }
+
+    public void invalidate(String tid) {
+
+        synchronized (loadLock(tid)) {
+            tenants.remove(tid);
+        }
+    }
+
+    /**
+     * Applies a write to the loaded index of a tenant, to the index being rebuilt, and to the rebuilt index if swapped
+     * in meanwhile. The writes are idempotent, so applying one twice is harmless.
+     */
+    private void write(String tid, Consumer<Tenant> operation) {
+
+        Tenant tenant = tenants.get(tid);
+        if (tenant == null) {
+            return;
+        }
+        operation.accept(tenant);
+
+        List<Consumer<Tenant>> journal = journals.get(tid);
+        if (journal != null) {
+            synchronized (journal) {
+                journal.add(operation);
+            }
+        }
+
+        Tenant current = tenants.get(tid);
+        if (current != null && current != tenant) {
+            operation.accept(current);
+        }
+    }
+
+    private Tenant tenant(String tid) {
+
+        Tenant tenant = tenants.get(tid);
+        if (tenant == null) {
+            return loadFirst(tid);
+        }
+
+        if (System.currentTimeMillis() - tenant.loaded > TimeUnit.MINUTES.toMillis(refreshMinutes)) {
+            refresh(tid, tenant);
+        }
+        return tenant;
+    }
+
+    /**
+     * Loads the index of a tenant on first use outside the tenants map, so the load never holds the map bin, while the
+     * other searches of the tenant wait for it.
+     */
+    private Tenant loadFirst(String tid) {
+
+        synchronized (loadLock(tid)) {
+            Tenant tenant = tenants.get(tid);
+            if (tenant == null) {
+                tenant = load(tid);
+                Tenant loaded = tenants.putIfAbsent(tid, tenant);
+                if (loaded != null) {
+                    tenant = loaded;
+                }
+            }
+            return tenant;
+        }
+    }
+
+    private Object loadLock(String tid) {
+
+        return loadLocks.computeIfAbsent(tid, k -> new Object());
+    }
+
+    /**
+     * Rebuilds the index of a tenant in the background, once at a time, and swaps it in unless invalidated meanwhile.
+     */
+    private void refresh(String tid, Tenant stale) {
+
+        List<Consumer<Tenant>> journal = new ArrayList<>();
+        if (journals.putIfAbsent(tid, journal) != null) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    Tenant fresh = transactionTemplate.execute(status -> load(tid));
+                    synchronized (journal) {
+                        journal.forEach(operation -> operation.accept(fresh));
+                        tenants.replace(tid, stale, fresh);
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Error rebuilding search index of tenant {}: {}", tid, ExceptionUtils.getMessage(e));
+                } finally {
+                    journals.remove(tid, journal);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            journals.remove(tid, journal);
+        }
+    }
+
+    private Tenant load(String tid) {
+
+        long start = System.currentTimeMillis();
+
+        Tenant tenant = new Tenant();
+
+        Page<BrandProductEntity> page;
+        PageRequest request = new PageRequest(0, PAGE_SIZE, new Sort(Sort.Direction.ASC, "id"));
+        do {
+            page = repository.findAll(where(hasTenant(tid)), request);
+            for (BrandProductEntity entity : page) {
+                tenant.put(entity.getId(), entity.getName(), entity.getBrand(), entity.getBarcode());
+            }
+            request = (PageRequest) page.nextPageable();
+        } while (page.hasNext());
+
+        LOGGER.debug("Loaded search index of tenant {}: {} products in {} ms", tid, tenant.size(),
+                System.currentTimeMillis() - start);
+
+        return tenant;
+    }
+
+    static List<String> terms(String value) {
+
+        if (StringUtils.isBlank(value)) {
+            return Collections.emptyList();
+        }
+
+        List<String> terms = new ArrayList<>();
+        for (String term : SEPARATORS.split(normalize(value))) {
+            if (!term.isEmpty() && !terms.contains(term)) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    private static String normalize(String value) {
+
+        return MARKS.matcher(Normalizer.normalize(value, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * The letters of a term in order, equal for the terms differing by transpositions.
+     */
+    private static String letters(String term) {
+
+        char[] letters = term.toCharArray();
+        Arrays.sort(letters);
+        return new String(letters);
+    }
+
+    private static Set<String> trigrams(String term) {
+
+        String padded = " " + term + " ";
+        Set<String> trigrams = new HashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            trigrams.add(padded.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+
+    /**
+     * Whether the optimal string alignment distance of two terms, a transposition counting as one edit, is at most
+     * the given number of edits.
+     */
+    static boolean withinEdits(String a, String b, int maxEdits) {
+
+        if (Math.abs(a.length() - b.length()) > maxEdits) {
+            return false;
+        }
+
+        int[] previous2 = new int[b.length() + 1];
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    current[j] = Math.min(current[j], previous2[j - 2] + 1);
+                }
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > maxEdits) {
+                return false;
+            }
+            int[] recycled = previous2;
+            previous2 = previous;
+            previous = current;
+            current = recycled;
+        }
+
+        return previous[b.length()] <= maxEdits;
+    }
+}
@@ -5,7 +5,6 @@ import com.retapps.smartbip.cms.common.services.BrandProductsService;
 import com.retapps.smartbip.cms.entities.BrandProductEntity;
 import com.retapps.smartbip.cms.repositories.BrandProductsRepository;
 import com.retapps.smartbip.common.models.ImageSize;
-import com.retapps.smartbip.common.services.StorageService;
 import com.retapps.smartbip.common.services.View;
 import com.retapps.smartbip.common.utils.ResourcesLocationResolver;
 import org.apache.commons.lang3.StringUtils;
@@ -16,6 +15,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.domain.Specifications;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -23,15 +23,23 @@ import org.springframework.util.Assert;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.annotation.PostConstruct;
 import javax.persistence.EntityExistsException;
 import javax.persistence.EntityNotFoundException;
 import javax.validation.constraints.NotNull;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 import static com.retapps.smartbip.cms.mappers.BrandProductMapper.*;
 import static com.retapps.smartbip.cms.repositories.BrandProductsSpecifications.*;
-import static org.apache.commons.lang3.StringUtils.isNotBlank;
 import static org.springframework.data.jpa.domain.Specifications.where;
 
 @Service
@@ -43,14 +51,35 @@ public class BrandProductsServiceImpl implements BrandProductsService {
 
     private static final ImageSize DEFAULT_IMAGE_SIZE = new ImageSize(800, 800);
 
+    private static final int MEDIA_PAGE_SIZE = 500;
+
     @Autowired
     private BrandProductsRepository repository;
 
     @Autowired
-    private StorageService storageService;
+    private ResourcesLocationResolver resourcesResolver;
 
     @Autowired
-    private ResourcesLocationResolver resourcesResolver;
+    private CmsUploadSpooler uploadSpooler;
+
+    @Autowired
+    private CmsContentStore contentStore;
+
+    @Autowired
+    private CmsMediaCollector mediaCollector;
+
+    @Autowired
+    private BrandProductsBarcodeIndex barcodeIndex;
+
+    @Autowired
+    private BrandProductsSearchIndex searchIndex;
+
+    @PostConstruct
+    void init() {
+
+        mediaCollector.register("brandproducts", BrandProductEntity.class, resourcesResolver::getCmsBrandProductsPath,
+                this::referencedMedia);
+    }
 
     @Override
     public Page<BrandProduct> readAll(@NotNull String tid, View view, PageRequest request) {
@@ -84,10 +113,7 @@ public class BrandProductsServiceImpl implements BrandProductsService {
 
         LOGGER.debug("Reading brand product by barcode {} for tenant {}", barcode, tid);
 
-        Specifications<BrandProductEntity> specifications = where(hasTenant(tid));
-        specifications = specifications.and(hasBarcode(barcode));
-
-        BrandProductEntity entity = repository.findOne(specifications);
+        BrandProductEntity entity = findByBarcode(tid, barcode);
         if (entity == null) {
             throw new EntityNotFoundException("Brand product by barcode" + barcode + " not found for tenant " + tid);
         }
@@ -108,7 +134,10 @@ public class BrandProductsServiceImpl implements BrandProductsService {
             throw new EntityExistsException("Brand product " + item.getId() + " already exists for tenant " + tid);
         }
 
-        return fromEntity(View.SUMMARY, repository.save(entity));
+        entity = repository.save(entity);
+        index(tid, entity);
+
+        return fromEntity(View.SUMMARY, entity);
     }
 
     @Override
@@ -120,11 +149,22 @@ public class BrandProductsServiceImpl implements BrandProductsService {
 
         BrandProductEntity entity = toEntity(tid, item);
 
-        if (!repository.exists(item.getId())) {
+        BrandProductEntity previous = repository.findOne(item.getId());
+        if (previous == null) {
             throw new EntityNotFoundException("Brand product #" + item.getId() + " not found for tenant " + tid);
         }
 
-        return fromEntity(View.SUMMARY, repository.save(entity));
+        // Read before the save merges the new state into the managed entity
+        String previousImage = previous.getImage();
+
+        entity = repository.save(entity);
+        index(tid, entity);
+
+        if (!Objects.equals(previousImage, entity.getImage())) {
+            release(tid, Collections.singleton(previousImage));
+        }
+
+        return fromEntity(View.SUMMARY, entity);
     }
 
     @Override
@@ -146,11 +186,20 @@ public class BrandProductsServiceImpl implements BrandProductsService {
 
         LOGGER.debug("Deleting brand product {} for tenant {}", id, tid);
 
-        if (!repository.exists(id)) {
+        BrandProductEntity entity = repository.findOne(id);
+        if (entity == null) {
             throw new EntityNotFoundException("Brand product #" + id + " not found for tenant " + tid);
         }
 
-        repository.delete(id);
+        repository.delete(entity);
+
+        String barcode = entity.getBarcode();
+        CmsTransactions.afterCommit(() -> {
+            barcodeIndex.remove(tid, barcode);
+            searchIndex.remove(tid, id);
+        });
+
+        release(tid, Collections.singleton(entity.getImage()));
     }
 
     @Override
@@ -158,7 +207,15 @@ public class BrandProductsServiceImpl implements BrandProductsService {
 
         LOGGER.debug("Deleting all brand products for tenant {}", tid);
 
+        Set<String> released = referencedMedia(tid);
+
         repository.deleteByTid(tid);
+        CmsTransactions.afterCommit(() -> {
+            barcodeIndex.invalidate(tid);
+            searchIndex.invalidate(tid);
+        });
+
+        release(tid, released);
     }
 
     @Override
@@ -166,16 +223,31 @@ public class BrandProductsServiceImpl implements BrandProductsService {
 
         LOGGER.debug("Searching all brand products for query {} and request {} and tenant {}", query, request, tid);
 
-        Specifications<BrandProductEntity> specifications = where(hasTenant(tid));
+        if (StringUtils.isBlank(query)) {
+            return readAll(tid, view, request);
+        }
 
-        if (isNotBlank(query)) {
-            specifications = specifications.and(likesQuery(query));
-            LOGGER.trace("Adding query specification: {}", query);
+        BrandProductsSearchIndex.Hits hits = searchIndex.search(tid, query, request.getOffset(), request.getPageSize());
+
+        // Reads the page by id and keeps the ranking of the index
+        Map<String, BrandProductEntity> entities = new HashMap<>();
+        for (BrandProductEntity entity : repository.findAll(hits.getIds())) {
+            if (tid.equals(entity.getTid())) {
+                entities.put(entity.getId(), entity);
+            }
         }
 
-        Page<BrandProductEntity> entities = repository.findAll(where(specifications), request);
+        List<BrandProductEntity> ranked = new ArrayList<>(entities.size());
+        for (String id : hits.getIds()) {
+            BrandProductEntity entity = entities.get(id);
+            if (entity != null) {
+                ranked.add(entity);
+            }
+        }
 
-        return new PageImpl<>(fromEntities(view, entities.getContent()), request, entities.getTotalElements());
+        LOGGER.trace("Found {} brand products for query {}", hits.getTotal(), query);
+
+        return new PageImpl<>(fromEntities(view, ranked), request, hits.getTotal());
     }
 
     @Override
@@ -194,10 +266,14 @@ public class BrandProductsServiceImpl implements BrandProductsService {
         try {
             String resourcesFolder = resourcesResolver.getCmsBrandProductsPath(tid).toString();
 
-            String filename = storageService.store(file, tid, resourcesFolder, DEFAULT_IMAGE_SIZE);
+            try (CmsUploadSpooler.Upload upload = uploadSpooler.spoolImage(file)) {
 
-            if (StringUtils.isNotBlank(filename)) {
-                item.setImage(filename);
+                String filename = contentStore.store(tid, resourcesFolder, upload.getFile(), DEFAULT_IMAGE_SIZE,
+                        false);
+
+                if (StringUtils.isNotBlank(filename)) {
+                    item.setImage(filename);
+                }
             }
         } catch (IOException e) {
             LOGGER.warn("Error storing multipart image {} for brand product #{}: {}",
@@ -215,7 +291,7 @@ public class BrandProductsServiceImpl implements BrandProductsService {
         try {
             String resourcesFolder = resourcesResolver.getCmsBrandProductsPath(tid).toString();
 
-            String filename = storageService.store(file, tid, resourcesFolder, DEFAULT_IMAGE_SIZE);
+            String filename = contentStore.store(tid, resourcesFolder, file, DEFAULT_IMAGE_SIZE, false);
 
             if (StringUtils.isNotBlank(filename)) {
                 item.setImage(filename);
@@ -227,4 +303,88 @@ public class BrandProductsServiceImpl implements BrandProductsService {
 
         return update(tid, item);
     }
+
+    /**
+     * Deletes the images no longer referenced by any brand product once the transaction commits.
+     */
+    private void release(String tid, Set<String> filenames) {
+
+        contentStore.release(tid, resourcesResolver.getCmsBrandProductsPath(tid).toString(), filenames);
+    }
+
+    /**
+     * The filenames of the images of the brand products of a tenant.
+     */
+    private Set<String> referencedMedia(String tid) {
+
+        Set<String> filenames = new HashSet<>();
+
+        Page<BrandProductEntity> page;
+        PageRequest request = new PageRequest(0, MEDIA_PAGE_SIZE, new Sort(Sort.Direction.ASC, "id"));
+        do {
+            page = repository.findAll(where(hasTenant(tid)), request);
+            for (BrandProductEntity entity : page) {
+                if (StringUtils.isNotBlank(entity.getImage())) {
+                    filenames.add(entity.getImage());
+                }
+            }
+            request = (PageRequest) page.nextPageable();
+        } while (page.hasNext());
+
+        return filenames;
+    }
+
+    /**
+     * Indexes a saved product once the transaction commits, so the indexes never publish a rolled back write.
+     */
+    private void index(String tid, BrandProductEntity entity) {
+
+        CmsTransactions.afterCommit(() -> {
+            barcodeIndex.put(tid, entity.getBarcode(), entity.getId());
+            searchIndex.put(tid, entity);
+        });
+    }
+
+    /**
+     * Reads the product of a barcode from the products cached by the barcode index, else by id from the barcode
+     * index, or by barcode from the database when the index misses or the indexed product changed.
+     */
+    private BrandProductEntity findByBarcode(String tid, String barcode) {
+
+        BrandProductEntity cached = barcodeIndex.findProduct(tid, barcode);
+        if (cached != null) {
+            return cached;
+        }
+
+        BrandProductEntity entity = findIndexed(tid, barcode);
+        if (entity != null) {
+            // Mapping once initializes the lazy associations before the entity is cached detached
+            fromEntity(View.FULL, entity);
+            barcodeIndex.putProduct(entity);
+        }
+
+        return entity;
+    }
+
+    private BrandProductEntity findIndexed(String tid, String barcode) {
+
+        String id = barcodeIndex.find(tid, barcode);
+        if (id != null) {
+            BrandProductEntity entity = repository.findOne(id);
+            if (entity != null && tid.equals(entity.getTid()) && barcode.equals(entity.getBarcode())) {
+                return entity;
+            }
+            barcodeIndex.remove(tid, barcode);
+        }
+
+        Specifications<BrandProductEntity> specifications = where(hasTenant(tid));
+        specifications = specifications.and(hasBarcode(barcode));
+
+        BrandProductEntity entity = repository.findOne(specifications);
+        if (entity != null) {
+            barcodeIndex.index(tid, barcode, entity.getId());
+        }
+
+        return entity;
+    }
 }
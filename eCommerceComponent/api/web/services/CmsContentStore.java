@@ -0,0 +1,392 @@
+package com.retapps.smartbip.cms.services;
+
+import com.retapps.smartbip.common.models.ImageSize;
+import com.retapps.smartbip.common.services.StorageService;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Content addressed store of the CMS images.
+ * <p>
+ * An uploaded image is identified by the SHA-256 of its content and the target size: the storage output is a pure
+ * function of both, so the same image uploaded for many banners, contents or products of a tenant is encoded and
+ * written once, and every entity gets the same filename. The filename stored for a content is recorded in a marker
+ * file named after the hash in the {@value #CONTENT_FOLDER} subfolder, on the storage shared by all the nodes.
+ * <p>
+ * The key is the hash of the upload, not of the normalized output: hashing the output would need the image decoded,
+ * resized and encoded first, which is the work the deduplication saves. A reused image gets the companion files the
+ * store asks for, the derivatives and those rendered from the decoded image, when they are missing, so content first
+ * stored without them gets them on its next upload.
+ * <p>
+ * The store keeps no reference counts: an image released by an entity is deleted, after the transaction commits,
+ * only if no entity of the folder references it anymore, as read from the entity tables. The releases are queued and
+ * processed in the background every {@code smartbip.cms.images.releaseDelaySeconds}, reading the references of a
+ * folder once for all the images released meanwhile, off the request threads; the releases still queued at shutdown
+ * are left to the {@link CmsMediaCollector}. An image reused by a deduplicated store is touched, so the grace period
+ * of the release (and of the collector) protects it until the entity referencing it is committed.
+ */
+@Component
+public class CmsContentStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CmsContentStore.class);
+
+    public static final String CONTENT_FOLDER = ".content";
+
+    @Value("${smartbip.cms.images.deduplication:true}")
+    private boolean enabled;
+
+    @Value("${smartbip.cms.images.releaseGraceMinutes:10}")
+    private long releaseGraceMinutes;
+
+    @Value("${smartbip.cms.images.releaseDelaySeconds:5}")
+    private long releaseDelaySeconds;
+
+    @Autowired
+    private StorageService storageService;
+
+    @Autowired
+    private CmsImageDerivativesEngine derivativesEngine;
+
+    @Autowired
+    private CmsMediaCollector mediaCollector;
+
+    /**
+     * The released images of a tenant folder waiting to be processed, with their deletion callbacks.
+     */
+    private final Map<List<String>, Map<String, Consumer<String>>> pendingReleases = new HashMap<>();
+
+    private final ScheduledExecutorService releaser = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cms-content-release");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PreDestroy
+    void destroy() {
+
+        releaser.shutdownNow();
+    }
+
+    /**
+     * Stores an image resized to the given size, or reuses the already stored copy of the same content.
+     *
+     * @param derivatives whether to store the image derivatives too
+     * @return the stored filename
+     */
+    public String store(String tid, String resourcesFolder, File file, ImageSize size, boolean derivatives)
+            throws IOException {
+
+        return store(tid, resourcesFolder, file, size, derivatives, null);
+    }
+
+    /**
+     * Stores an image resized to the given size, or reuses the already stored copy of the same content.
+     *
+     * @param derivatives whether to store the image derivatives too
+     * @param decoded     called with the filename and the decoded upload when a new image is stored, to render its
+     *                    companion files from the same decode, may be null
+     * @return the stored filename
+     */
+    public String store(String tid, String resourcesFolder, File file, ImageSize size, boolean derivatives,
+                        BiConsumer<String, BufferedImage> decoded) throws IOException {
+
+        return store(tid, resourcesFolder, file, size, derivatives, decoded, null);
+    }
+
+    /**
+     * Stores an image resized to the given size, or reuses the already stored copy of the same content.
+     *
+     * @param derivatives whether to store the image derivatives too
+     * @param decoded     called with the filename and the decoded upload when a new image is stored, or a reused one
+     *                    misses its companion files, to render them from the same decode, may be null
+     * @param companions  whether the companion files rendered by {@code decoded} exist for a stored filename, null to
+     *                    render them on every reuse
+     * @return the stored filename
+     */
+    public String store(String tid, String resourcesFolder, File file, ImageSize size, boolean derivatives,
+                        BiConsumer<String, BufferedImage> decoded, Predicate<String> companions) throws IOException {
+
+        if (!enabled) {
+            return storeNew(tid, resourcesFolder, file, size, derivatives, decoded);
+        }
+
+        String hash = hash(file) + "-" + size.getWidth() + "x" + size.getHeight();
+        Path marker = Paths.get(resourcesFolder, CONTENT_FOLDER, hash);
+
+        String filename = reuse(resourcesFolder, marker);
+        if (filename != null) {
+            LOGGER.trace("Image {} for tenant {} already stored as {}", file.getName(), tid, filename);
+
+            boolean missingDerivatives = derivatives && !derivativesEngine.exist(resourcesFolder, filename);
+            boolean missingCompanions = decoded != null && (companions == null || !companions.test(filename));
+            if (missingDerivatives || missingCompanions) {
+                complete(tid, resourcesFolder, file, filename, missingDerivatives,
+                        missingCompanions ? decoded : null);
+            }
+            return filename;
+        }
+
+        // Two concurrent stores of the same content both write their copy, the last marker written is reused
+        filename = storeNew(tid, resourcesFolder, file, size, derivatives, decoded);
+        if (StringUtils.isNotBlank(filename)) {
+            mark(marker, filename);
+        }
+        return filename;
+    }
+
+    /**
+     * Releases images no longer referenced by an entity, queued after the current transaction commits or at once
+     * outside a transaction.
+     *
+     * @see #release(String, String, Collection, Consumer)
+     */
+    public void release(String tid, String resourcesFolder, Collection<String> filenames) {
+
+        release(tid, resourcesFolder, filenames, null);
+    }
+
+    /**
+     * Releases images no longer referenced by an entity, queued after the current transaction commits or at once
+     * outside a transaction. Every released image not referenced by any entity of the folder when the queue is
+     * processed, and not stored or reused within the grace period, is deleted with its derivatives.
+     *
+     * @param deleted called with the filename of every image deleted, to delete its companion files
+     */
+    public void release(String tid, String resourcesFolder, Collection<String> filenames, Consumer<String> deleted) {
+
+        Set<String> released = new LinkedHashSet<>();
+        for (String filename : filenames) {
+            if (StringUtils.isNotBlank(filename)) {
+                released.add(filename);
+            }
+        }
+        if (released.isEmpty()) {
+            return;
+        }
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    queue(tid, resourcesFolder, released, deleted);
+                }
+            });
+        } else {
+            queue(tid, resourcesFolder, released, deleted);
+        }
+    }
+
+    /**
+     * The filenames referenced by the entities of a tenant in a folder, with their derivatives.
+     */
+    public Set<String> referenced(String tid, String resourcesFolder) {
+
+        return mediaCollector.referenced(tid, Paths.get(resourcesFolder));
+    }
+
+    /**
+     * Deletes an image and its derivatives unless referenced, or stored or reused within the grace period.
+     *
+     * @param deleted called with the filename if the image is deleted, may be null
+     * @return true if the image was deleted
+     */
+    public boolean delete(String tid, String resourcesFolder, String filename, Set<String> referenced,
+                          Consumer<String> deleted) throws IOException {
+
+        Path path = Paths.get(resourcesFolder, filename);
+        if (referenced.contains(filename) || !Files.exists(path)) {
+            return false;
+        }
+
+        long graceLimit = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(releaseGraceMinutes);
+        if (Files.getLastModifiedTime(path).toMillis() > graceLimit) {
+            LOGGER.trace("Keeping released image {} for tenant {} stored within the grace period", filename, tid);
+            return false;
+        }
+
+        storageService.delete(tid, resourcesFolder, filename);
+        derivativesEngine.delete(tid, resourcesFolder, filename);
+        if (deleted != null) {
+            deleted.accept(filename);
+        }
+
+        LOGGER.trace("Deleted released image {} for tenant {}", filename, tid);
+        return true;
+    }
+
+    /**
+     * Queues released images, the first release of a folder schedules the processing of the folder.
+     */
+    private void queue(String tid, String resourcesFolder, Set<String> filenames, Consumer<String> deleted) {
+
+        List<String> key = Arrays.asList(tid, resourcesFolder);
+        synchronized (pendingReleases) {
+            Map<String, Consumer<String>> pending = pendingReleases.get(key);
+            if (pending == null) {
+                pending = new LinkedHashMap<>();
+                pendingReleases.put(key, pending);
+                try {
+                    releaser.schedule(() -> releaseNow(tid, resourcesFolder), releaseDelaySeconds, TimeUnit.SECONDS);
+                } catch (RejectedExecutionException e) {
+                    pendingReleases.remove(key);
+                    LOGGER.debug("Not releasing {} images for tenant {} at shutdown, left to the collector",
+                            filenames.size(), tid);
+                    return;
+                }
+            }
+            for (String filename : filenames) {
+                pending.put(filename, deleted);
+            }
+        }
+    }
+
+    private void releaseNow(String tid, String resourcesFolder) {
+
+        Map<String, Consumer<String>> filenames;
+        synchronized (pendingReleases) {
+            filenames = pendingReleases.remove(Arrays.asList(tid, resourcesFolder));
+        }
+        if (filenames == null || filenames.isEmpty()) {
+            return;
+        }
+
+        try {
+            Set<String> referenced = referenced(tid, resourcesFolder);
+            for (Map.Entry<String, Consumer<String>> filename : filenames.entrySet()) {
+                try {
+                    delete(tid, resourcesFolder, filename.getKey(), referenced, filename.getValue());
+                } catch (IOException e) {
+                    LOGGER.debug("Error deleting released image {} for tenant {}, left to the collector: {}",
+                            filename.getKey(), tid, ExceptionUtils.getMessage(e));
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("Error releasing {} images for tenant {}, left to the collector: {}", filenames.size(), tid,
+                    ExceptionUtils.getMessage(e));
+        }
+    }
+
+    /**
+     * The stored image of a content, touched so it is not deleted while the entity is saved, null if not stored.
+     */
+    private String reuse(String resourcesFolder, Path marker) throws IOException {
+
+        String filename;
+        try {
+            filename = new String(Files.readAllBytes(marker), StandardCharsets.UTF_8).trim();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        try {
+            Files.setLastModifiedTime(Paths.get(resourcesFolder, filename),
+                    FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        return filename;
+    }
+
+    /**
+     * Stores the missing companion files of a reused image from the upload.
+     */
+    private void complete(String tid, String resourcesFolder, File file, String filename, boolean derivatives,
+                          BiConsumer<String, BufferedImage> decoded) {
+
+        try {
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                return;
+            }
+            if (derivatives) {
+                derivativesEngine.store(tid, resourcesFolder, filename, image);
+            }
+            if (decoded != null) {
+                decoded.accept(filename, image);
+            }
+            LOGGER.trace("Completed the companion files of reused image {} for tenant {}", filename, tid);
+        } catch (IOException e) {
+            LOGGER.warn("Error completing the companion files of image {} for tenant {}: {}", filename, tid,
+                    ExceptionUtils.getMessage(e));
+        }
+    }
+
+    private void mark(Path marker, String filename) throws IOException {
+
+        Files.createDirectories(marker.getParent());
+        Path temp = marker.resolveSibling(marker.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        Files.write(temp, filename.getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, marker, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private String storeNew(String tid, String resourcesFolder, File file, ImageSize size, boolean derivatives,
+                            BiConsumer<String, BufferedImage> decoded) throws IOException {
+
+        String filename = storageService.store(file, tid, resourcesFolder, size);
+        if (StringUtils.isBlank(filename) || !derivatives && decoded == null) {
+            return filename;
+        }
+
+        // Decoded once for the derivatives and the companion files, the storage service resizes from its own decode
+        BufferedImage image = null;
+        try {
+            image = ImageIO.read(file);
+        } catch (IOException e) {
+            LOGGER.warn("Error decoding image {} stored as {} for tenant {}: {}", file.getName(), filename, tid,
+                    ExceptionUtils.getMessage(e));
+        }
+
+        if (derivatives) {
+            derivativesEngine.store(tid, resourcesFolder, filename, image);
+        }
+        if (decoded != null && image != null) {
+            decoded.accept(filename, image);
+        }
+        return filename;
+    }
+
+    private static String hash(File file) throws IOException {
+
+        try (InputStream input = Files.newInputStream(file.toPath())) {
+            return DigestUtils.sha256Hex(input);
+        }
+    }
+}
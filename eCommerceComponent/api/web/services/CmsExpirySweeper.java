@@ -0,0 +1,320 @@
+package com.retapps.smartbip.cms.services;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.springframework.data.jpa.domain.Specifications.where;
+
+/**
+ * Deletes the expired CMS entities and their media in chunks.
+ * <p>
+ * The expired rows are read in id order, one chunk at a time, after the last id of the previous chunk: the rows are
+ * deleted and committed in their own transaction. The media of the deleted rows are deleted in parallel through the
+ * {@link CmsContentStore} once the rows are swept, or every {@code mediaBatchSize} files, unless still referenced by
+ * an entity: the references are read once per tenant folder for the whole batch instead of once per chunk. A sweep
+ * never holds all the expired rows in memory nor a transaction open for its whole duration, and since every chunk is
+ * committed a sweep stopped by a crash resumes from the rows left the next time it runs.
+ * <p>
+ * A media file whose deletion fails, or whose rows were committed just before a crash, is left behind: it is counted
+ * in the report and removed later by the {@link CmsMediaCollector}, since no entity references it anymore.
+ */
+@Component
+public class CmsExpirySweeper {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CmsExpirySweeper.class);
+
+    /**
+     * The expired entities of a CMS service.
+     */
+    public interface Source<E> {
+
+        Page<E> read(Specification<E> specification, Pageable pageable);
+
+        void delete(List<String> ids);
+
+        String getId(E entity);
+
+        String getTid(E entity);
+
+        Collection<String> getMedia(E entity);
+
+        String getFolder(String tid);
+    }
+
+    /**
+     * The counts and throughput of a sweep.
+     */
+    public static class Report {
+
+        private final String name;
+
+        private int rows;
+
+        private int failedRows;
+
+        private int media;
+
+        private int failedMedia;
+
+        private int chunks;
+
+        private long elapsedMillis;
+
+        Report(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        public int getFailedRows() {
+            return failedRows;
+        }
+
+        public int getMedia() {
+            return media;
+        }
+
+        public int getFailedMedia() {
+            return failedMedia;
+        }
+
+        public int getChunks() {
+            return chunks;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public double getRowsPerSecond() {
+            return elapsedMillis == 0 ? rows : rows * 1000d / elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d rows deleted (%d failed), %d media deleted (%d failed) in %d chunks, %d ms, %.1f rows/s",
+                    name, rows, failedRows, media, failedMedia, chunks, elapsedMillis, getRowsPerSecond());
+        }
+    }
+
+    private static class Item {
+
+        private final String id;
+
+        private final String tid;
+
+        private final String folder;
+
+        private final Collection<String> media;
+
+        Item(String id, String tid, String folder, Collection<String> media) {
+            this.id = id;
+            this.tid = tid;
+            this.folder = folder;
+            this.media = media;
+        }
+    }
+
+    @Value("${smartbip.cms.expiry.chunkSize:200}")
+    private int chunkSize;
+
+    @Value("${smartbip.cms.expiry.threads:4}")
+    private int threads;
+
+    @Value("${smartbip.cms.expiry.mediaBatchSize:10000}")
+    private int mediaBatchSize;
+
+    @Autowired
+    private CmsContentStore contentStore;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate transactionTemplate;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    void init() {
+
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "cms-expiry-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    void destroy() {
+
+        executor.shutdownNow();
+    }
+
+    /**
+     * Deletes the entities matching the expired specification and their media.
+     */
+    public <E> Report sweep(String name, Specification<E> expired, Source<E> source) {
+
+        LOGGER.debug("Sweeping expired {} in chunks of {}", name, chunkSize);
+
+        Report report = new Report(name);
+        long start = System.currentTimeMillis();
+
+        // The media of the deleted rows, deleted in batches spanning many chunks
+        List<Item> deletedItems = new ArrayList<>();
+        int deletedMedia = 0;
+
+        String cursor = null;
+        while (true) {
+
+            String after = cursor;
+            List<Item> chunk = transactionTemplate.execute(status -> read(source, expired, after));
+            if (chunk.isEmpty()) {
+                break;
+            }
+            cursor = chunk.get(chunk.size() - 1).id;
+
+            List<String> ids = new ArrayList<>(chunk.size());
+            for (Item item : chunk) {
+                ids.add(item.id);
+            }
+
+            boolean deleted = false;
+            try {
+                transactionTemplate.execute(status -> {
+                    source.delete(ids);
+                    return null;
+                });
+                report.rows += ids.size();
+                deleted = true;
+            } catch (RuntimeException e) {
+                report.failedRows += ids.size();
+                LOGGER.warn("Error deleting {} expired {} after {}: {}", ids.size(), name, after,
+                        ExceptionUtils.getMessage(e));
+            }
+
+            if (deleted) {
+                for (Item item : chunk) {
+                    if (!item.media.isEmpty()) {
+                        deletedItems.add(item);
+                        deletedMedia += item.media.size();
+                    }
+                }
+                if (deletedMedia >= mediaBatchSize) {
+                    deleteMedia(deletedItems, report);
+                    deletedItems.clear();
+                    deletedMedia = 0;
+                }
+            }
+            report.chunks++;
+
+            LOGGER.trace("Swept chunk {} of expired {}, {} rows deleted so far", report.chunks, name, report.rows);
+        }
+
+        if (!deletedItems.isEmpty()) {
+            deleteMedia(deletedItems, report);
+        }
+
+        report.elapsedMillis = System.currentTimeMillis() - start;
+
+        LOGGER.info("Expired sweep {}", report);
+
+        return report;
+    }
+
+    private <E> List<Item> read(Source<E> source, Specification<E> expired, String after) {
+
+        Specification<E> specification = after == null ? expired : where(expired).and(idGreaterThan(after));
+
+        List<Item> items = new ArrayList<>(chunkSize);
+        for (E entity : source.read(specification, new PageRequest(0, chunkSize, new Sort(Sort.Direction.ASC, "id")))) {
+            String tid = source.getTid(entity);
+            Collection<String> media = source.getMedia(entity);
+            items.add(new Item(source.getId(entity), tid, media.isEmpty() ? null : source.getFolder(tid),
+                    new ArrayList<>(media)));
+        }
+        return items;
+    }
+
+    private void deleteMedia(List<Item> items, Report report) {
+
+        int failed = report.failedMedia;
+
+        // The references left are read once per tenant folder, after the rows of the batch are committed
+        Map<String, Set<String>> referenced = new HashMap<>();
+
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (Item item : items) {
+            if (item.media.isEmpty()) {
+                continue;
+            }
+            Set<String> references = referenced.computeIfAbsent(item.folder,
+                    folder -> contentStore.referenced(item.tid, folder));
+            for (String filename : item.media) {
+                futures.add(executor.submit(() -> {
+                    try {
+                        return contentStore.delete(item.tid, item.folder, filename, references, null);
+                    } catch (Exception e) {
+                        LOGGER.debug("Error deleting media {} of {} for tenant {}: {}", filename, item.id, item.tid,
+                                ExceptionUtils.getMessage(e));
+                        return null;
+                    }
+                }));
+            }
+        }
+
+        for (Future<Boolean> future : futures) {
+            try {
+                Boolean deleted = future.get();
+                if (deleted == null) {
+                    report.failedMedia++;
+                } else if (deleted) {
+                    report.media++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while deleting media of " + report.getName(), e);
+            } catch (ExecutionException e) {
+                report.failedMedia++;
+            }
+        }
+
+        if (report.failedMedia > failed) {
+            LOGGER.warn("{} media of expired {} not deleted, left to the media collector", report.failedMedia - failed,
+                    report.getName());
+        }
+    }
+
+    private static <E> Specification<E> idGreaterThan(String id) {
+
+        return (root, query, cb) -> cb.greaterThan(root.<String>get("id"), id);
+    }
+}
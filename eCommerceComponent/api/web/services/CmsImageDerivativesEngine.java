@@ -0,0 +1,246 @@
+package com.retapps.smartbip.cms.services;
+
+import com.retapps.smartbip.common.services.StorageService;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.annotation.PostConstruct;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Produces the smaller renditions (derivatives) of the CMS images, so list screens do not download full size images.
+ * <p>
+ * The derivatives are configured as a comma separated list of {@code name:WIDTHxHEIGHT}, every derivative is scaled
+ * from a single decode of the source image and stored next to it as {@code <name>_<derivative>.jpg} (progressive
+ * JPEG) and, when an ImageIO WebP writer is available, also as {@code <name>_<derivative>.webp}. Image decorators
+ * build the per size URLs with {@link #derivativeFilename(String, String, String)}.
+ */
+@Component
+public class CmsImageDerivativesEngine {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CmsImageDerivativesEngine.class);
+
+    public static final String FORMAT_JPEG = "jpg";
+
+    public static final String FORMAT_WEBP = "webp";
+
+    private static final float QUALITY = 0.75f;
+
+    @Autowired
+    private StorageService storageService;
+
+    @Value("${smartbip.cms.images.derivatives:thumb:240x240,medium:600x600}")
+    private String derivativesConfiguration;
+
+    private final Map<String, int[]> derivatives = new LinkedHashMap<>();
+
+    private boolean webpAvailable;
+
+    @PostConstruct
+    void init() {
+
+        for (String derivative : StringUtils.split(derivativesConfiguration, ',')) {
+            String[] nameAndSize = StringUtils.split(derivative.trim(), ':');
+            String[] size = StringUtils.split(nameAndSize[1], 'x');
+            derivatives.put(nameAndSize[0], new int[]{Integer.parseInt(size[0]), Integer.parseInt(size[1])});
+        }
+
+        webpAvailable = ImageIO.getImageWritersByFormatName(FORMAT_WEBP).hasNext();
+
+        LOGGER.info("CMS image derivatives {} (WebP {})", derivatives.keySet(), webpAvailable ? "enabled" : "not available");
+    }
+
+    public Map<String, int[]> getDerivatives() {
+
+        return Collections.unmodifiableMap(derivatives);
+    }
+
+    public static String derivativeFilename(String filename, String derivative, String format) {
+
+        return FilenameUtils.getBaseName(filename) + "_" + derivative + "." + format;
+    }
+
+    /**
+     * The filenames of all the derivatives of an image, in every format.
+     */
+    public Set<String> derivativeFilenames(String filename) {
+
+        Set<String> filenames = new HashSet<>();
+        for (String derivative : derivatives.keySet()) {
+            for (String format : new String[]{FORMAT_JPEG, FORMAT_WEBP}) {
+                filenames.add(derivativeFilename(filename, derivative, format));
+            }
+        }
+        return filenames;
+    }
+
+    /**
+     * Whether all the derivatives of an image are stored, in every format available.
+     */
+    public boolean exist(String resourcesFolder, String filename) {
+
+        for (String derivative : derivatives.keySet()) {
+            if (!Files.exists(Paths.get(resourcesFolder, derivativeFilename(filename, derivative, FORMAT_JPEG)))
+                    || webpAvailable && !Files.exists(Paths.get(resourcesFolder,
+                    derivativeFilename(filename, derivative, FORMAT_WEBP)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void store(String tid, String resourcesFolder, String filename, MultipartFile file) {
+
+        try (InputStream input = file.getInputStream()) {
+            store(tid, resourcesFolder, filename, ImageIO.read(input));
+        } catch (IOException e) {
+            LOGGER.warn("Error reading multipart image {} for derivatives: {}", file.getOriginalFilename(),
+                    ExceptionUtils.getMessage(e));
+        }
+    }
+
+    public void store(String tid, String resourcesFolder, String filename, File file) {
+
+        try {
+            store(tid, resourcesFolder, filename, ImageIO.read(file));
+        } catch (IOException e) {
+            LOGGER.warn("Error reading image {} for derivatives: {}", file.getName(), ExceptionUtils.getMessage(e));
+        }
+    }
+
+    /**
+     * Stores all the derivatives of an already decoded image.
+     */
+    public void store(String tid, String resourcesFolder, String filename, BufferedImage image) throws IOException {
+
+        if (image == null || StringUtils.isBlank(filename)) {
+            LOGGER.debug("No image to build derivatives of {} for tenant {}", filename, tid);
+            return;
+        }
+
+        for (Map.Entry<String, int[]> derivative : derivatives.entrySet()) {
+
+            BufferedImage scaled = scale(image, derivative.getValue()[0], derivative.getValue()[1]);
+
+            storageService.store(encode(scaled, FORMAT_JPEG), tid,
+                    derivativeFilename(filename, derivative.getKey(), FORMAT_JPEG), resourcesFolder);
+
+            if (webpAvailable) {
+                storageService.store(encode(scaled, FORMAT_WEBP), tid,
+                        derivativeFilename(filename, derivative.getKey(), FORMAT_WEBP), resourcesFolder);
+            }
+        }
+
+        LOGGER.trace("Stored derivatives {} of image {} for tenant {}", derivatives.keySet(), filename, tid);
+    }
+
+    /**
+     * Deletes all the derivatives of an image, missing ones are ignored.
+     */
+    public void delete(String tid, String resourcesFolder, String filename) {
+
+        if (StringUtils.isBlank(filename)) {
+            return;
+        }
+
+        for (String derivativeFilename : derivativeFilenames(filename)) {
+            try {
+                storageService.delete(tid, resourcesFolder, derivativeFilename);
+            } catch (IOException e) {
+                LOGGER.trace("Error deleting derivative {}: {}", derivativeFilename, ExceptionUtils.getMessage(e));
+            }
+        }
+    }
+
+    /**
+     * Encodes an image as a progressive, compressed image of the given format.
+     */
+    static byte[] encode(BufferedImage image, String format) throws IOException {
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new IOException("No image writer for format " + format);
+        }
+
+        ImageWriter writer = writers.next();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(output)) {
+
+            writer.setOutput(stream);
+
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteProgressive()) {
+                param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            }
+            if (param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                if (param.getCompressionType() == null && param.getCompressionTypes() != null) {
+                    param.setCompressionType(param.getCompressionTypes()[0]);
+                }
+                param.setCompressionQuality(QUALITY);
+            }
+
+            writer.write(null, new IIOImage(image, null, null), param);
+
+        } finally {
+            writer.dispose();
+        }
+
+        return output.toByteArray();
+    }
+
+    /**
+     * Scales the image to fit the given bounds keeping the aspect ratio, smaller images are returned as they are.
+     */
+    static BufferedImage scale(BufferedImage image, int maxWidth, int maxHeight) {
+
+        double ratio = Math.min((double) maxWidth / image.getWidth(), (double) maxHeight / image.getHeight());
+        if (ratio >= 1 && image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+        ratio = Math.min(ratio, 1);
+
+        int width = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        return scaled;
+    }
+}
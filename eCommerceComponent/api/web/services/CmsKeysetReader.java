@@ -0,0 +1,115 @@
+package com.retapps.smartbip.cms.services;
+
+import com.retapps.smartbip.basis.engines.KeysetPage;
+import com.retapps.smartbip.basis.engines.KeysetPager;
+import com.retapps.smartbip.cms.common.models.Banner;
+import com.retapps.smartbip.cms.common.models.BrandProduct;
+import com.retapps.smartbip.cms.common.models.Content;
+import com.retapps.smartbip.cms.common.models.Leaflet;
+import com.retapps.smartbip.cms.entities.BannerEntity;
+import com.retapps.smartbip.cms.entities.BrandProductEntity;
+import com.retapps.smartbip.cms.entities.ContentEntity;
+import com.retapps.smartbip.cms.entities.LeafletEntity;
+import com.retapps.smartbip.cms.mappers.BannerMapper;
+import com.retapps.smartbip.cms.mappers.BrandProductMapper;
+import com.retapps.smartbip.cms.mappers.ContentMapper;
+import com.retapps.smartbip.cms.mappers.LeafletMapper;
+import com.retapps.smartbip.cms.repositories.BannersSpecifications;
+import com.retapps.smartbip.cms.repositories.BrandProductsSpecifications;
+import com.retapps.smartbip.cms.repositories.ContentsSpecifications;
+import com.retapps.smartbip.cms.repositories.LeafletsSpecifications;
+import com.retapps.smartbip.common.services.View;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specifications;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.validation.constraints.NotNull;
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+import static org.springframework.data.jpa.domain.Specifications.where;
+
+/**
+ * Keyset paginated listings of the CMS entities of a tenant, optionally filtered by query like the services
+ * {@code search}, in id order. Every page costs the same whatever its depth and no count is run unless requested,
+ * so exports and infinite scroll clients can walk whole collections.
+ */
+@Component
+@Transactional(readOnly = true)
+public class CmsKeysetReader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CmsKeysetReader.class);
+
+    private static final String SORT_PROPERTY = "id";
+
+    @Autowired
+    private KeysetPager pager;
+
+    public KeysetPage<Leaflet> readLeaflets(@NotNull String tid, String query, View view, String cursor, int size,
+                                            boolean count) {
+
+        LOGGER.debug("Reading leaflets for query {} after {} and tenant {}", query, cursor, tid);
+
+        Specifications<LeafletEntity> specifications = where(LeafletsSpecifications.hasTenant(tid));
+        if (isNotBlank(query)) {
+            specifications = specifications.and(LeafletsSpecifications.likesQuery(query));
+        }
+
+        KeysetPage<LeafletEntity> page = pager.seek(LeafletEntity.class, specifications, SORT_PROPERTY,
+                Sort.Direction.ASC, cursor, size, count);
+
+        return new KeysetPage<>(LeafletMapper.fromEntities(view, page.getItems()), page.getNext(), page.getTotal());
+    }
+
+    public KeysetPage<Banner> readBanners(@NotNull String tid, String query, View view, String cursor, int size,
+                                          boolean count) {
+
+        LOGGER.debug("Reading banners for query {} after {} and tenant {}", query, cursor, tid);
+
+        Specifications<BannerEntity> specifications = where(BannersSpecifications.hasTenant(tid));
+        if (isNotBlank(query)) {
+            specifications = specifications.and(BannersSpecifications.likesQuery(query));
+        }
+
+        KeysetPage<BannerEntity> page = pager.seek(BannerEntity.class, specifications, SORT_PROPERTY,
+                Sort.Direction.ASC, cursor, size, count);
+
+        return new KeysetPage<>(BannerMapper.fromEntities(view, page.getItems()), page.getNext(), page.getTotal());
+    }
+
+    public KeysetPage<Content> readContents(@NotNull String tid, String query, View view, String cursor, int size,
+                                            boolean count) {
+
+        LOGGER.debug("Reading contents for query {} after {} and tenant {}", query, cursor, tid);
+
+        Specifications<ContentEntity> specifications = where(ContentsSpecifications.hasTenant(tid));
+        if (isNotBlank(query)) {
+            specifications = specifications.and(ContentsSpecifications.likesQuery(query));
+        }
+
+        KeysetPage<ContentEntity> page = pager.seek(ContentEntity.class, specifications, SORT_PROPERTY,
+                Sort.Direction.ASC, cursor, size, count);
+
+        return new KeysetPage<>(ContentMapper.fromEntities(view, page.getItems()), page.getNext(), page.getTotal());
+    }
+
+    public KeysetPage<BrandProduct> readBrandProducts(@NotNull String tid, String query, View view, String cursor,
+                                                      int size, boolean count) {
+
+        LOGGER.debug("Reading brand products for query {} after {} and tenant {}", query, cursor, tid);
+
+        Specifications<BrandProductEntity> specifications = where(BrandProductsSpecifications.hasTenant(tid));
+        if (isNotBlank(query)) {
+            specifications = specifications.and(BrandProductsSpecifications.likesQuery(query));
+        }
+
+        KeysetPage<BrandProductEntity> page = pager.seek(BrandProductEntity.class, specifications, SORT_PROPERTY,
+                Sort.Direction.ASC, cursor, size, count);
+
+        return new KeysetPage<>(BrandProductMapper.fromEntities(view, page.getItems()), page.getNext(),
+                page.getTotal());
+    }
+}
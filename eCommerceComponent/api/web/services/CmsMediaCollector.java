@@ -0,0 +1,451 @@
+package com.retapps.smartbip.cms.services;
+
+import com.retapps.smartbip.common.services.StorageService;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.FileSystemUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Garbage collector of the CMS media no longer referenced by any entity.
+ * <p>
+ * Replacing a cover image or an image, or removing a leaflet page, leaves the previous file in the tenant folder.
+ * For every registered CMS module and tenant the collector loads the set of filenames referenced by the entities of
+ * every module sharing the folder, together with their derivatives, then walks the tenant folder with a directory
+ * stream and deletes the files not in the set and older than a grace period, so files stored by an update still in
+ * progress are never collected. The references are read again before deleting, and an image reused by the
+ * {@link CmsContentStore} is touched, so an orphan referenced again while the folder is walked is kept. Abandoned
+ * download {@code .part} folders and stale deduplication markers are removed too. The tenants are those with entities
+ * and those with a folder on disk, so the media left by a tenant whose entities are all deleted are collected as well.
+ * The deletions are rate limited, and in dry run mode the orphaned files are only reported.
+ * <p>
+ * The scheduled collection walks the shared storage, so it is enabled with {@code smartbip.cms.media.gc.enabled} on
+ * one node only.
+ */
+@Component
+public class CmsMediaCollector {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CmsMediaCollector.class);
+
+    private static final int MAX_REPORTED_ORPHANS = 1000;
+
+    private static final String PART_SUFFIX = ".part";
+
+    private static final String PROBE_TID = "cms-media-gc-probe";
+
+    /**
+     * The report of a collection of a tenant folder.
+     */
+    public static class Report {
+
+        private final String module;
+
+        private final String tid;
+
+        private final boolean dryRun;
+
+        private int scanned;
+
+        private int referenced;
+
+        private int orphaned;
+
+        private int deleted;
+
+        private long orphanedBytes;
+
+        private final List<String> orphans = new ArrayList<>();
+
+        Report(String module, String tid, boolean dryRun) {
+            this.module = module;
+            this.tid = tid;
+            this.dryRun = dryRun;
+        }
+
+        public String getModule() {
+            return module;
+        }
+
+        public String getTid() {
+            return tid;
+        }
+
+        public boolean isDryRun() {
+            return dryRun;
+        }
+
+        public int getScanned() {
+            return scanned;
+        }
+
+        public int getReferenced() {
+            return referenced;
+        }
+
+        public int getOrphaned() {
+            return orphaned;
+        }
+
+        public int getDeleted() {
+            return deleted;
+        }
+
+        public long getOrphanedBytes() {
+            return orphanedBytes;
+        }
+
+        /**
+         * The first orphaned filenames found.
+         */
+        public List<String> getOrphans() {
+            return orphans;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s of tenant %s%s: %d files scanned, %d referenced, %d orphaned (%d bytes), %d deleted",
+                    module, tid, dryRun ? " (dry run)" : "", scanned, referenced, orphaned, orphanedBytes, deleted);
+        }
+    }
+
+    private static class Module {
+
+        private final Class<?> entityClass;
+
+        private final Function<String, Path> folder;
+
+        private final Function<String, Set<String>> referenced;
+
+        Module(Class<?> entityClass, Function<String, Path> folder, Function<String, Set<String>> referenced) {
+            this.entityClass = entityClass;
+            this.folder = folder;
+            this.referenced = referenced;
+        }
+    }
+
+    @Value("${smartbip.cms.media.gc.enabled:false}")
+    private boolean enabled;
+
+    @Value("${smartbip.cms.media.gc.intervalHours:24}")
+    private long intervalHours;
+
+    @Value("${smartbip.cms.media.gc.graceHours:72}")
+    private long graceHours;
+
+    @Value("${smartbip.cms.media.gc.deletesPerSecond:20}")
+    private int deletesPerSecond;
+
+    @Value("${smartbip.cms.media.gc.dryRun:false}")
+    private boolean dryRun;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private StorageService storageService;
+
+    @Autowired
+    private CmsImageDerivativesEngine derivativesEngine;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate transactionTemplate;
+
+    private final Map<String, Module> modules = new LinkedHashMap<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cms-media-gc");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    void init() {
+
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setReadOnly(true);
+        // Also read after the commit of a write transaction, when releasing its images
+        transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+        if (enabled && intervalHours > 0) {
+            scheduler.scheduleWithFixedDelay(this::collectAll, intervalHours, intervalHours, TimeUnit.HOURS);
+            LOGGER.info("CMS media garbage collector scheduled every {} hours, grace {} hours{}", intervalHours,
+                    graceHours, dryRun ? " (dry run)" : "");
+        }
+    }
+
+    @PreDestroy
+    void destroy() {
+
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Registers a CMS module: the folder of a tenant and the filenames referenced by the entities of a tenant, read
+     * in a read only transaction.
+     */
+    public void register(String module, Class<?> entityClass, Function<String, Path> folder,
+                         Function<String, Set<String>> referenced) {
+
+        modules.put(module, new Module(entityClass, folder, referenced));
+    }
+
+    /**
+     * The filenames referenced by the entities of a tenant in a media folder, with their derivatives, read in a new
+     * read only transaction.
+     */
+    public Set<String> referenced(String tid, Path folder) {
+
+        Path normalized = folder.toAbsolutePath().normalize();
+
+        Set<String> referenced = new HashSet<>();
+        for (Module module : modules.values()) {
+            Path moduleFolder = module.folder.apply(tid);
+            if (moduleFolder != null && moduleFolder.toAbsolutePath().normalize().equals(normalized)) {
+                referenced.addAll(referenced(module, tid));
+            }
+        }
+        return referenced;
+    }
+
+    /**
+     * Collects the orphaned media of all the tenants with the configured dry run mode.
+     */
+    public List<Report> collectAll() {
+
+        List<Report> reports = new ArrayList<>();
+
+        try {
+            for (Map.Entry<String, Module> module : modules.entrySet()) {
+                for (String tid : tenants(module.getValue())) {
+                    reports.add(collect(module.getKey(), module.getValue(), tid, dryRun));
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("Error collecting CMS media: {}", ExceptionUtils.getMessage(e));
+        }
+
+        return reports;
+    }
+
+    /**
+     * Collects the orphaned media of a tenant in all the registered modules.
+     */
+    public List<Report> collect(String tid, boolean dryRun) {
+
+        List<Report> reports = new ArrayList<>();
+        for (Map.Entry<String, Module> module : modules.entrySet()) {
+            reports.add(collect(module.getKey(), module.getValue(), tid, dryRun));
+        }
+        return reports;
+    }
+
+    private Report collect(String name, Module module, String tid, boolean dryRun) {
+
+        Report report = new Report(name, tid, dryRun);
+
+        Path folder = module.folder.apply(tid);
+        if (folder == null || !Files.isDirectory(folder)) {
+            LOGGER.trace("No {} media folder for tenant {}", name, tid);
+            return report;
+        }
+
+        Set<String> referenced = referenced(tid, folder);
+
+        long graceLimit = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(graceHours);
+        long pause = deletesPerSecond > 0 ? 1000L / deletesPerSecond : 0;
+
+        List<Path> orphans = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file : files) {
+
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                String filename = file.getFileName().toString();
+
+                boolean abandonedPart = attributes.isDirectory() && filename.endsWith(PART_SUFFIX);
+                if (!attributes.isRegularFile() && !abandonedPart) {
+                    continue;
+                }
+
+                report.scanned++;
+
+                if (referenced.contains(filename)) {
+                    report.referenced++;
+                    continue;
+                }
+                if (attributes.lastModifiedTime().toMillis() > graceLimit) {
+                    continue;
+                }
+
+                report.orphaned++;
+                report.orphanedBytes += attributes.size();
+                if (report.orphans.size() < MAX_REPORTED_ORPHANS) {
+                    report.orphans.add(filename);
+                }
+                orphans.add(file);
+            }
+
+            if (!dryRun && !orphans.isEmpty()) {
+
+                // Read again, an orphan may have been reused by a deduplicated store since the walk started
+                referenced = referenced(tid, folder);
+
+                for (Path file : orphans) {
+                    delete(name, tid, folder, file, referenced, graceLimit, report);
+                    if (pause > 0) {
+                        Thread.sleep(pause);
+                    }
+                }
+            }
+
+            if (!dryRun) {
+                deleteStaleMarkers(folder);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Error walking {} media folder {}: {}", name, folder, ExceptionUtils.getMessage(e));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.info("CMS media collection interrupted");
+        }
+
+        LOGGER.info("CMS media collection {}", report);
+
+        return report;
+    }
+
+    private void delete(String name, String tid, Path folder, Path file, Set<String> referenced, long graceLimit,
+                        Report report) {
+
+        String filename = file.getFileName().toString();
+        try {
+            // A deduplicated store touches the image it reuses, so the grace period protects it until committed
+            if (referenced.contains(filename) || Files.getLastModifiedTime(file).toMillis() > graceLimit) {
+                LOGGER.trace("Keeping {} media {} for tenant {} referenced again", name, filename, tid);
+                return;
+            }
+
+            if (Files.isDirectory(file)) {
+                FileSystemUtils.deleteRecursively(file.toFile());
+            } else {
+                storageService.delete(tid, folder.toString(), filename);
+            }
+            report.deleted++;
+            LOGGER.trace("Deleted orphaned {} media {} for tenant {}", name, filename, tid);
+
+        } catch (IOException e) {
+            LOGGER.debug("Error deleting orphaned media {}: {}", file, ExceptionUtils.getMessage(e));
+        }
+    }
+
+    /**
+     * Deletes the deduplication markers of the content store whose image is no longer stored.
+     */
+    private void deleteStaleMarkers(Path folder) throws IOException {
+
+        Path markers = folder.resolve(CmsContentStore.CONTENT_FOLDER);
+        if (!Files.isDirectory(markers)) {
+            return;
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(markers)) {
+            for (Path marker : files) {
+                try {
+                    String filename = new String(Files.readAllBytes(marker), StandardCharsets.UTF_8).trim();
+                    if (!Files.exists(folder.resolve(filename))) {
+                        Files.deleteIfExists(marker);
+                    }
+                } catch (IOException e) {
+                    LOGGER.trace("Error checking marker {}: {}", marker, ExceptionUtils.getMessage(e));
+                }
+            }
+        }
+    }
+
+    private Set<String> referenced(Module module, String tid) {
+
+        Set<String> referenced = new HashSet<>();
+        for (String filename : transactionTemplate.execute(status -> module.referenced.apply(tid))) {
+            referenced.add(filename);
+            referenced.addAll(derivativesEngine.derivativeFilenames(filename));
+        }
+        return referenced;
+    }
+
+    /**
+     * The tenants with entities of a module, and those with a folder of the module on disk.
+     */
+    private Set<String> tenants(Module module) {
+
+        Set<String> tenants = new LinkedHashSet<>(transactionTemplate.execute(status -> entityManager
+                .createQuery("select distinct e.tid from " + module.entityClass.getSimpleName() + " e", String.class)
+                .getResultList()));
+        tenants.addAll(tenantFolders(module));
+        return tenants;
+    }
+
+    /**
+     * The tenants with a folder of a module on disk, found by resolving the folder of a probe tenant and listing the
+     * directory holding the tenant path element. A candidate is kept only if its folder resolves back to the listed
+     * directory, so folders not laid out by tenant are never taken for one.
+     */
+    private List<String> tenantFolders(Module module) {
+
+        Path probe = module.folder.apply(PROBE_TID);
+        if (probe == null) {
+            return Collections.emptyList();
+        }
+        probe = probe.toAbsolutePath().normalize();
+
+        Path parent = null;
+        Path suffix = null;
+        for (Path path = probe; path != null && path.getFileName() != null; path = path.getParent()) {
+            if (PROBE_TID.equals(path.getFileName().toString())) {
+                parent = path.getParent();
+                suffix = path.relativize(probe);
+                break;
+            }
+        }
+        if (parent == null || !Files.isDirectory(parent)) {
+            LOGGER.trace("No tenant folder in the media folder {}", probe);
+            return Collections.emptyList();
+        }
+
+        List<String> tenants = new ArrayList<>();
+        try (DirectoryStream<Path> folders = Files.newDirectoryStream(parent, Files::isDirectory)) {
+            for (Path candidate : folders) {
+                String tid = candidate.getFileName().toString();
+                Path folder = module.folder.apply(tid);
+                if (folder != null && folder.toAbsolutePath().normalize().equals(candidate.resolve(suffix).normalize())
+                        && Files.isDirectory(folder)) {
+                    tenants.add(tid);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Error listing the tenant folders of {}: {}", parent, ExceptionUtils.getMessage(e));
+        }
+        return tenants;
+    }
+}
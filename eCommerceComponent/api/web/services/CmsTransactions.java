@@ -0,0 +1,32 @@
+package com.retapps.smartbip.cms.services;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Transaction helpers of the CMS caches.
+ */
+final class CmsTransactions {
+
+    private CmsTransactions() {
+    }
+
+    /**
+     * Runs an action after the current transaction commits, at once outside a transaction. The action is dropped if
+     * the transaction rolls back, so the caches never publish uncommitted state.
+     */
+    static void afterCommit(Runnable action) {
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+}
@@ -0,0 +1,185 @@
+package com.retapps.smartbip.cms.services;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.annotation.PostConstruct;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+/**
+ * Spools the CMS multipart uploads to uniquely named local files.
+ * <p>
+ * The multipart content is transferred to the spool file with {@link FileChannel#transferFrom}, directly from the
+ * file channel when the container already buffered the part on disk, and every spool file gets a unique name so
+ * concurrent uploads of files with the same name never overwrite each other. Images are validated from their headers
+ * only, without decoding the pixels, before being handed to the storage. The spool file is deleted when the upload
+ * is closed.
+ */
+@Component
+public class CmsUploadSpooler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CmsUploadSpooler.class);
+
+    private static final long TRANSFER_CHUNK = 1024 * 1024;
+
+    /**
+     * A spooled upload, closing it deletes the spool file.
+     */
+    public static class Upload implements Closeable {
+
+        private final Path path;
+
+        private final String originalFilename;
+
+        private int width;
+
+        private int height;
+
+        Upload(Path path, String originalFilename) {
+            this.path = path;
+            this.originalFilename = originalFilename;
+        }
+
+        public File getFile() {
+            return path.toFile();
+        }
+
+        public String getOriginalFilename() {
+            return originalFilename;
+        }
+
+        /**
+         * The image width read from the header, 0 if not an image.
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * The image height read from the header, 0 if not an image.
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void close() {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOGGER.warn("Error deleting spooled upload {}: {}", path, ExceptionUtils.getMessage(e));
+            }
+        }
+    }
+
+    @Value("${smartbip.cms.uploads.spoolDir:}")
+    private String spoolDirectory;
+
+    @Value("${smartbip.cms.uploads.maxPixels:50000000}")
+    private long maxPixels;
+
+    private Path spoolPath;
+
+    @PostConstruct
+    void init() throws IOException {
+
+        spoolPath = StringUtils.isBlank(spoolDirectory)
+                ? Paths.get(System.getProperty("java.io.tmpdir"), "cms-uploads")
+                : Paths.get(spoolDirectory);
+
+        Files.createDirectories(spoolPath);
+
+        LOGGER.info("CMS uploads spooled to {}", spoolPath);
+    }
+
+    /**
+     * Spools a multipart file.
+     */
+    public Upload spool(MultipartFile file) throws IOException {
+
+        String extension = FilenameUtils.getExtension(file.getOriginalFilename()).replaceAll("[^A-Za-z0-9]", "");
+
+        Path path = Files.createTempFile(spoolPath, "upload-", extension.isEmpty() ? "" : "." + extension);
+
+        Upload upload = new Upload(path, file.getOriginalFilename());
+
+        try (InputStream input = file.getInputStream();
+             ReadableByteChannel source = input instanceof FileInputStream
+                     ? ((FileInputStream) input).getChannel() : Channels.newChannel(input);
+             FileChannel target = FileChannel.open(path, StandardOpenOption.WRITE)) {
+
+            long position = 0;
+            long transferred;
+            while ((transferred = target.transferFrom(source, position, TRANSFER_CHUNK)) > 0) {
+                position += transferred;
+            }
+
+            LOGGER.trace("Spooled upload {} to {}: {} bytes", file.getOriginalFilename(), path, position);
+
+        } catch (IOException e) {
+            upload.close();
+            throw e;
+        }
+
+        return upload;
+    }
+
+    /**
+     * Spools a multipart image, validating its format and dimensions from the image header.
+     *
+     * @throws IOException if the file is not a readable image or is too large
+     */
+    public Upload spoolImage(MultipartFile file) throws IOException {
+
+        Upload upload = spool(file);
+
+        try (ImageInputStream input = ImageIO.createImageInputStream(upload.getFile())) {
+
+            Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Unsupported image format for " + file.getOriginalFilename());
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                upload.width = reader.getWidth(0);
+                upload.height = reader.getHeight(0);
+            } finally {
+                reader.dispose();
+            }
+
+            if (upload.width <= 0 || upload.height <= 0 || (long) upload.width * upload.height > maxPixels) {
+                throw new IOException("Invalid image size " + upload.width + "x" + upload.height + " for "
+                        + file.getOriginalFilename());
+            }
+
+        } catch (IOException | RuntimeException e) {
+            upload.close();
+            throw e;
+        }
+
+        return upload;
+    }
+}
@@ -0,0 +1,168 @@
+package com.retapps.smartbip.cms.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Per tenant cache of the currently valid CMS entities.
+ * <p>
+ * Entries are keyed by tenant and by query (all, store, category...) and expire at the first validity boundary
+ * after they were loaded, i.e. when one of the cached entities expires or a not yet valid entity becomes valid, and
+ * at the latest after the maximum age, so the writes of the other nodes are seen within that bound. A write
+ * invalidates the keys of the queries it can change, both immediately and after the commit of the current transaction
+ * so that a concurrent read cannot cache the state before the commit. The entities are kept detached, callers map
+ * them to models on every read so cached instances are never handed out.
+ */
+public class CmsValidCache<E> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CmsValidCache.class);
+
+    private static class Entry<E> {
+
+        private final List<E> entities;
+
+        private final long expiresAt;
+
+        Entry(List<E> entities, long expiresAt) {
+            this.entities = entities;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class Tenant<E> {
+
+        private final AtomicLong generation = new AtomicLong();
+
+        private final ConcurrentMap<String, Entry<E>> entries = new ConcurrentHashMap<>();
+    }
+
+    private final String name;
+
+    private final Function<E, Date> validTo;
+
+    private final long maxAgeMillis;
+
+    private final ConcurrentMap<String, Tenant<E>> tenants = new ConcurrentHashMap<>();
+
+    /**
+     * @param name         the cache name, used in logs
+     * @param validTo      the end of validity of an entity
+     * @param maxAgeMillis the maximum age of an entry
+     */
+    public CmsValidCache(String name, Function<E, Date> validTo, long maxAgeMillis) {
+        this.name = name;
+        this.validTo = validTo;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Returns the cached entities or loads them.
+     *
+     * @param loader        loads the currently valid entities
+     * @param nextValidFrom returns the first start of validity in the future for the tenant, or null
+     */
+    public List<E> get(String tid, String key, Supplier<List<E>> loader, Supplier<Date> nextValidFrom) {
+
+        Tenant<E> tenant = tenants.computeIfAbsent(tid, k -> new Tenant<>());
+        long now = System.currentTimeMillis();
+
+        Entry<E> entry = tenant.entries.get(key);
+        if (entry != null && entry.expiresAt > now) {
+            LOGGER.trace("Cache {} hit for tenant {} and key {}", name, tid, key);
+            return entry.entities;
+        }
+
+        long generation = tenant.generation.get();
+
+        List<E> entities = Collections.unmodifiableList(loader.get());
+
+        long expiresAt = now + maxAgeMillis;
+        for (E entity : entities) {
+            Date date = validTo.apply(entity);
+            if (date != null) {
+                expiresAt = Math.min(expiresAt, date.getTime() + 1);
+            }
+        }
+        Date date = nextValidFrom.get();
+        if (date != null) {
+            expiresAt = Math.min(expiresAt, date.getTime());
+        }
+
+        if (tenant.generation.get() == generation) {
+            tenant.entries.put(key, new Entry<>(entities, expiresAt));
+            LOGGER.trace("Cache {} loaded {} entities for tenant {} and key {}, expiring at {}", name, entities.size(),
+                    tid, key, new Date(expiresAt));
+        }
+
+        return entities;
+    }
+
+    public void invalidate(String tid) {
+
+        evict(tid);
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    evict(tid);
+                }
+            });
+        }
+    }
+
+    /**
+     * Invalidates the given keys of a tenant, now and after the current transaction completes.
+     */
+    public void invalidate(String tid, Collection<String> keys) {
+
+        evict(tid, keys);
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    evict(tid, keys);
+                }
+            });
+        }
+    }
+
+    public void invalidateAll() {
+
+        tenants.keySet().forEach(this::invalidate);
+    }
+
+    private void evict(String tid) {
+
+        Tenant<E> tenant = tenants.get(tid);
+        if (tenant != null) {
+            tenant.generation.incrementAndGet();
+            tenant.entries.clear();
+            LOGGER.trace("Cache {} invalidated for tenant {}", name, tid);
+        }
+    }
+
+    private void evict(String tid, Collection<String> keys) {
+
+        Tenant<E> tenant = tenants.get(tid);
+        if (tenant != null) {
+            // A load in progress for any key is not cached, it may have read the state before the write
+            tenant.generation.incrementAndGet();
+            tenant.entries.keySet().removeAll(keys);
+            LOGGER.trace("Cache {} invalidated for tenant {} and keys {}", name, tid, keys);
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package com.retapps.smartbip.cms.services;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * In memory index of the currently valid leaflets, banners and contents.
+ * <p>
+ * For every entity type and tenant the index keeps the validity interval, stores and category of the enabled
+ * entities, and the set of ids valid right now. The live set only changes at discrete {@code validFrom} and
+ * {@code validTo} instants, so a scheduler advances it at the next boundary instead of evaluating the validity in
+ * SQL on every read: the valid ids for a tenant, store and category are an intersection of in memory sets.
+ * <p>
+ * Every change of the live set or of the indexed entities changes the version of the type and tenant, a node local
+ * number used by the in memory caches built on the index.
+ * <p>
+ * The index of a tenant records the stamp of its table when loaded, the count and last update of all the rows of the
+ * tenant. The stamps of the loaded tenants are checked against the database every
+ * {@code smartbip.cms.validity.checkSeconds}, so the writes of the other nodes reload the index too. The stamp and
+ * the live ids make the {@link #fingerprint(Type, String) fingerprint} of the valid entities, the same on every node
+ * and across restarts. Only the tenants with rows are indexed, the index of any other tenant id is empty and not kept.
+ */
+@Component
+public class CmsValidityIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CmsValidityIndex.class);
+
+    public enum Type {
+        LEAFLET, BANNER, CONTENT
+    }
+
+    private static final String EMPTY_STAMP = "0-0";
+
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    /**
+     * The indexed validity of an entity, null dates are open bounds.
+     */
+    public static class Entry {
+
+        private final String id;
+
+        private final Date validFrom;
+
+        private final Date validTo;
+
+        private final Set<String> stores;
+
+        private final String category;
+
+        public Entry(String id, Date validFrom, Date validTo, Collection<String> stores, String category) {
+            this.id = id;
+            this.validFrom = validFrom;
+            this.validTo = validTo;
+            this.stores = stores == null ? Collections.emptySet() : new HashSet<>(stores);
+            this.category = category;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public Date getValidFrom() {
+            return validFrom;
+        }
+
+        public Date getValidTo() {
+            return validTo;
+        }
+
+        public Set<String> getStores() {
+            return stores;
+        }
+
+        public String getCategory() {
+            return category;
+        }
+
+        boolean isValid(long now) {
+            return (validFrom == null || validFrom.getTime() <= now) && (validTo == null || validTo.getTime() >= now);
+        }
+    }
+
+    private static class Timeline {
+
+        private final List<Entry> entries;
+
+        private final Map<String, Set<String>> byStore = new HashMap<>();
+
+        private final Map<String, Set<String>> byCategory = new HashMap<>();
+
+        private volatile Set<String> live = Collections.emptySet();
+
+        private volatile long nextBoundary = Long.MAX_VALUE;
+
+        private final String stamp;
+
+        private volatile long version = VERSIONS.incrementAndGet();
+
+        private ScheduledFuture<?> advance;
+
+        private boolean cancelled;
+
+        Timeline(List<Entry> entries, String stamp) {
+
+            this.entries = entries;
+            this.stamp = stamp;
+
+            for (Entry entry : entries) {
+                for (String store : entry.getStores()) {
+                    byStore.computeIfAbsent(store, k -> new HashSet<>()).add(entry.getId());
+                }
+                if (entry.getCategory() != null) {
+                    byCategory.computeIfAbsent(entry.getCategory(), k -> new HashSet<>()).add(entry.getId());
+                }
+            }
+        }
+    }
+
+    private static class Source {
+
+        private final Class<?> entityClass;
+
+        private final Function<String, List<Entry>> loader;
+
+        Source(Class<?> entityClass, Function<String, List<Entry>> loader) {
+            this.entityClass = entityClass;
+            this.loader = loader;
+        }
+    }
+
+    @Value("${smartbip.cms.validity.checkSeconds:30}")
+    private long checkSeconds;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate transactionTemplate;
+
+    private final Map<Type, Source> sources = new EnumMap<>(Type.class);
+
+    private final ConcurrentMap<String, Timeline> timelines = new ConcurrentHashMap<>();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cms-validity-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    void init() {
+
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setReadOnly(true);
+        transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+        if (checkSeconds > 0) {
+            scheduler.scheduleWithFixedDelay(this::checkAll, checkSeconds, checkSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    void destroy() {
+
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Registers the entity of a type, with a {@code tid} and an {@code updated} date, and the loader of its enabled,
+     * not expired entities for a tenant.
+     */
+    public void register(Type type, Class<?> entityClass, Function<String, List<Entry>> loader) {
+
+        sources.put(type, new Source(entityClass, loader));
+    }
+
+    /**
+     * The ids of the entities valid now, optionally restricted to a store and a category.
+     */
+    public Set<String> live(Type type, String tid, String storeId, String category) {
+
+        Timeline timeline = timeline(type, tid);
+
+        Set<String> result = timeline.live;
+        if (storeId != null) {
+            result = intersect(result, timeline.byStore.getOrDefault(storeId, Collections.emptySet()));
+        }
+        if (category != null) {
+            result = intersect(result, timeline.byCategory.getOrDefault(category, Collections.emptySet()));
+        }
+
+        return result;
+    }
+
+    /**
+     * The next instant the live set changes, or null if it never changes.
+     */
+    public Date nextBoundary(Type type, String tid) {
+
+        long nextBoundary = timeline(type, tid).nextBoundary;
+
+        return nextBoundary == Long.MAX_VALUE ? null : new Date(nextBoundary);
+    }
+
+    /**
+     * The node local version of the valid entities of a type for a tenant, it changes on every write and validity
+     * boundary.
+     */
+    public long version(Type type, String tid) {
+
+        // Loading the timeline schedules the boundaries that advance the version
+        return timeline(type, tid).version;
+    }
+
+    /**
+     * The fingerprint of the valid entities of a type for a tenant, from the stamp of the table and the live ids: it
+     * only depends on the committed data and the time, not on the node.
+     */
+    public String fingerprint(Type type, String tid) {
+
+        Timeline timeline = timeline(type, tid);
+
+        return timeline.stamp + "-" + Integer.toHexString(timeline.live.hashCode());
+    }
+
+    /**
+     * Whether the tenant has entities of a type, the caches built on the index keep nothing for the others.
+     */
+    public boolean isIndexed(Type type, String tid) {
+
+        return !EMPTY_STAMP.equals(timeline(type, tid).stamp);
+    }
+
+    /**
+     * Drops the index of a tenant, it is reloaded on the next read. When called in a transaction the index is dropped
+     * again after the transaction completes.
+     */
+    public void invalidate(Type type, String tid) {
+
+        evict(key(type, tid));
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    evict(key(type, tid));
+                }
+            });
+        }
+    }
+
+    public void invalidateAll(Type type) {
+
+        for (String key : timelines.keySet()) {
+            if (key.startsWith(type.name() + ":")) {
+                invalidate(type, key.substring(type.name().length() + 1));
+            }
+        }
+    }
+
+    private Timeline timeline(Type type, String tid) {
+
+        String key = key(type, tid);
+
+        Timeline timeline = timelines.get(key);
+        if (timeline != null) {
+            return timeline;
+        }
+
+        Source source = sources.get(type);
+        if (source == null) {
+            throw new IllegalStateException("No validity loader registered for " + type);
+        }
+
+        long evicted = evictions.get();
+
+        // Read before the entities, a write in between only makes the next check reload again
+        String stamp = stamp(source, tid);
+        if (EMPTY_STAMP.equals(stamp)) {
+            LOGGER.trace("No entities to index for {}", key);
+            return new Timeline(Collections.emptyList(), EMPTY_STAMP);
+        }
+
+        timeline = new Timeline(source.loader.apply(tid), stamp);
+        advance(key, timeline);
+
+        LOGGER.debug("Loaded validity index of {} entities for {}", timeline.entries.size(), key);
+
+        // Not cached if invalidated while loading
+        if (evictions.get() != evicted || timelines.putIfAbsent(key, timeline) != null) {
+            cancel(timeline);
+        }
+
+        return timeline;
+    }
+
+    /**
+     * Drops the index of the tenants whose table changed since it was loaded, by a write of any node.
+     */
+    private void checkAll() {
+
+        for (Map.Entry<String, Timeline> timeline : timelines.entrySet()) {
+
+            String key = timeline.getKey();
+            int separator = key.indexOf(':');
+            Source source = sources.get(Type.valueOf(key.substring(0, separator)));
+
+            try {
+                String stamp = stamp(source, key.substring(separator + 1));
+                if (!stamp.equals(timeline.getValue().stamp) && timelines.get(key) == timeline.getValue()) {
+                    LOGGER.debug("Validity index {} changed in the database, {} to {}", key, timeline.getValue().stamp,
+                            stamp);
+                    evict(key);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("Error checking validity index {}: {}", key, ExceptionUtils.getMessage(e));
+            }
+        }
+    }
+
+    /**
+     * The count and last update of all the rows of a tenant, in a new read only transaction.
+     */
+    private String stamp(Source source, String tid) {
+
+        Object[] stamp = transactionTemplate.execute(status -> entityManager
+                .createQuery("select count(e), max(e.updated) from " + source.entityClass.getSimpleName()
+                        + " e where e.tid = :tid", Object[].class)
+                .setParameter("tid", tid)
+                .getSingleResult());
+
+        if (((Number) stamp[0]).longValue() == 0) {
+            return EMPTY_STAMP;
+        }
+
+        Date updated = (Date) stamp[1];
+        return stamp[0] + "-" + (updated == null ? 0 : updated.getTime());
+    }
+
+    private synchronized void advance(String key, Timeline timeline) {
+
+        long now = System.currentTimeMillis();
+
+        Set<String> live = new HashSet<>();
+        long nextBoundary = Long.MAX_VALUE;
+
+        for (Entry entry : timeline.entries) {
+            if (entry.isValid(now)) {
+                live.add(entry.getId());
+            }
+            if (entry.getValidFrom() != null && entry.getValidFrom().getTime() > now) {
+                nextBoundary = Math.min(nextBoundary, entry.getValidFrom().getTime());
+            }
+            if (entry.getValidTo() != null && entry.getValidTo().getTime() >= now) {
+                nextBoundary = Math.min(nextBoundary, entry.getValidTo().getTime() + 1);
+            }
+        }
+
+        boolean changed = !live.equals(timeline.live);
+
+        timeline.live = Collections.unmodifiableSet(live);
+        timeline.nextBoundary = nextBoundary;
+
+        if (changed && timelines.get(key) == timeline) {
+            timeline.version = VERSIONS.incrementAndGet();
+            LOGGER.debug("Validity index {} advanced, {} entities live", key, live.size());
+        }
+
+        if (nextBoundary != Long.MAX_VALUE && !timeline.cancelled && !scheduler.isShutdown()) {
+            timeline.advance = scheduler.schedule(() -> advance(key, timeline), nextBoundary - now, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void evict(String key) {
+
+        evictions.incrementAndGet();
+
+        Timeline timeline = timelines.remove(key);
+        if (timeline != null) {
+            cancel(timeline);
+        }
+    }
+
+    private synchronized void cancel(Timeline timeline) {
+
+        timeline.cancelled = true;
+        if (timeline.advance != null) {
+            timeline.advance.cancel(false);
+        }
+    }
+
+    /**
+     * Restricts a query to the given ids.
+     */
+    public static <T> Specification<T> hasIds(Collection<String> ids) {
+
+        return (root, query, cb) -> root.get("id").in(ids);
+    }
+
+    private static Set<String> intersect(Set<String> a, Set<String> b) {
+
+        Set<String> smaller = a.size() <= b.size() ? a : b;
+        Set<String> larger = smaller == a ? b : a;
+
+        Set<String> result = new HashSet<>();
+        for (String id : smaller) {
+            if (larger.contains(id)) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    private static String key(Type type, String tid) {
+
+        return type.name() + ":" + tid;
+    }
+}
@@ -5,7 +5,6 @@ import com.retapps.smartbip.cms.common.services.ContentsService;
 import com.retapps.smartbip.cms.entities.ContentEntity;
 import com.retapps.smartbip.cms.repositories.ContentsRepository;
 import com.retapps.smartbip.common.models.ImageSize;
-import com.retapps.smartbip.common.services.StorageService;
 import com.retapps.smartbip.common.services.View;
 import com.retapps.smartbip.common.utils.ResourcesLocationResolver;
 import org.apache.commons.lang3.BooleanUtils;
@@ -17,24 +16,29 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
 import org.springframework.data.jpa.domain.Specifications;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.Assert;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.annotation.PostConstruct;
 import javax.persistence.EntityExistsException;
 import javax.persistence.EntityNotFoundException;
 import javax.validation.constraints.NotNull;
 import java.io.File;
 import java.io.IOException;
-import java.util.Date;
-import java.util.List;
+import java.util.*;
 
 import static com.retapps.smartbip.cms.mappers.ContentMapper.*;
 import static com.retapps.smartbip.cms.repositories.ContentsSpecifications.*;
+import static com.retapps.smartbip.cms.services.CmsValidityIndex.Type.CONTENT;
+import static com.retapps.smartbip.cms.services.CmsValidityIndex.hasIds;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 import static org.springframework.data.jpa.domain.Specifications.where;
@@ -52,14 +56,39 @@ public class ContentsServiceImpl implements ContentsService {
 
     private static final int IMAGE_HEIGHT_IN_PIXEL = 500;
 
+    private static final int MEDIA_PAGE_SIZE = 500;
+
     @Autowired
     private ContentsRepository repository;
 
     @Autowired
-    private StorageService storageService;
+    private ResourcesLocationResolver resourcesResolver;
 
     @Autowired
-    private ResourcesLocationResolver resourcesResolver;
+    private CmsValidityIndex validityIndex;
+
+    @Autowired
+    private CmsImageDerivativesEngine derivativesEngine;
+
+    @Autowired
+    private CmsExpirySweeper expirySweeper;
+
+    @Autowired
+    private CmsMediaCollector mediaCollector;
+
+    @Autowired
+    private CmsUploadSpooler uploadSpooler;
+
+    @Autowired
+    private CmsContentStore contentStore;
+
+    @PostConstruct
+    void init() {
+
+        validityIndex.register(CONTENT, ContentEntity.class, this::loadValidity);
+
+        mediaCollector.register("contents", ContentEntity.class, resourcesResolver::getCmsContentsPath, this::referencedMedia);
+    }
 
     @Override
     public Page<Content> readAll(@NotNull String tid, View view, PageRequest request) {
@@ -98,6 +127,7 @@ public class ContentsServiceImpl implements ContentsService {
         }
 
         ContentEntity entity = repository.save(toEntity(tid, item));
+        validityIndex.invalidate(CONTENT, tid);
 
         return fromEntity(View.FULL, entity);
     }
@@ -109,11 +139,20 @@ public class ContentsServiceImpl implements ContentsService {
 
         Assert.hasLength(item.getId(), "Invalid id");
 
-        if (!repository.exists(item.getId())) {
+        ContentEntity previous = repository.findOne(item.getId());
+        if (previous == null) {
             throw new EntityNotFoundException("Content #" + item.getId() + " not found for tenant " + tid);
         }
 
+        // Read before the save merges the new state into the managed entity
+        String previousImage = previous.getImage();
+
         ContentEntity entity = repository.save(toEntity(tid, item));
+        validityIndex.invalidate(CONTENT, tid);
+
+        if (!Objects.equals(previousImage, entity.getImage())) {
+            release(tid, Collections.singleton(previousImage));
+        }
 
         return fromEntity(View.FULL, entity);
     }
@@ -135,11 +174,17 @@ public class ContentsServiceImpl implements ContentsService {
 
         LOGGER.debug("Deleting content #{} for tenant {}", id, tid);
 
-        if (!repository.exists(id)) {
+        ContentEntity entity = repository.findOne(id);
+        if (entity == null) {
             throw new EntityNotFoundException("Content #" + id + " not found for tenant " + tid);
         }
 
-        repository.delete(id);
+        String image = entity.getImage();
+
+        repository.delete(entity);
+        validityIndex.invalidate(CONTENT, tid);
+
+        release(tid, Collections.singleton(image));
     }
 
     @Override
@@ -147,7 +192,12 @@ public class ContentsServiceImpl implements ContentsService {
 
         LOGGER.debug("Deleting all contents for tenant {}", tid);
 
+        Set<String> released = referencedMedia(tid);
+
         repository.deleteByTid(tid);
+        validityIndex.invalidate(CONTENT, tid);
+
+        release(tid, released);
     }
 
     @Override
@@ -187,6 +237,7 @@ public class ContentsServiceImpl implements ContentsService {
         entity.setEnabled(true);
 
         entity = repository.save(entity);
+        validityIndex.invalidate(CONTENT, tid);
 
         return fromEntity(View.FULL, entity);
     }
@@ -204,6 +255,7 @@ public class ContentsServiceImpl implements ContentsService {
         entity.setEnabled(false);
 
         entity = repository.save(entity);
+        validityIndex.invalidate(CONTENT, tid);
 
         return fromEntity(View.FULL, entity);
     }
@@ -213,9 +265,13 @@ public class ContentsServiceImpl implements ContentsService {
 
         LOGGER.debug("Reading valid contents for tenant {}", tid);
 
+        Set<String> ids = validityIndex.live(CONTENT, tid, null, null);
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+
         Specifications<ContentEntity> specifications = where(hasTenant(tid));
-        specifications = specifications.and(isEnabled());
-        specifications = specifications.and(isValid());
+        specifications = specifications.and(hasIds(ids));
 
         Sort sort = new Sort(Sort.Direction.DESC, "updated");
 
@@ -229,10 +285,14 @@ public class ContentsServiceImpl implements ContentsService {
 
         LOGGER.debug("Reading valid and promoted contents for tenant {}", tid);
 
+        Set<String> ids = validityIndex.live(CONTENT, tid, null, null);
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+
         Specifications<ContentEntity> specifications = where(hasTenant(tid));
+        specifications = specifications.and(hasIds(ids));
         specifications = specifications.and(isPromoted());
-        specifications = specifications.and(isEnabled());
-        specifications = specifications.and(isValid());
 
         PageRequest request = new PageRequest(0, PROMOTED_MAX_SIZE, new Sort(Sort.Direction.DESC, "updated"));
 
@@ -289,38 +349,54 @@ public class ContentsServiceImpl implements ContentsService {
         LOGGER.debug("Deleting expired contents for all tenants");
 
         repository.deleteByValidToLessThanEqual(new Date());
+        validityIndex.invalidateAll(CONTENT);
     }
 
     @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public int deleteExpiredAndImages() {
 
         LOGGER.debug("Deleting all expired promotions and related media");
 
-        Specifications<ContentEntity> specifications = where(isExpired());
-
-        int counter = 0;
-        for (ContentEntity content : repository.findAll(specifications)) {
-            try {
-                String resourcesFolder = resourcesResolver.getCmsContentsPath(content.getTid()).toString();
-                if (isNotBlank(content.getImage())) {
-                    try {
-                        LOGGER.trace("About to delete media for content {} and tenant {}", content.getId(), content.getTid());
-                        storageService.delete(content.getTid(), resourcesFolder, content.getImage());
-                    } catch (Exception e) {
-                        LOGGER.debug("Error deleting media for content {} and tenant {}", ExceptionUtils.getMessage(e));
+        CmsExpirySweeper.Report report = expirySweeper.sweep("contents", isExpired(),
+                new CmsExpirySweeper.Source<ContentEntity>() {
+
+                    @Override
+                    public Page<ContentEntity> read(Specification<ContentEntity> specification, Pageable pageable) {
+                        return repository.findAll(specification, pageable);
                     }
-                }
 
-                LOGGER.trace("About to delete content {} for tenant {}", content.getId(), content.getTid());
-                repository.delete(content);
-                counter++;
-            } catch (Exception e) {
-                LOGGER.warn("Error deleting expired content {}", content.getId(), e);
-            }
-        }
+                    @Override
+                    public void delete(List<String> ids) {
+                        repository.delete(repository.findAll(ids));
+                    }
+
+                    @Override
+                    public String getId(ContentEntity entity) {
+                        return entity.getId();
+                    }
+
+                    @Override
+                    public String getTid(ContentEntity entity) {
+                        return entity.getTid();
+                    }
+
+                    @Override
+                    public Collection<String> getMedia(ContentEntity entity) {
+                        return isNotBlank(entity.getImage()) ? Collections.singletonList(entity.getImage())
+                                : Collections.emptyList();
+                    }
+
+                    @Override
+                    public String getFolder(String tid) {
+                        return resourcesResolver.getCmsContentsPath(tid).toString();
+                    }
+                });
+
+        validityIndex.invalidateAll(CONTENT);
 
-        LOGGER.trace("Deleted {} expired contents", counter);
-        return counter;
+        LOGGER.trace("Deleted {} expired contents", report.getRows());
+        return report.getRows();
     }
 
     @Override
@@ -329,11 +405,14 @@ public class ContentsServiceImpl implements ContentsService {
         try {
             String resourcesFolder = resourcesResolver.getCmsContentsPath(tid).toString();
 
-            String filename = storageService.store(file, tid, resourcesFolder,
-                    new ImageSize(IMAGE_WIDTH_IN_PIXEL, IMAGE_HEIGHT_IN_PIXEL));
+            try (CmsUploadSpooler.Upload upload = uploadSpooler.spoolImage(file)) {
 
-            if (StringUtils.isNotBlank(filename)) {
-                item.setImage(filename);
+                String filename = contentStore.store(tid, resourcesFolder, upload.getFile(),
+                        new ImageSize(IMAGE_WIDTH_IN_PIXEL, IMAGE_HEIGHT_IN_PIXEL), true);
+
+                if (StringUtils.isNotBlank(filename)) {
+                    item.setImage(filename);
+                }
             }
         } catch (IOException e) {
             LOGGER.warn("Error storing multipart image {} for content {} and tenant {}: {}",
@@ -349,8 +428,8 @@ public class ContentsServiceImpl implements ContentsService {
         try {
             String resourcesFolder = resourcesResolver.getCmsContentsPath(tid).toString();
 
-            String filename = storageService.store(file, tid, resourcesFolder,
-                    new ImageSize(IMAGE_WIDTH_IN_PIXEL, IMAGE_HEIGHT_IN_PIXEL));
+            String filename = contentStore.store(tid, resourcesFolder, file,
+                    new ImageSize(IMAGE_WIDTH_IN_PIXEL, IMAGE_HEIGHT_IN_PIXEL), true);
 
             if (StringUtils.isNotBlank(filename)) {
                 item.setImage(filename);
@@ -376,4 +455,51 @@ public class ContentsServiceImpl implements ContentsService {
 
         return fromEntity(view, entity);
     }
+
+    /**
+     * Deletes the images no longer referenced by any content once the transaction commits.
+     */
+    private void release(String tid, Set<String> filenames) {
+
+        contentStore.release(tid, resourcesResolver.getCmsContentsPath(tid).toString(), filenames);
+    }
+
+    /**
+     * The filenames of the images of the contents of a tenant.
+    private Set<String> referencedMedia(String tid) {
+
+        Set<String> filenames = new HashSet<>();
+
+        Page<ContentEntity> page;
+        PageRequest request = new PageRequest(0, MEDIA_PAGE_SIZE, new Sort(Sort.Direction.ASC, "id"));
+        do {
+            page = repository.findAll(where(hasTenant(tid)), request);
+            for (ContentEntity entity : page) {
+                if (isNotBlank(entity.getImage())) {
+                    filenames.add(entity.getImage());
+                }
+            }
+            request = (PageRequest) page.nextPageable();
+        } while (page.hasNext());
+
+        return filenames;
+    }
+
+    private List<CmsValidityIndex.Entry> loadValidity(String tid) {
+
+        Date now = new Date();
+
+        Specifications<ContentEntity> specifications = where(hasTenant(tid));
+        specifications = specifications.and(isEnabled());
+
+        List<CmsValidityIndex.Entry> entries = new ArrayList<>();
+        for (ContentEntity entity : repository.findAll(specifications)) {
+            if (entity.getValidTo() == null || !entity.getValidTo().before(now)) {
+                entries.add(new CmsValidityIndex.Entry(entity.getId(), entity.getValidFrom(), entity.getValidTo(),
+                        null, null));
+            }
+        }
+
+        return entries;
+    }
 }
@@ -0,0 +1,139 @@
+package com.retapps.smartbip.cms.services;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * A leaflet PDF import tracked by the {@link LeafletImportJobsEngine}.
+ */
+public class LeafletImportJob implements Serializable {
+
+    private static final long serialVersionUID = 4610297741738307154L;
+
+    public enum State {
+        QUEUED, RENDERING, STORING, DONE, FAILED
+    }
+
+    private final String id;
+
+    private final String tid;
+
+    private final String leafletId;
+
+    private final Date created = new Date();
+
+    private volatile State state = State.QUEUED;
+
+    private volatile Date started;
+
+    private volatile Date finished;
+
+    private volatile int storedPages;
+
+    private volatile int pageCount;
+
+    private volatile String error;
+
+    LeafletImportJob(String id, String tid, String leafletId) {
+        this.id = id;
+        this.tid = tid;
+        this.leafletId = leafletId;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getTid() {
+        return tid;
+    }
+
+    public String getLeafletId() {
+        return leafletId;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public Date getCreated() {
+        return created;
+    }
+
+    public Date getStarted() {
+        return started;
+    }
+
+    public Date getFinished() {
+        return finished;
+    }
+
+    public int getStoredPages() {
+        return storedPages;
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Milliseconds spent waiting in the queue.
+     */
+    public Long getQueuedMillis() {
+        return started == null ? null : started.getTime() - created.getTime();
+    }
+
+    /**
+     * Milliseconds spent running, up to now for a job still running.
+     */
+    public Long getRunningMillis() {
+        if (started == null) {
+            return null;
+        }
+        return (finished == null ? System.currentTimeMillis() : finished.getTime()) - started.getTime();
+    }
+
+    public void rendering() {
+        this.state = State.RENDERING;
+    }
+
+    public void storing() {
+        this.state = State.STORING;
+    }
+
+    public void progress(int storedPages, int pageCount) {
+        this.storedPages = storedPages;
+        this.pageCount = pageCount;
+    }
+
+    void started() {
+        this.started = new Date();
+    }
+
+    void done() {
+        this.finished = new Date();
+        this.state = State.DONE;
+    }
+
+    void failed(String error) {
+        this.finished = new Date();
+        this.error = error;
+        this.state = State.FAILED;
+    }
+
+    boolean isFinished() {
+        return state == State.DONE || state == State.FAILED;
+    }
+
+    @Override
+    public String toString() {
+        return ToStringBuilder.reflectionToString(this, ToStringStyle.SHORT_PREFIX_STYLE);
+    }
+}
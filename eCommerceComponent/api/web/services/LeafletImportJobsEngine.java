@@ -0,0 +1,182 @@
+package com.retapps.smartbip.cms.services;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the leaflet PDF imports on a dedicated pool.
+ * <p>
+ * The number of queued jobs is bounded and every tenant can run at most a configured number of imports at the same
+ * time: jobs over the tenant cap wait in a per tenant queue and are dispatched in order as soon as one of the tenant
+ * jobs completes, so a tenant uploading many flyers cannot take all the workers. The last jobs are kept in memory to
+ * be listed with their state and timings.
+ */
+@Component
+public class LeafletImportJobsEngine {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LeafletImportJobsEngine.class);
+
+    /**
+     * The work of an import job, it can update the job state and progress while running.
+     */
+    public interface Task {
+
+        void run(LeafletImportJob job) throws Exception;
+    }
+
+    @Value("${smartbip.cms.leaflets.import.threads:2}")
+    private int threads;
+
+    @Value("${smartbip.cms.leaflets.import.queueCapacity:50}")
+    private int queueCapacity;
+
+    @Value("${smartbip.cms.leaflets.import.tenantConcurrency:1}")
+    private int tenantConcurrency;
+
+    @Value("${smartbip.cms.leaflets.import.historySize:200}")
+    private int historySize;
+
+    private ThreadPoolExecutor executor;
+
+    private final Map<String, LeafletImportJob> jobs = new LinkedHashMap<>();
+
+    private final Map<String, Deque<Runnable>> pendingByTenant = new HashMap<>();
+
+    private final Map<String, Integer> runningByTenant = new HashMap<>();
+
+    private int queued;
+
+    @PostConstruct
+    void init() {
+
+        AtomicInteger counter = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+            Thread thread = new Thread(r, "leaflet-import-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        LOGGER.info("Leaflet import jobs engine started with {} workers, queue capacity {} and tenant concurrency {}",
+                threads, queueCapacity, tenantConcurrency);
+    }
+
+    @PreDestroy
+    void destroy() {
+
+        executor.shutdownNow();
+    }
+
+    /**
+     * Queues an import job.
+     *
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public synchronized LeafletImportJob submit(String tid, String leafletId, Task task) throws RejectedExecutionException {
+
+        if (queued >= queueCapacity) {
+            throw new RejectedExecutionException("Leaflet import queue is full, cannot import leaflet " + leafletId
+                    + " for tenant " + tid);
+        }
+
+        LeafletImportJob job = new LeafletImportJob(UUID.randomUUID().toString(), tid, leafletId);
+        jobs.put(job.getId(), job);
+        evictFinished();
+        queued++;
+
+        Runnable runnable = () -> execute(job, task);
+
+        if (runningByTenant.getOrDefault(tid, 0) < tenantConcurrency) {
+            dispatch(tid, runnable);
+        } else {
+            pendingByTenant.computeIfAbsent(tid, k -> new ArrayDeque<>()).add(runnable);
+            LOGGER.debug("Leaflet import {} for tenant {} waiting, tenant concurrency {} reached", job.getId(), tid,
+                    tenantConcurrency);
+        }
+
+        LOGGER.debug("Queued leaflet import {} for leaflet {} and tenant {}", job.getId(), leafletId, tid);
+
+        return job;
+    }
+
+    public synchronized List<LeafletImportJob> list(String tid) {
+
+        List<LeafletImportJob> result = new ArrayList<>();
+        for (LeafletImportJob job : jobs.values()) {
+            if (tid == null || tid.equals(job.getTid())) {
+                result.add(job);
+            }
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    public synchronized LeafletImportJob read(String id) {
+
+        return jobs.get(id);
+    }
+
+    private void dispatch(String tid, Runnable runnable) {
+
+        runningByTenant.merge(tid, 1, Integer::sum);
+        executor.execute(runnable);
+    }
+
+    private void execute(LeafletImportJob job, Task task) {
+
+        synchronized (this) {
+            queued--;
+        }
+
+        job.started();
+        LOGGER.debug("Starting leaflet import {} for leaflet {} and tenant {}", job.getId(), job.getLeafletId(), job.getTid());
+
+        try {
+            task.run(job);
+            job.done();
+            LOGGER.info("Leaflet import {} for leaflet {} and tenant {} completed in {} ms", job.getId(),
+                    job.getLeafletId(), job.getTid(), job.getRunningMillis());
+        } catch (Exception e) {
+            job.failed(ExceptionUtils.getMessage(e));
+            LOGGER.warn("Leaflet import {} for leaflet {} and tenant {} failed: {}", job.getId(), job.getLeafletId(),
+                    job.getTid(), ExceptionUtils.getMessage(e), e);
+        } finally {
+            completed(job.getTid());
+        }
+    }
+
+    private synchronized void completed(String tid) {
+
+        runningByTenant.merge(tid, -1, Integer::sum);
+
+        Deque<Runnable> pending = pendingByTenant.get(tid);
+        if (pending != null && !pending.isEmpty()) {
+            dispatch(tid, pending.poll());
+        }
+        if (pending != null && pending.isEmpty()) {
+            pendingByTenant.remove(tid);
+        }
+        if (runningByTenant.get(tid) == 0) {
+            runningByTenant.remove(tid);
+        }
+    }
+
+    private void evictFinished() {
+
+        Iterator<LeafletImportJob> iterator = jobs.values().iterator();
+        while (jobs.size() > historySize && iterator.hasNext()) {
+            if (iterator.next().isFinished()) {
+                iterator.remove();
+            }
+        }
+    }
+}
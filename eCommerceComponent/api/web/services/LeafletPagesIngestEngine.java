@@ -0,0 +1,182 @@
+package com.retapps.smartbip.cms.services;
+
+import com.retapps.smartbip.common.models.ImageSize;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores the pages of a manual leaflet upload concurrently.
+ * <p>
+ * Every file is decoded, resized and stored with its derivatives on a bounded pool shared by all the uploads, and the
+ * results are returned in the order of the files, so the pages keep the upload order. A corrupt file only fails its
+ * own result, and the files not stored before the batch deadline are reported as timed out instead of holding the
+ * request past the load balancer timeout.
+ */
+@Component
+public class LeafletPagesIngestEngine {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LeafletPagesIngestEngine.class);
+
+    /**
+     * The outcome of the ingestion of a file: the stored filename, or the error.
+     */
+    public static class Result {
+
+        private final int index;
+
+        private final String originalFilename;
+
+        private final String filename;
+
+        private final String error;
+
+        Result(int index, String originalFilename, String filename, String error) {
+            this.index = index;
+            this.originalFilename = originalFilename;
+            this.filename = filename;
+            this.error = error;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getOriginalFilename() {
+            return originalFilename;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public boolean isStored() {
+            return StringUtils.isNotBlank(filename);
+        }
+
+        @Override
+        public String toString() {
+            return "#" + index + " " + originalFilename + (isStored() ? " stored as " + filename : " failed: " + error);
+        }
+    }
+
+    /**
+     * An upload with files not stored, with the result of every file of the upload.
+     */
+    public static class IngestException extends IOException {
+
+        private final List<Result> results;
+
+        IngestException(String message, List<Result> results) {
+            super(message);
+            this.results = Collections.unmodifiableList(new ArrayList<>(results));
+        }
+
+        /**
+         * The results in the order of the files, the stored ones were released.
+         */
+        public List<Result> getResults() {
+            return results;
+        }
+    }
+
+    @Value("${smartbip.cms.leaflets.ingest.threads:4}")
+    private int threads;
+
+    @Value("${smartbip.cms.leaflets.ingest.timeoutSeconds:50}")
+    private long timeoutSeconds;
+
+    @Autowired
+    private CmsContentStore contentStore;
+
+    @Autowired
+    private CmsUploadSpooler uploadSpooler;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    void init() {
+
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "leaflet-ingest-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    void destroy() {
+
+        executor.shutdownNow();
+    }
+
+    /**
+     * Stores the files as images of the given size, the results are in the order of the files.
+     */
+    public List<Result> ingest(String tid, String resourcesFolder, List<MultipartFile> files, ImageSize size) {
+
+        LOGGER.debug("Ingesting {} leaflet pages for tenant {} on {} workers", files.size(), tid, threads);
+
+        long start = System.currentTimeMillis();
+
+        List<Future<String>> futures = new ArrayList<>(files.size());
+        for (MultipartFile file : files) {
+            futures.add(executor.submit(() -> {
+                try (CmsUploadSpooler.Upload upload = uploadSpooler.spoolImage(file)) {
+                    return contentStore.store(tid, resourcesFolder, upload.getFile(), size, true);
+                }
+            }));
+        }
+
+        long deadline = start + TimeUnit.SECONDS.toMillis(timeoutSeconds);
+
+        List<Result> results = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+
+            String originalFilename = files.get(i).getOriginalFilename();
+            Future<String> future = futures.get(i);
+
+            try {
+                long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                String filename = future.get(remaining, TimeUnit.MILLISECONDS);
+                results.add(new Result(i, originalFilename, filename,
+                        StringUtils.isBlank(filename) ? "Not stored" : null));
+
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                results.add(new Result(i, originalFilename, null, "Timed out after " + timeoutSeconds + " seconds"));
+
+            } catch (ExecutionException e) {
+                results.add(new Result(i, originalFilename, null, ExceptionUtils.getMessage(e.getCause())));
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                results.add(new Result(i, originalFilename, null, "Interrupted"));
+            }
+        }
+
+        LOGGER.debug("Ingested {} leaflet pages for tenant {} in {} ms", files.size(), tid,
+                System.currentTimeMillis() - start);
+
+        return results;
+    }
+}
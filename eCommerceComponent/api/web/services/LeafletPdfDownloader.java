@@ -0,0 +1,370 @@
+package com.retapps.smartbip.cms.services;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.UUID;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Downloads leaflet PDFs streaming the body to disk.
+ * <p>
+ * Every attempt spools the body to its own {@code .<uuid>.part} folder next to the target, with the validators of the
+ * response the bytes come from, and moves it in place once complete. An interrupted attempt parks its folder as
+ * {@code .part}, and the next attempt claims it with an atomic move, so concurrent downloads of the same PDF never
+ * share a partial file. A claimed partial download is resumed with a range request conditional on its validators
+ * ({@code If-Range}), so a PDF changed in the meantime is downloaded again in full instead of being spliced. The
+ * validators of the last download ({@code ETag} and {@code Last-Modified}) are kept in a {@code .properties} file next
+ * to the PDF and sent back on the next fetch, so an unchanged PDF is answered with 304 and not downloaded again.
+ */
+@Component
+public class LeafletPdfDownloader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LeafletPdfDownloader.class);
+
+    private static final long TRANSFER_CHUNK_SIZE = 1024 * 1024;
+
+    private static final String PROPERTY_URL = "url";
+
+    private static final String PROPERTY_ETAG = "etag";
+
+    private static final String PROPERTY_LAST_MODIFIED = "lastModified";
+
+    private static final String PART_FILE = "pdf";
+
+    private static final String PART_VALIDATORS_FILE = "validators.properties";
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    /**
+     * A partial download that does not continue the bytes already received.
+     */
+    private static class StalePartException extends IOException {
+
+        StalePartException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The outcome of a download: the local file and whether it changed since the previous download.
+     */
+    public static class Result {
+
+        private final Path file;
+
+        private final boolean modified;
+
+        Result(Path file, boolean modified) {
+            this.file = file;
+            this.modified = modified;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public boolean isModified() {
+            return modified;
+        }
+    }
+
+    private final RestTemplate template;
+
+    @Autowired
+    public LeafletPdfDownloader(@Value("${smartbip.cms.leaflets.download.connectTimeout:10000}") int connectTimeout,
+                                @Value("${smartbip.cms.leaflets.download.readTimeout:60000}") int readTimeout) {
+
+        SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
+        factory.setBufferRequestBody(false);
+        factory.setConnectTimeout(connectTimeout);
+        factory.setReadTimeout(readTimeout);
+
+        this.template = new RestTemplate(factory);
+    }
+
+    LeafletPdfDownloader(ClientHttpRequestFactory factory) {
+
+        this.template = new RestTemplate(factory);
+    }
+
+    /**
+     * Downloads the PDF at the given url to the target file, skipping the transfer if it did not change.
+     */
+    public Result download(String url, Path target) throws IOException, RestClientException {
+
+        LOGGER.debug("Downloading PDF {} to {}", url, target);
+
+        Files.createDirectories(target.toAbsolutePath().getParent());
+
+        Path meta = target.resolveSibling(target.getFileName() + ".properties");
+        Path parked = target.resolveSibling(target.getFileName() + ".part");
+        Path attempt = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".part");
+
+        Properties validators = readValidators(meta);
+        if (!Files.exists(target) || !url.equals(validators.getProperty(PROPERTY_URL))) {
+            validators.clear();
+        }
+
+        claim(parked, attempt);
+
+        boolean completed = false;
+        try {
+            Result result;
+            try {
+                result = fetch(url, target, attempt, validators);
+            } catch (HttpClientErrorException e) {
+                if (e.getStatusCode() != HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE) {
+                    throw e;
+                }
+                result = refetch(url, target, attempt, validators);
+            } catch (ResourceAccessException e) {
+                if (!(e.getCause() instanceof StalePartException)) {
+                    throw e;
+                }
+                result = refetch(url, target, attempt, validators);
+            }
+
+            if (result.isModified()) {
+                writeValidators(meta, validators);
+            }
+
+            completed = true;
+            return result;
+        } finally {
+            if (completed) {
+                FileSystemUtils.deleteRecursively(attempt.toFile());
+            } else {
+                park(attempt, parked);
+            }
+        }
+    }
+
+    private Result refetch(String url, Path target, Path attempt, Properties validators) throws IOException {
+
+        LOGGER.debug("Discarding partial download {} not matching {}", attempt, url);
+        Files.deleteIfExists(attempt.resolve(PART_FILE));
+        Files.deleteIfExists(attempt.resolve(PART_VALIDATORS_FILE));
+
+        return fetch(url, target, attempt, validators);
+    }
+
+    private Result fetch(String url, Path target, Path attempt, Properties validators) throws IOException {
+
+        Path part = attempt.resolve(PART_FILE);
+        Path partMeta = attempt.resolve(PART_VALIDATORS_FILE);
+
+        Properties partValidators = readValidators(partMeta);
+        if (!url.equals(partValidators.getProperty(PROPERTY_URL))) {
+            partValidators.clear();
+        }
+        String ifRange = ifRange(partValidators);
+        long resumeFrom = ifRange != null && Files.exists(part) ? Files.size(part) : 0;
+
+        return template.execute(url, HttpMethod.GET, request -> {
+
+            HttpHeaders headers = request.getHeaders();
+            String etag = validators.getProperty(PROPERTY_ETAG);
+            String lastModified = validators.getProperty(PROPERTY_LAST_MODIFIED);
+
+            if (StringUtils.isNotBlank(etag)) {
+                headers.setIfNoneMatch(etag);
+            }
+            if (StringUtils.isNotBlank(lastModified)) {
+                headers.setIfModifiedSince(Long.parseLong(lastModified));
+            }
+            if (resumeFrom > 0) {
+                headers.set(HttpHeaders.RANGE, "bytes=" + resumeFrom + "-");
+                headers.set(HttpHeaders.IF_RANGE, ifRange);
+            }
+
+        }, response -> {
+
+            if (response.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+                LOGGER.debug("PDF {} not modified, keeping {}", url, target);
+                return new Result(target, false);
+            }
+
+            Properties received = validators(response.getHeaders());
+            received.setProperty(PROPERTY_URL, url);
+
+            boolean append = resumeFrom > 0 && response.getStatusCode() == HttpStatus.PARTIAL_CONTENT;
+            if (append && !continues(response.getHeaders(), resumeFrom, partValidators, received)) {
+                throw new StalePartException("Partial content of " + url + " does not continue " + part);
+            }
+            if (!append) {
+                // Kept with the bytes, to resume them only while the PDF does not change
+                writeValidators(partMeta, received);
+            }
+
+            long transferred = spool(response, part, append ? resumeFrom : 0);
+
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            validators.clear();
+            validators.putAll(received);
+
+            LOGGER.debug("Downloaded {} bytes of PDF {} to {}{}", transferred, url, target, append ? " (resumed)" : "");
+
+            return new Result(target, true);
+        });
+    }
+
+    /**
+     * Moves the partial download parked by an interrupted attempt to the folder of this attempt, or creates it empty.
+     * Only one attempt can claim a parked download.
+     */
+    private void claim(Path parked, Path attempt) throws IOException {
+
+        try {
+            Files.move(parked, attempt, StandardCopyOption.ATOMIC_MOVE);
+            if (!Files.isDirectory(attempt)) {
+                Files.delete(attempt);
+                Files.createDirectory(attempt);
+                return;
+            }
+            LOGGER.debug("Resuming partial download {}", parked);
+        } catch (NoSuchFileException e) {
+            Files.createDirectory(attempt);
+        } catch (IOException e) {
+            LOGGER.debug("Error claiming partial download {}: {}", parked, e.getMessage());
+            Files.createDirectory(attempt);
+        }
+    }
+
+    /**
+     * Parks the partial download of an interrupted attempt for the next one, or deletes it if there is nothing to
+     * resume or another attempt parked one first.
+     */
+    private void park(Path attempt, Path parked) {
+
+        try {
+            if (Files.exists(attempt.resolve(PART_FILE)) && Files.exists(attempt.resolve(PART_VALIDATORS_FILE))) {
+                Files.move(attempt, parked, StandardCopyOption.ATOMIC_MOVE);
+                return;
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Error parking partial download {}: {}", attempt, e.getMessage());
+        }
+        FileSystemUtils.deleteRecursively(attempt.toFile());
+    }
+
+    /**
+     * The validator to resume a partial download with: a strong ETag, else the Last-Modified date, null if none.
+     */
+    private static String ifRange(Properties partValidators) {
+
+        String etag = partValidators.getProperty(PROPERTY_ETAG);
+        if (StringUtils.isNotBlank(etag) && !etag.startsWith("W/")) {
+            return etag;
+        }
+        String lastModified = partValidators.getProperty(PROPERTY_LAST_MODIFIED);
+        if (StringUtils.isNotBlank(lastModified)) {
+            return HTTP_DATE.format(Instant.ofEpochMilli(Long.parseLong(lastModified)));
+        }
+        return null;
+    }
+
+    /**
+     * Whether a partial response continues the bytes received so far: the range starts where they end, and the
+     * validators did not change, for servers ignoring {@code If-Range}.
+     */
+    private static boolean continues(HttpHeaders headers, long resumeFrom, Properties partValidators,
+                                     Properties received) {
+
+        String contentRange = headers.getFirst(HttpHeaders.CONTENT_RANGE);
+        if (contentRange == null || !contentRange.startsWith("bytes " + resumeFrom + "-")) {
+            return false;
+        }
+        for (String property : new String[]{PROPERTY_ETAG, PROPERTY_LAST_MODIFIED}) {
+            String expected = partValidators.getProperty(property);
+            String actual = received.getProperty(property);
+            if (expected != null && actual != null && !expected.equals(actual)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Properties validators(HttpHeaders headers) {
+
+        Properties validators = new Properties();
+        if (StringUtils.isNotBlank(headers.getETag())) {
+            validators.setProperty(PROPERTY_ETAG, headers.getETag());
+        }
+        if (headers.getLastModified() > 0) {
+            validators.setProperty(PROPERTY_LAST_MODIFIED, String.valueOf(headers.getLastModified()));
+        }
+        return validators;
+    }
+
+    private long spool(ClientHttpResponse response, Path part, long position) throws IOException {
+
+        try (InputStream body = response.getBody();
+             ReadableByteChannel source = Channels.newChannel(body);
+             FileChannel channel = FileChannel.open(part, CREATE, WRITE)) {
+
+            channel.truncate(position);
+
+            long offset = position;
+            long count;
+            while ((count = channel.transferFrom(source, offset, TRANSFER_CHUNK_SIZE)) > 0) {
+                offset += count;
+            }
+            channel.force(false);
+
+            return offset - position;
+        }
+    }
+
+    private Properties readValidators(Path meta) {
+
+        Properties properties = new Properties();
+        if (Files.exists(meta)) {
+            try (InputStream input = Files.newInputStream(meta)) {
+                properties.load(input);
+            } catch (IOException e) {
+                LOGGER.warn("Error reading download validators {}: {}", meta, e.getMessage());
+            }
+        }
+        return properties;
+    }
+
+    private void writeValidators(Path meta, Properties validators) {
+
+        try (OutputStream output = Files.newOutputStream(meta)) {
+            validators.store(output, null);
+        } catch (IOException e) {
+            LOGGER.warn("Error writing download validators {}: {}", meta, e.getMessage());
+        }
+    }
+}
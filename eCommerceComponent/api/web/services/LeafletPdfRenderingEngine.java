@@ -0,0 +1,373 @@
+package com.retapps.smartbip.cms.services;
+
+import com.retapps.smartbip.common.services.StorageService;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.pdfbox.cos.*;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.apache.pdfbox.tools.imageio.ImageIOUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders the pages of a leaflet PDF to JPEG images on a bounded pool of workers.
+ * <p>
+ * Every worker loads its own {@link PDDocument} (PDFBox documents are not thread safe) and renders a strided
+ * subset of the pages. Rendered pages are scaled and encoded in memory and handed to the storage as bytes, so no
+ * intermediate file is written to {@code java.io.tmpdir}.
+ * <p>
+ * A fingerprint of every page and of the rendering settings is kept in a {@code .pages} file next to the page images,
+ * so re-importing a leaflet only renders the pages that changed. The file is dropped before any page is written and
+ * stored again only after every page is, so a failed rendering forces the next import to render every page.
+ */
+@Component
+public class LeafletPdfRenderingEngine {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LeafletPdfRenderingEngine.class);
+
+    private static final float RENDERING_DPI = 100;
+
+    private static final float JPEG_QUALITY = 0.60f;
+
+    /**
+     * Receives a notification every time a page image has been stored.
+     */
+    public interface PageListener {
+
+        void onPageStored(int pageNumber, int storedPages, int pageCount);
+    }
+
+    @Autowired
+    private StorageService storageService;
+
+    @Autowired
+    private CmsImageDerivativesEngine derivativesEngine;
+
+    @Value("${smartbip.cms.leaflets.rendering.threads:0}")
+    private int threads;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    void init() {
+
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(poolSize, r -> {
+            Thread thread = new Thread(r, "leaflet-rendering-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        LOGGER.info("Leaflet PDF rendering engine started with {} workers", poolSize);
+    }
+
+    @PreDestroy
+    void destroy() {
+
+        executor.shutdownNow();
+    }
+
+    public static String pageFilename(String tid, String leafletId, int pageNumber) {
+
+        return String.format("LEAFLET_%s_%s_%03d.jpg", tid, leafletId, pageNumber);
+    }
+
+    public static String fingerprintsFilename(String tid, String leafletId) {
+
+        return String.format("LEAFLET_%s_%s.pages", tid, leafletId);
+    }
+
+    /**
+     * Renders the pages of the given PDF file and stores them in the resources folder.
+     * <p>
+     * Only the pages whose content fingerprint differs from the one recorded by the previous rendering (or whose
+     * image or derivatives are missing) are rendered again, the images of the unchanged pages are kept.
+     *
+     * @return the number of pages of the PDF
+     */
+    public int render(String tid, String leafletId, File pdf, String resourcesFolder, int maxWidth, int maxHeight,
+                      PageListener listener) throws IOException {
+
+        String settings = String.format(Locale.ROOT, "dpi=%s;quality=%s;size=%dx%d", RENDERING_DPI, JPEG_QUALITY,
+                maxWidth, maxHeight);
+
+        List<String> fingerprints;
+        try (PDDocument document = PDDocument.load(pdf)) {
+            fingerprints = fingerprints(document, settings);
+        }
+
+        int pageCount = fingerprints.size();
+        String fingerprintsFilename = fingerprintsFilename(tid, leafletId);
+        List<String> previous = readFingerprints(Paths.get(resourcesFolder, fingerprintsFilename));
+
+        List<Integer> pages = new ArrayList<>();
+        for (int pageIndex = 0; pageIndex < pageCount; pageIndex++) {
+            String filename = pageFilename(tid, leafletId, pageIndex + 1);
+            boolean unchanged = pageIndex < previous.size() && previous.get(pageIndex).equals(fingerprints.get(pageIndex))
+                    && Files.exists(Paths.get(resourcesFolder, filename))
+                    && derivativesEngine.exist(resourcesFolder, filename);
+            if (!unchanged) {
+                pages.add(pageIndex);
+            }
+        }
+
+        LOGGER.debug("Rendering {} of {} pages for leaflet {} and tenant {} from PDF file {}", pages.size(), pageCount,
+                leafletId, tid, pdf);
+
+        // The fingerprints no longer match the images once a page is written, they are dropped before rendering and
+        // written again only when every page is stored, so an interrupted rendering is never taken as complete
+        if (!previous.isEmpty()) {
+            storageService.delete(tid, resourcesFolder, fingerprintsFilename);
+        }
+
+        renderPages(tid, leafletId, pdf, resourcesFolder, maxWidth, maxHeight, pages, listener);
+
+        for (int pageIndex = pageCount; pageIndex < previous.size(); pageIndex++) {
+            String filename = pageFilename(tid, leafletId, pageIndex + 1);
+            try {
+                storageService.delete(tid, resourcesFolder, filename);
+                LOGGER.trace("Deleted image {} of removed page", filename);
+            } catch (IOException e) {
+                LOGGER.warn("Error deleting image {} of removed page: {}", filename, ExceptionUtils.getMessage(e));
+            }
+            derivativesEngine.delete(tid, resourcesFolder, filename);
+        }
+
+        writeFingerprints(tid, resourcesFolder, fingerprintsFilename, fingerprints);
+
+        LOGGER.debug("Rendered {} pages for leaflet {} and tenant {}", pages.size(), leafletId, tid);
+
+        return pageCount;
+    }
+
+    private void renderPages(String tid, String leafletId, File pdf, String resourcesFolder, int maxWidth, int maxHeight,
+                             List<Integer> pages, PageListener listener) throws IOException {
+
+        if (pages.isEmpty()) {
+            return;
+        }
+
+        int workers = Math.min(pages.size(), ((ThreadPoolExecutor) executor).getCorePoolSize());
+        AtomicInteger storedPages = new AtomicInteger();
+
+        List<Future<Void>> futures = new ArrayList<>(workers);
+        for (int worker = 0; worker < workers; worker++) {
+            int first = worker;
+            futures.add(executor.submit(() -> {
+                renderPages(tid, leafletId, pdf, resourcesFolder, maxWidth, maxHeight, pages, first, workers,
+                        storedPages, listener);
+                return null;
+            }));
+        }
+
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(f -> f.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rendering leaflet " + leafletId, e);
+        } catch (ExecutionException e) {
+            futures.forEach(f -> f.cancel(true));
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error rendering leaflet " + leafletId, e.getCause());
+        }
+    }
+
+    private void renderPages(String tid, String leafletId, File pdf, String resourcesFolder, int maxWidth, int maxHeight,
+                             List<Integer> pages, int first, int step, AtomicInteger storedPages,
+                             PageListener listener) throws IOException {
+
+        try (PDDocument document = PDDocument.load(pdf)) {
+
+            PDFRenderer pdfRenderer = new PDFRenderer(document);
+
+            for (int i = first; i < pages.size(); i += step) {
+
+                int pageIndex = pages.get(i);
+
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new IOException("Rendering of leaflet " + leafletId + " interrupted");
+                }
+
+                LOGGER.trace("Rendering page #{} of leaflet {}", pageIndex + 1, leafletId);
+
+                BufferedImage image = CmsImageDerivativesEngine.scale(
+                        pdfRenderer.renderImageWithDPI(pageIndex, RENDERING_DPI, ImageType.RGB), maxWidth, maxHeight);
+
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                ImageIOUtil.writeImage(image, "jpg", output, (int) RENDERING_DPI, JPEG_QUALITY);
+
+                String filename = pageFilename(tid, leafletId, pageIndex + 1);
+                storageService.store(output.toByteArray(), tid, filename, resourcesFolder);
+                derivativesEngine.store(tid, resourcesFolder, filename, image);
+
+                int stored = storedPages.incrementAndGet();
+                LOGGER.trace("Stored page #{} of leaflet {} ({}/{})", pageIndex + 1, leafletId, stored, pages.size());
+
+                if (listener != null) {
+                    listener.onPageStored(pageIndex + 1, stored, pages.size());
+                }
+            }
+        }
+    }
+
+    /**
+     * Hashes, page by page, everything that affects the rendering: the given rendering settings, the inherited page
+     * boxes and rotation, and the whole tree of objects reachable from the page, with the inherited resources: content
+     * streams, nested forms and patterns, fonts, images, color spaces and annotation appearances. The references back
+     * to the parent pages are not followed.
+     */
+    static List<String> fingerprints(PDDocument document, String settings) throws IOException {
+
+        List<String> fingerprints = new ArrayList<>(document.getNumberOfPages());
+
+        for (PDPage page : document.getPages()) {
+
+            MessageDigest digest = DigestUtils.getSha256Digest();
+
+            digest.update(settings.getBytes(StandardCharsets.UTF_8));
+            digest.update(String.valueOf(page.getMediaBox()).getBytes(StandardCharsets.US_ASCII));
+            digest.update(String.valueOf(page.getCropBox()).getBytes(StandardCharsets.US_ASCII));
+            digest.update(String.valueOf(page.getRotation()).getBytes(StandardCharsets.US_ASCII));
+
+            Map<COSBase, Integer> visited = new IdentityHashMap<>();
+
+            COSDictionary dictionary = page.getCOSObject();
+            for (COSName key : new TreeSet<>(dictionary.keySet())) {
+                if (!COSName.PARENT.equals(key) && !COSName.RESOURCES.equals(key)) {
+                    digest.update(key.getName().getBytes(StandardCharsets.UTF_8));
+                    hash(digest, dictionary.getItem(key), visited);
+                }
+            }
+
+            PDResources resources = page.getResources();
+            if (resources != null) {
+                digest.update(COSName.RESOURCES.getName().getBytes(StandardCharsets.UTF_8));
+                hash(digest, resources.getCOSObject(), visited);
+            }
+
+            fingerprints.add(Hex.encodeHexString(digest.digest()));
+        }
+
+        return fingerprints;
+    }
+
+    /**
+     * Hashes a PDF object and the objects it references, depth first with the dictionary keys in order. An object
+     * already hashed for the page is hashed as a reference to its first occurrence, so shared and cyclic objects are
+     * walked once.
+     */
+    private static void hash(MessageDigest digest, COSBase base, Map<COSBase, Integer> visited) throws IOException {
+
+        if (base instanceof COSObject) {
+            base = ((COSObject) base).getObject();
+        }
+
+        if (base == null || base instanceof COSNull) {
+            digest.update((byte) 'N');
+            return;
+        }
+
+        if (base instanceof COSDictionary || base instanceof COSArray) {
+            Integer occurrence = visited.get(base);
+            if (occurrence != null) {
+                digest.update(("@" + occurrence).getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            visited.put(base, visited.size());
+        }
+
+        if (base instanceof COSDictionary) {
+            COSDictionary dictionary = (COSDictionary) base;
+            digest.update((byte) '<');
+            for (COSName key : new TreeSet<>(dictionary.keySet())) {
+                if (COSName.PARENT.equals(key) || COSName.P.equals(key)) {
+                    continue;
+                }
+                digest.update(key.getName().getBytes(StandardCharsets.UTF_8));
+                hash(digest, dictionary.getItem(key), visited);
+            }
+            digest.update((byte) '>');
+            if (base instanceof COSStream) {
+                try (InputStream raw = ((COSStream) base).createRawInputStream()) {
+                    DigestUtils.updateDigest(digest, raw);
+                }
+            }
+        } else if (base instanceof COSArray) {
+            digest.update((byte) '[');
+            for (COSBase item : (COSArray) base) {
+                hash(digest, item, visited);
+            }
+            digest.update((byte) ']');
+        } else if (base instanceof COSString) {
+            digest.update((byte) '(');
+            digest.update(((COSString) base).getBytes());
+            digest.update((byte) ')');
+        } else if (base instanceof COSName) {
+            digest.update((byte) '/');
+            digest.update(((COSName) base).getName().getBytes(StandardCharsets.UTF_8));
+        } else if (base instanceof COSInteger) {
+            digest.update(String.valueOf(((COSInteger) base).longValue()).getBytes(StandardCharsets.US_ASCII));
+        } else if (base instanceof COSFloat) {
+            digest.update(String.valueOf(((COSFloat) base).floatValue()).getBytes(StandardCharsets.US_ASCII));
+        } else if (base instanceof COSBoolean) {
+            digest.update((byte) (((COSBoolean) base).getValue() ? 'T' : 'F'));
+        } else {
+            digest.update(base.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private List<String> readFingerprints(Path file) {
+
+        if (!Files.exists(file)) {
+            return Collections.emptyList();
+        }
+
+        try {
+            return Files.readAllLines(file, StandardCharsets.US_ASCII);
+        } catch (IOException e) {
+            LOGGER.warn("Error reading page fingerprints {}: {}", file, ExceptionUtils.getMessage(e));
+            return Collections.emptyList();
+        }
+    }
+
+    private void writeFingerprints(String tid, String resourcesFolder, String filename, List<String> fingerprints) {
+
+        try {
+            byte[] content = (String.join("\n", fingerprints) + "\n").getBytes(StandardCharsets.US_ASCII);
+            storageService.store(content, tid, filename, resourcesFolder);
+        } catch (IOException e) {
+            LOGGER.warn("Error writing page fingerprints {}: {}", filename, ExceptionUtils.getMessage(e));
+        }
+    }
+}
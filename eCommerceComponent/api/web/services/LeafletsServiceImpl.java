@@ -1,7 +1,7 @@
 package com.retapps.smartbip.cms.services;
 
+import com.retapps.smartbip.basis.engines.StoresBatchReader;
 import com.retapps.smartbip.basis.models.Store;
-import com.retapps.smartbip.basis.services.StoresService;
 import com.retapps.smartbip.cms.common.models.Leaflet;
 import com.retapps.smartbip.cms.common.services.LeafletsService;
 import com.retapps.smartbip.cms.entities.LeafletEntity;
@@ -13,46 +13,44 @@ import com.retapps.smartbip.common.services.View;
 import com.retapps.smartbip.common.utils.ResourcesLocationResolver;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.BooleanUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
-import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.pdmodel.PDPage;
-import org.apache.pdfbox.rendering.ImageType;
-import org.apache.pdfbox.rendering.PDFRenderer;
-import org.apache.pdfbox.tools.imageio.ImageIOUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
 import org.springframework.data.jpa.domain.Specifications;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.client.RestClientException;
-import org.springframework.web.client.RestTemplate;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.annotation.PostConstruct;
 import javax.persistence.EntityExistsException;
 import javax.persistence.EntityNotFoundException;
 import javax.validation.constraints.NotNull;
-import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static com.retapps.smartbip.cms.mappers.LeafletMapper.*;
 import static com.retapps.smartbip.cms.repositories.LeafletsSpecifications.*;
+import static com.retapps.smartbip.cms.services.CmsValidityIndex.Type.LEAFLET;
+import static com.retapps.smartbip.cms.services.CmsValidityIndex.hasIds;
+import static com.retapps.smartbip.cms.services.LeafletPdfRenderingEngine.pageFilename;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 import static org.springframework.data.jpa.domain.Specifications.where;
@@ -68,6 +66,13 @@ public class LeafletsServiceImpl implements LeafletsService {
 
     private static final int IMAGE_HEIGHT_IN_PIXEL = 1000;
 
+    private static final int MEDIA_PAGE_SIZE = 500;
+
+    @Value("${smartbip.cms.leaflets.cacheSeconds:60}")
+    private long cacheSeconds;
+
+    private CmsValidCache<LeafletEntity> validCache;
+
     @Autowired
     private LeafletsRepository repository;
 
@@ -75,11 +80,56 @@ public class LeafletsServiceImpl implements LeafletsService {
     private StorageService storageService;
 
     @Autowired
-    private StoresService storesService;
+    private StoresBatchReader storesBatchReader;
 
     @Autowired
     private ResourcesLocationResolver resourcesResolver;
 
+    @Autowired
+    private LeafletPdfRenderingEngine renderingEngine;
+
+    @Autowired
+    private LeafletPdfDownloader pdfDownloader;
+
+    @Autowired
+    private LeafletImportJobsEngine importJobsEngine;
+
+    @Autowired
+    private LeafletPagesIngestEngine ingestEngine;
+
+    @Autowired
+    private CmsValidityIndex validityIndex;
+
+    @Autowired
+    private CmsExpirySweeper expirySweeper;
+
+    @Autowired
+    private CmsMediaCollector mediaCollector;
+
+    @Autowired
+    private CmsUploadSpooler uploadSpooler;
+
+    @Autowired
+    private CmsContentStore contentStore;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate transactionTemplate;
+
+    @PostConstruct
+    void init() {
+
+        transactionTemplate = new TransactionTemplate(transactionManager);
+
+        validCache = new CmsValidCache<>("leaflets", LeafletEntity::getValidTo,
+                TimeUnit.SECONDS.toMillis(cacheSeconds));
+
+        validityIndex.register(LEAFLET, LeafletEntity.class, this::loadValidity);
+
+        mediaCollector.register("leaflets", LeafletEntity.class, resourcesResolver::getCmsLeafletsPath, this::referencedMedia);
+    }
+
     @Override
     public Page<Leaflet> readAll(@NotNull String tid, View view, PageRequest request) {
 
@@ -117,6 +167,7 @@ public class LeafletsServiceImpl implements LeafletsService {
         }
 
         LeafletEntity entity = repository.save(toEntity(tid, item));
+        changed(tid, cacheKeys(entity));
 
         return fromEntity(View.FULL, entity);
     }
@@ -129,11 +180,21 @@ public class LeafletsServiceImpl implements LeafletsService {
         Assert.hasLength(item.getId(), "Invalid id");
         Assert.hasLength(item.getCode(), "Invalid leaflet id");
 
-        if (!repository.exists(item.getId())) {
+        LeafletEntity previous = repository.findOne(item.getId());
+        if (previous == null) {
             throw new EntityNotFoundException("Leaflet #" + item.getId() + " not found for tenant " + tid);
         }
 
+        // Read before the save merges the new state into the managed entity
+        Set<String> released = media(previous);
+        Set<String> keys = cacheKeys(previous);
+
         LeafletEntity entity = repository.save(toEntity(tid, item));
+        keys.addAll(cacheKeys(entity));
+        changed(tid, keys);
+
+        released.removeAll(media(entity));
+        release(tid, released);
 
         return fromEntity(View.FULL, entity);
     }
@@ -159,11 +220,17 @@ public class LeafletsServiceImpl implements LeafletsService {
 
         LOGGER.debug("Deleting leaflet {} for tenant {}", id, tid);
 
-        if (!repository.exists(id)) {
+        LeafletEntity entity = repository.findOne(id);
+        if (entity == null) {
             throw new EntityNotFoundException("Leaflet #" + id + " not found for tenant " + tid);
         }
 
-        repository.delete(id);
+        Set<String> released = media(entity);
+
+        repository.delete(entity);
+        changed(tid, cacheKeys(entity));
+
+        release(tid, released);
     }
 
     @Override
@@ -171,7 +238,12 @@ public class LeafletsServiceImpl implements LeafletsService {
 
         LOGGER.debug("Deleting all leaflets for tenant {}", tid);
 
+        Set<String> released = referencedMedia(tid);
+
         repository.deleteByTid(tid);
+        changed(tid);
+
+        release(tid, released);
     }
 
     @Override
@@ -211,6 +283,7 @@ public class LeafletsServiceImpl implements LeafletsService {
         entity.setEnabled(true);
 
         entity = repository.save(entity);
+        changed(tid, cacheKeys(entity));
 
         return fromEntity(View.FULL, entity);
     }
@@ -228,6 +301,7 @@ public class LeafletsServiceImpl implements LeafletsService {
         entity.setEnabled(false);
 
         entity = repository.save(entity);
+        changed(tid, cacheKeys(entity));
 
         return fromEntity(View.FULL, entity);
     }
@@ -237,15 +311,7 @@ public class LeafletsServiceImpl implements LeafletsService {
 
         LOGGER.debug("Reading valid leaflets for tenant {}", tid);
 
-        Specifications<LeafletEntity> specifications = where(hasTenant(tid));
-        specifications = specifications.and(isEnabled());
-        specifications = specifications.and(isValid());
-
-        Sort sort = new Sort(Sort.Direction.DESC, "updated");
-
-        List<LeafletEntity> entities = repository.findAll(where(specifications), sort);
-
-        return fromEntities(view, entities);
+        return fromEntities(view, findLive(tid, null, null));
     }
 
     @Override
@@ -253,16 +319,7 @@ public class LeafletsServiceImpl implements LeafletsService {
 
         LOGGER.debug("Reading valid leaflets for tenant {} and store {}", tid, storeId);
 
-        Specifications<LeafletEntity> specifications = where(hasTenant(tid));
-        specifications = specifications.and(hasStore(storeId));
-        specifications = specifications.and(isEnabled());
-        specifications = specifications.and(isValid());
-
-        Sort sort = new Sort(Sort.Direction.DESC, "updated");
-
-        List<LeafletEntity> entities = repository.findAll(where(specifications), sort);
-
-        return fromEntities(view, entities);
+        return fromEntities(view, findLive(tid, storeId, null));
     }
 
     @Override
@@ -270,16 +327,7 @@ public class LeafletsServiceImpl implements LeafletsService {
 
         LOGGER.debug("Reading valid leaflets for tenant {} and category {}", tid, category);
 
-        Specifications<LeafletEntity> specifications = where(hasTenant(tid));
-        specifications = specifications.and(hasCategory(category));
-        specifications = specifications.and(isEnabled());
-        specifications = specifications.and(isValid());
-
-        Sort sort = new Sort(Sort.Direction.DESC, "updated");
-
-        List<LeafletEntity> entities = repository.findAll(where(specifications), sort);
-
-        return fromEntities(view, entities);
+        return fromEntities(view, findLive(tid, null, category));
     }
 
     @Override
@@ -326,49 +374,49 @@ public class LeafletsServiceImpl implements LeafletsService {
         LOGGER.debug("Deleting all expired leaflets");
 
         repository.deleteByValidToLessThanEqual(new Date());
+        changedAll();
     }
 
     @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public void deleteExpiredAndImages() {
 
         LOGGER.debug("Deleting all expired leaflets and images");
 
-        List<LeafletEntity> expired = repository.findAll(where(isExpired()));
+        expirySweeper.sweep("leaflets", isExpired(), new CmsExpirySweeper.Source<LeafletEntity>() {
 
-        for (LeafletEntity item : expired) {
-
-            // Leaflet cover
-            if (StringUtils.isNotBlank(item.getCoverImage())) {
-                try {
-                    String resourcesFolder = resourcesResolver.getCmsLeafletsPath(item.getTid()).toString();
-                    storageService.delete(item.getTid(), resourcesFolder, item.getCoverImage());
-                    LOGGER.trace("Deleting cover image {}", item.getCoverImage());
-
-                } catch (IOException e) {
-                    LOGGER.warn("Error deleting cover image {}: {}", item.getCoverImage(), ExceptionUtils.getMessage(e));
-                }
+            @Override
+            public Page<LeafletEntity> read(Specification<LeafletEntity> specification, Pageable pageable) {
+                return repository.findAll(specification, pageable);
             }
 
-            // Leaflet images
-            if (!CollectionUtils.isEmpty(item.getImages())) {
+            @Override
+            public void delete(List<String> ids) {
+                repository.delete(repository.findAll(ids));
+            }
 
-                for (String image : item.getImages()) {
+            @Override
+            public String getId(LeafletEntity entity) {
+                return entity.getId();
+            }
 
-                    try {
-                        String resourcesFolder = resourcesResolver.getCmsLeafletsPath(item.getTid()).toString();
-                        storageService.delete(item.getTid(), resourcesFolder, image);
-                        LOGGER.trace("Deleting leaflet image {}", image);
+            @Override
+            public String getTid(LeafletEntity entity) {
+                return entity.getTid();
+            }
 
-                    } catch (IOException e) {
-                        LOGGER.warn("Error deleting leaflet image {}: {}", image, ExceptionUtils.getMessage(e));
-                    }
+            @Override
+            public Collection<String> getMedia(LeafletEntity entity) {
+                return media(entity);
+            }
 
-                }
+            @Override
+            public String getFolder(String tid) {
+                return resourcesResolver.getCmsLeafletsPath(tid).toString();
             }
-            LOGGER.trace("All images deleted for leaflet {} and tenant {}", item.getId(), item.getTid());
-        }
+        });
 
-        deleteExpired();
+        changedAll();
     }
 
     /**
@@ -380,11 +428,14 @@ public class LeafletsServiceImpl implements LeafletsService {
         try {
             String resourcesFolder = resourcesResolver.getCmsLeafletsPath(tid).toString();
 
-            String filename = storageService.store(file, tid, resourcesFolder,
-                    new ImageSize(IMAGE_WIDTH_IN_PIXEL, IMAGE_HEIGHT_IN_PIXEL));
+            try (CmsUploadSpooler.Upload upload = uploadSpooler.spoolImage(file)) {
 
-            if (isNotBlank(filename)) {
-                item.setCoverImage(filename);
+                String filename = contentStore.store(tid, resourcesFolder, upload.getFile(),
+                        new ImageSize(IMAGE_WIDTH_IN_PIXEL, IMAGE_HEIGHT_IN_PIXEL), true);
+
+                if (isNotBlank(filename)) {
+                    item.setCoverImage(filename);
+                }
             }
 
         } catch (IOException e) {
@@ -404,8 +455,8 @@ public class LeafletsServiceImpl implements LeafletsService {
         try {
             String resourcesFolder = resourcesResolver.getCmsLeafletsPath(tid).toString();
 
-            String filename = storageService.store(file, tid, resourcesFolder,
-                    new ImageSize(IMAGE_WIDTH_IN_PIXEL, IMAGE_HEIGHT_IN_PIXEL));
+            String filename = contentStore.store(tid, resourcesFolder, file,
+                    new ImageSize(IMAGE_WIDTH_IN_PIXEL, IMAGE_HEIGHT_IN_PIXEL), true);
 
             if (isNotBlank(filename)) {
                 item.setCoverImage(filename);
@@ -424,8 +475,9 @@ public class LeafletsServiceImpl implements LeafletsService {
         try {
             String resourcesFolder = resourcesResolver.getCmsLeafletsPath(tid).toString();
 
-            String filename = storageService.store(file, tid, resourcesFolder,
-                    new ImageSize(IMAGE_WIDTH_IN_PIXEL, IMAGE_HEIGHT_IN_PIXEL));
+            // The update releases the page images the item no longer lists
+            String filename = contentStore.store(tid, resourcesFolder, file,
+                    new ImageSize(IMAGE_WIDTH_IN_PIXEL, IMAGE_HEIGHT_IN_PIXEL), true);
 
             if (isNotBlank(filename) && item.getImages() != null && !item.getImages().contains(filename)) {
                 item.getImages().add(filename);
@@ -452,14 +504,33 @@ public class LeafletsServiceImpl implements LeafletsService {
             item.setImages(new ArrayList<String>());
         }
 
-        for (MultipartFile file : files) {
-            String filename = storageService.store(file, tid, resourcesFolder,
-                    new ImageSize(IMAGE_WIDTH_IN_PIXEL, IMAGE_HEIGHT_IN_PIXEL));
-            if (StringUtils.isNotBlank(filename)) {
-                item.getImages().add(filename);
+        List<LeafletPagesIngestEngine.Result> results = ingestEngine.ingest(tid, resourcesFolder, files,
+                new ImageSize(IMAGE_WIDTH_IN_PIXEL, IMAGE_HEIGHT_IN_PIXEL));
+
+        List<LeafletPagesIngestEngine.Result> failed = new ArrayList<>();
+        for (LeafletPagesIngestEngine.Result result : results) {
+            if (!result.isStored()) {
+                failed.add(result);
             }
         }
 
+        // A leaflet is never saved with missing pages, the pages of a failed upload are released
+        if (!failed.isEmpty()) {
+            Set<String> stored = new HashSet<>();
+            for (LeafletPagesIngestEngine.Result result : results) {
+                if (result.isStored()) {
+                    stored.add(result.getFilename());
+                }
+            }
+            release(tid, stored);
+            throw new LeafletPagesIngestEngine.IngestException("Error storing " + failed.size() + " of " + files.size()
+                    + " pages for leaflet #" + item.getId() + " and tenant " + tid + ": " + failed, results);
+        }
+
+        for (LeafletPagesIngestEngine.Result result : results) {
+            item.getImages().add(result.getFilename());
+        }
+
         return update(tid, item);
     }
 
@@ -491,14 +562,10 @@ public class LeafletsServiceImpl implements LeafletsService {
         List<Store> stores = new ArrayList<>();
 
         if (CollectionUtils.isNotEmpty(entity.getStores())) {
-            Store store;
-            for (String storeId : entity.getStores()) {
-                try {
-                    store = storesService.read(tid, storeId);
-                    stores.add(store);
-                } catch (EntityNotFoundException e) {
-                    LOGGER.trace("Store {} not found for tenant {}: {}", storeId, tid, ExceptionUtils.getMessage(e));
-                }
+            StoresBatchReader.Result result = storesBatchReader.readAll(tid, entity.getStores());
+            stores.addAll(result.getFound());
+            if (!result.getMissing().isEmpty()) {
+                LOGGER.trace("Stores {} not found for tenant {}", result.getMissing(), tid);
             }
         }
 
@@ -517,6 +584,8 @@ public class LeafletsServiceImpl implements LeafletsService {
             throw new EntityNotFoundException("Leaflet #" + id + " not found for tenant " + tid);
         }
 
+        Set<String> keys = cacheKeys(entity);
+
         entity.setStores(new ArrayList<String>());
 
         for (Store store : stores) {
@@ -527,6 +596,8 @@ public class LeafletsServiceImpl implements LeafletsService {
         }
 
         entity = repository.save(entity);
+        keys.addAll(cacheKeys(entity));
+        changed(tid, keys);
 
         return fromEntity(View.FULL, entity);
     }
@@ -539,19 +610,24 @@ public class LeafletsServiceImpl implements LeafletsService {
 
         // Download PDF from URL:
 
-        String localPdfFilePath = downloadLeafletPDF(tid, item.getId(), item.getPdf());
+        LeafletPdfDownloader.Result download = downloadLeafletPDF(tid, item.getId(), item.getPdf());
+
+        if (!download.isModified() && CollectionUtils.isNotEmpty(item.getImages())) {
+            LOGGER.debug("PDF {} of leaflet {} not modified, keeping current images", item.getPdf(), item.getId());
+            return update(tid, item);
+        }
 
         // Render PDF pages and save images:
 
-        int pageCount = createLeafletImagesFromPdfFile(tid, item.getId(), localPdfFilePath);
+        int pageCount = createLeafletImagesFromPdfFile(tid, item.getId(), download.getFile().toString());
 
         // Update leaflet cover and images:
 
-        item.setCoverImage(String.format("LEAFLET_%s_%s_001.jpg", tid, item.getId()));
+        item.setCoverImage(pageFilename(tid, item.getId(), 1));
 
         List<String> images = new ArrayList<>();
         for (int i = 0; i < pageCount; i++) {
-            images.add(String.format("LEAFLET_%s_%s_%03d.jpg", tid, item.getId(), i + 1));
+            images.add(pageFilename(tid, item.getId(), i + 1));
         }
         item.setImages(images);
 
@@ -560,84 +636,230 @@ public class LeafletsServiceImpl implements LeafletsService {
         return item;
     }
 
+    /**
+     * Queues the import of the PDF pages in the leaflet import jobs engine, the PDF is spooled to a uniquely named local
+     * file before returning since the multipart is released at the end of the request, and deleted when the job ends.
+     */
     @Override
-    @Async
     public Leaflet createImagesFromPdf(@NotNull String tid, @NotNull Leaflet item, MultipartFile pdf)
             throws RestClientException, IOException, InterruptedException {
 
         LOGGER.debug("Create images for leaflet {} from PDF {}", item.getId(), pdf);
 
-        String javaIoTmpdir = System.getProperty("java.io.tmpdir");
-        Path tempPdfPath = Paths.get(javaIoTmpdir, pdf.getOriginalFilename());
-        pdf.transferTo(tempPdfPath.toFile());
-        String localPdfFilePath = tempPdfPath.toString();
+        CmsUploadSpooler.Upload upload = uploadSpooler.spool(pdf);
+        String localPdfFilePath = upload.getFile().getPath();
 
-        // Render PDF pages and save images:
+        LeafletImportJob job;
+        try {
+            job = importJobsEngine.submit(tid, item.getId(), j -> {
 
-        int pageCount = createLeafletImagesFromPdfFile(tid, item.getId(), localPdfFilePath);
+                // Render PDF pages and save images:
 
-        // Update leaflet cover and images:
+                j.rendering();
+                int pageCount;
+                try {
+                    pageCount = createLeafletImagesFromPdfFile(tid, item.getId(), localPdfFilePath,
+                            (pageNumber, storedPages, pages) -> j.progress(storedPages, pages));
+                } finally {
+                    upload.close();
+                }
 
-        item.setCoverImage(String.format("LEAFLET_%s_%s_001.jpg", tid, item.getId()));
+                // Update leaflet cover and images:
 
-        List<String> images = new ArrayList<>();
-        for (int i = 0; i < pageCount; i++) {
-            images.add(String.format("LEAFLET_%s_%s_%03d.jpg", tid, item.getId(), i + 1));
+                j.storing();
+                item.setCoverImage(pageFilename(tid, item.getId(), 1));
+
+                List<String> images = new ArrayList<>();
+                for (int i = 0; i < pageCount; i++) {
+                    images.add(pageFilename(tid, item.getId(), i + 1));
+                }
+                item.setImages(images);
+
+                // On a worker thread, outside the transactional proxy
+                transactionTemplate.execute(status -> update(tid, item));
+            });
+        } catch (RejectedExecutionException e) {
+            upload.close();
+            throw e;
         }
-        item.setImages(images);
 
-        item = update(tid, item);
+        LOGGER.debug("Leaflet {} import queued as job {}", item.getId(), job.getId());
 
         return item;
     }
 
-    private String downloadLeafletPDF(String tid, String leafletId, String url) throws IOException {
+    private LeafletPdfDownloader.Result downloadLeafletPDF(String tid, String leafletId, String url) throws IOException {
 
         LOGGER.debug("Downloading PDF {}", url);
 
-        RestTemplate template = new RestTemplate();
-        byte[] bytes = template.getForObject(url, byte[].class);
         String resourcesFolder = resourcesResolver.getCmsLeafletsPath(tid).toString();
-        return storageService.store(bytes, tid, String.format("LEAFLET_%s_%s.pdf", tid, leafletId), resourcesFolder);
+        return pdfDownloader.download(url, Paths.get(resourcesFolder, pdfFilename(tid, leafletId)));
     }
 
     private int createLeafletImagesFromPdfFile(String tid, String leafletId, String file) throws IOException {
 
+        return createLeafletImagesFromPdfFile(tid, leafletId, file,
+                (pageNumber, storedPages, pageCount) -> LOGGER.debug("Leaflet {} page #{} stored ({}/{})",
+                        leafletId, pageNumber, storedPages, pageCount));
+    }
+
+    private int createLeafletImagesFromPdfFile(String tid, String leafletId, String file,
+                                               LeafletPdfRenderingEngine.PageListener listener) throws IOException {
+
         LOGGER.debug("Creating images for leaflet {} from PDF file {}", leafletId, file);
 
-        PDDocument document = PDDocument.load(new File(file));
-        LOGGER.trace("PDF document {}", document);
+        String resourcesFolder = resourcesResolver.getCmsLeafletsPath(tid).toString();
 
-        PDFRenderer pdfRenderer = new PDFRenderer(document);
-        String javaIoTmpdir = System.getProperty("java.io.tmpdir");
+        return renderingEngine.render(tid, leafletId, new File(file), resourcesFolder,
+                IMAGE_WIDTH_IN_PIXEL, IMAGE_HEIGHT_IN_PIXEL, listener);
+    }
 
-        int pageCounter = 0;
-        for (PDPage page : document.getPages()) {
+    private void changed(String tid) {
 
-            LOGGER.trace("Rendering page #{}: {}", pageCounter + 1, page);
+        validCache.invalidate(tid);
+        validityIndex.invalidate(LEAFLET, tid);
+    }
 
-            BufferedImage bim = pdfRenderer.renderImageWithDPI(pageCounter, 100, ImageType.RGB);
-            LOGGER.trace("Rendered page image is: {}", bim);
+    /**
+     * Invalidates the cached lists a leaflet write can change, the other lists of the tenant are kept.
+     */
+    private void changed(String tid, Set<String> keys) {
+
+        validCache.invalidate(tid, keys);
+        validityIndex.invalidate(LEAFLET, tid);
+    }
+
+    private void changedAll() {
 
-            Path tempPath = Paths.get(javaIoTmpdir, String.format("LEAFLET_%s_%s_%03d.jpg", tid, leafletId, pageCounter + 1));
-            LOGGER.trace("Writing rendered page image in file {}", tempPath);
-            FileOutputStream output = new FileOutputStream(tempPath.toFile());
-            try {
-                ImageIOUtil.writeImage(bim, "jpg", output, 100, 0.60f);
-            } finally {
-                output.close();
+        validCache.invalidateAll();
+        validityIndex.invalidateAll(LEAFLET);
+    }
+
+    private List<CmsValidityIndex.Entry> loadValidity(String tid) {
+
+        Date now = new Date();
+
+        Specifications<LeafletEntity> specifications = where(hasTenant(tid));
+        specifications = specifications.and(isEnabled());
+
+        List<CmsValidityIndex.Entry> entries = new ArrayList<>();
+        for (LeafletEntity entity : repository.findAll(specifications)) {
+            if (entity.getValidTo() == null || !entity.getValidTo().before(now)) {
+                entries.add(new CmsValidityIndex.Entry(entity.getId(), entity.getValidFrom(), entity.getValidTo(),
+                        entity.getStores(), entity.getCategoryId()));
             }
+        }
 
-            String resourcesFolder = resourcesResolver.getCmsLeafletsPath(tid).toString();
+        return entries;
+    }
+
+    /**
+     * The filenames of the cover, page images, downloaded PDF and page fingerprints of the leaflets of a tenant.
+     */
+    private Set<String> referencedMedia(String tid) {
 
-            storageService.store(tempPath.toFile(), tid, resourcesFolder, new ImageSize(IMAGE_WIDTH_IN_PIXEL, IMAGE_HEIGHT_IN_PIXEL));
+        Set<String> filenames = new HashSet<>();
 
-            pageCounter++;
+        Page<LeafletEntity> page;
+        PageRequest request = new PageRequest(0, MEDIA_PAGE_SIZE, new Sort(Sort.Direction.ASC, "id"));
+        do {
+            page = repository.findAll(where(hasTenant(tid)), request);
+            for (LeafletEntity entity : page) {
+                filenames.addAll(media(entity));
+            }
+            request = (PageRequest) page.nextPageable();
+        } while (page.hasNext());
+
+        return filenames;
+    }
+
+    /**
+     * The filenames of the cover, page images, downloaded PDF and page fingerprints of a leaflet.
+     */
+    private static Set<String> media(LeafletEntity entity) {
+
+        Set<String> filenames = new LinkedHashSet<>();
+        if (isNotBlank(entity.getCoverImage())) {
+            filenames.add(entity.getCoverImage());
+        }
+        if (entity.getImages() != null) {
+            filenames.addAll(entity.getImages());
+        }
+        filenames.add(pdfFilename(entity.getTid(), entity.getId()));
+        filenames.add(pdfFilename(entity.getTid(), entity.getId()) + ".properties");
+        filenames.add(LeafletPdfRenderingEngine.fingerprintsFilename(entity.getTid(), entity.getId()));
+        return filenames;
+    }
+
+    /**
+     * Deletes the images no longer referenced by any leaflet once the transaction commits.
+     */
+    private void release(String tid, Set<String> filenames) {
+
+        contentStore.release(tid, resourcesResolver.getCmsLeafletsPath(tid).toString(), filenames);
+    }
+
+    private static String pdfFilename(String tid, String leafletId) {
+
+        return String.format("LEAFLET_%s_%s.pdf", tid, leafletId);
+    }
+
+    /**
+     * The valid leaflets of a tenant for a store or a category, null values match any, cached until the next validity
+     * boundary.
+     */
+    private List<LeafletEntity> findLive(String tid, String storeId, String category) {
+
+        // Nothing is cached for the tenant ids without leaflets
+        if (!validityIndex.isIndexed(LEAFLET, tid)) {
+            return Collections.emptyList();
+        }
+
+        return validCache.get(tid, cacheKey(storeId, category),
+                () -> findValid(tid, validityIndex.live(LEAFLET, tid, storeId, category)),
+                () -> validityIndex.nextBoundary(LEAFLET, tid));
+    }
+
+    private static String cacheKey(String storeId, String category) {
+
+        return storeId != null ? "store:" + storeId : category != null ? "category:" + category : "*";
+    }
+
+    /**
+     * The keys of the cached lists a leaflet is in, or was in before a write.
+     */
+    private static Set<String> cacheKeys(LeafletEntity entity) {
+
+        Set<String> keys = new HashSet<>();
+        keys.add(cacheKey(null, null));
+        if (entity.getStores() != null) {
+            for (String storeId : entity.getStores()) {
+                keys.add(cacheKey(storeId, null));
+            }
+        }
+        if (entity.getCategoryId() != null) {
+            keys.add(cacheKey(null, entity.getCategoryId()));
         }
+        return keys;
+    }
+
+    private List<LeafletEntity> findValid(String tid, Set<String> ids) {
+
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Specifications<LeafletEntity> specifications = where(hasTenant(tid));
+        specifications = specifications.and(hasIds(ids));
+
+        Sort sort = new Sort(Sort.Direction.DESC, "updated");
+
+        List<LeafletEntity> entities = repository.findAll(where(specifications), sort);
 
-        document.close();
+        // Mapping once initializes the lazy associations before the entities are cached detached
+        fromEntities(View.FULL, entities);
 
-        return pageCounter;
+        return entities;
     }
 
     @Override
@@ -0,0 +1,39 @@
+package com.retapps.smartbip.basis.engines;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A page of a keyset paginated listing: the items, the cursor of the next page, null on the last page, and the total
+ * number of items, null unless requested.
+ */
+public class KeysetPage<T> implements Serializable {
+
+    private final List<T> items;
+
+    private final String next;
+
+    private final Long total;
+
+    public KeysetPage(List<T> items, String next, Long total) {
+        this.items = items;
+        this.next = next;
+        this.total = total;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    public String getNext() {
+        return next;
+    }
+
+    public Long getTotal() {
+        return total;
+    }
+
+    public boolean isLast() {
+        return next == null;
+    }
+}
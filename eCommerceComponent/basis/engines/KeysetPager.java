@@ -0,0 +1,174 @@
+package com.retapps.smartbip.basis.engines;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.criteria.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Keyset (seek) pagination of the entities matching a specification.
+ * <p>
+ * The entities are ordered by a sort property and then by id, and a page starts right after the sort value and id of
+ * the last entity of the previous page, carried by an opaque cursor: a page is a range scan of {@code size + 1} rows
+ * on the sort index whatever its depth, where an offset page reads and discards all the rows before it. The total is
+ * counted only on request. The sort property must be a non null string, number or date column, and the pages are
+ * stable under concurrent inserts and deletes, which an offset shifts.
+ */
+@Component
+@Transactional(readOnly = true)
+public class KeysetPager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KeysetPager.class);
+
+    public static final int MAX_SIZE = 1000;
+
+    private static final String ID = "id";
+
+    private static final char SEPARATOR = '\n';
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * Reads the page of entities after a cursor.
+     *
+     * @param cursor the next cursor of the previous page, null for the first page
+     * @param count  whether to count the total of the matching entities
+     */
+    public <E> KeysetPage<E> seek(Class<E> entityClass, Specification<E> specification, String sortProperty,
+                                  Sort.Direction direction, String cursor, int size, boolean count) {
+
+        int limit = Math.max(1, Math.min(MAX_SIZE, size));
+
+        LOGGER.debug("Seeking {} {} {} after {}", limit, entityClass.getSimpleName(), sortProperty, cursor);
+
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+
+        CriteriaQuery<E> query = cb.createQuery(entityClass);
+        Root<E> root = query.from(entityClass);
+
+        List<Predicate> predicates = new ArrayList<>();
+        Predicate predicate = specification != null ? specification.toPredicate(root, query, cb) : null;
+        if (predicate != null) {
+            predicates.add(predicate);
+        }
+        if (cursor != null) {
+            predicates.add(after(cb, root, sortProperty, direction, cursor));
+        }
+
+        query.select(root).where(predicates.toArray(new Predicate[predicates.size()]));
+        if (direction == Sort.Direction.DESC) {
+            query.orderBy(cb.desc(root.get(sortProperty)), cb.desc(root.get(ID)));
+        } else {
+            query.orderBy(cb.asc(root.get(sortProperty)), cb.asc(root.get(ID)));
+        }
+
+        List<E> entities = entityManager.createQuery(query).setMaxResults(limit + 1).getResultList();
+
+        String next = null;
+        if (entities.size() > limit) {
+            entities = new ArrayList<>(entities.subList(0, limit));
+            next = cursor(entities.get(limit - 1), sortProperty);
+        }
+
+        Long total = count ? count(entityClass, specification) : null;
+
+        LOGGER.trace("Seeked {} {}, next {}", entities.size(), entityClass.getSimpleName(), next);
+
+        return new KeysetPage<>(entities, next, total);
+    }
+
+    private <E> long count(Class<E> entityClass, Specification<E> specification) {
+
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+
+        CriteriaQuery<Long> query = cb.createQuery(Long.class);
+        Root<E> root = query.from(entityClass);
+        Predicate predicate = specification != null ? specification.toPredicate(root, query, cb) : null;
+
+        query.select(query.isDistinct() ? cb.countDistinct(root) : cb.count(root));
+        if (predicate != null) {
+            query.where(predicate);
+        }
+
+        return entityManager.createQuery(query).getSingleResult();
+    }
+
+    /**
+     * The rows after the cursor position in the sort order.
+     */
+    @SuppressWarnings("unchecked")
+    private static <E> Predicate after(CriteriaBuilder cb, Root<E> root, String sortProperty, Sort.Direction direction,
+                                       String cursor) {
+
+        String decoded;
+        try {
+            decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor " + cursor);
+        }
+        int separator = decoded.lastIndexOf(SEPARATOR);
+        if (separator < 0) {
+            throw new IllegalArgumentException("Invalid cursor " + cursor);
+        }
+
+        String id = decoded.substring(separator + 1);
+        boolean descending = direction == Sort.Direction.DESC;
+
+        Path<String> idPath = root.get(ID);
+        Predicate afterId = descending ? cb.lessThan(idPath, id) : cb.greaterThan(idPath, id);
+        if (ID.equals(sortProperty)) {
+            return afterId;
+        }
+
+        Path<Comparable> keyPath = root.get(sortProperty);
+        Comparable key = parse(keyPath.getJavaType(), decoded.substring(0, separator), cursor);
+
+        return cb.or(descending ? cb.lessThan(keyPath, key) : cb.greaterThan(keyPath, key),
+                cb.and(cb.equal(keyPath, key), afterId));
+    }
+
+    private static String cursor(Object entity, String sortProperty) {
+
+        BeanWrapperImpl wrapper = new BeanWrapperImpl(entity);
+
+        Object key = wrapper.getPropertyValue(sortProperty);
+        String value = key instanceof Date ? String.valueOf(((Date) key).getTime()) : String.valueOf(key);
+
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((value + SEPARATOR + wrapper.getPropertyValue(ID)).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Comparable parse(Class<?> type, String value, String cursor) {
+
+        try {
+            if (String.class.equals(type)) {
+                return value;
+            } else if (Date.class.isAssignableFrom(type)) {
+                return new Date(Long.parseLong(value));
+            } else if (Long.class.equals(type) || long.class.equals(type)) {
+                return Long.valueOf(value);
+            } else if (Integer.class.equals(type) || int.class.equals(type)) {
+                return Integer.valueOf(value);
+            } else if (Double.class.equals(type) || double.class.equals(type)) {
+                return Double.valueOf(value);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor " + cursor);
+        }
+
+        throw new IllegalArgumentException("Unsupported keyset sort type " + type.getName());
+    }
+}
@@ -0,0 +1,99 @@
+package com.retapps.smartbip.basis.engines;
+
+import com.retapps.smartbip.basis.entities.StoreEntity;
+import com.retapps.smartbip.basis.models.Store;
+import com.retapps.smartbip.basis.repositories.StoresRepository;
+import com.retapps.smartbip.common.services.View;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.validation.constraints.NotNull;
+import java.util.*;
+
+import static com.retapps.smartbip.basis.mappers.StoreMapper.fromEntity;
+
+/**
+ * Reads many stores of a tenant by id with one {@code IN} query per chunk of ids, instead of one query (and one
+ * {@link javax.persistence.EntityNotFoundException}) per store.
+ */
+@Component
+@Transactional(readOnly = true)
+public class StoresBatchReader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StoresBatchReader.class);
+
+    private static final int CHUNK_SIZE = 500;
+
+    /**
+     * The stores found, in the order of the requested ids, and the ids not found for the tenant.
+     */
+    public static class Result {
+
+        private final List<Store> found;
+
+        private final Set<String> missing;
+
+        Result(List<Store> found, Set<String> missing) {
+            this.found = found;
+            this.missing = missing;
+        }
+
+        public List<Store> getFound() {
+            return found;
+        }
+
+        public Set<String> getMissing() {
+            return missing;
+        }
+    }
+
+    @Autowired
+    private StoresRepository repository;
+
+    public Result readAll(@NotNull String tid, Collection<String> ids) {
+
+        Set<String> requested = new LinkedHashSet<>();
+        if (ids != null) {
+            for (String id : ids) {
+                if (id != null) {
+                    requested.add(id);
+                }
+            }
+        }
+
+        LOGGER.debug("Reading {} stores for tenant {}", requested.size(), tid);
+
+        Map<String, Store> stores = new HashMap<>();
+
+        List<String> chunk = new ArrayList<>(CHUNK_SIZE);
+        for (Iterator<String> iterator = requested.iterator(); iterator.hasNext(); ) {
+            chunk.add(iterator.next());
+            if (chunk.size() == CHUNK_SIZE || !iterator.hasNext()) {
+                for (StoreEntity entity : repository.findAll(chunk)) {
+                    if (tid.equals(entity.getTid())) {
+                        stores.put(entity.getId(), fromEntity(View.FULL, entity));
+                    }
+                }
+                chunk.clear();
+            }
+        }
+
+        List<Store> found = new ArrayList<>(stores.size());
+        Set<String> missing = new LinkedHashSet<>();
+        for (String id : requested) {
+            Store store = stores.get(id);
+            if (store != null) {
+                found.add(store);
+            } else {
+                missing.add(id);
+            }
+        }
+
+        LOGGER.trace("Read {} stores for tenant {}, missing {}", found.size(), tid, missing);
+
+        return new Result(found, missing);
+    }
+}
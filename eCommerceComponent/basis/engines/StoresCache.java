@@ -0,0 +1,333 @@
+package com.retapps.smartbip.basis.engines;
+
+import com.retapps.smartbip.basis.models.Store;
+import com.retapps.smartbip.basis.services.StoresService;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityNotFoundException;
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read through cache of the stores read by id, in front of the {@link StoresService}.
+ * <p>
+ * The first level is a least recently used map of this node, bounded in size and with a time to live, the second an
+ * optional cache shared by the nodes, taken from the Spring {@link CacheManager} when enabled. A miss on both reads
+ * the store from the service and fills both. The stores are copied in and out, so callers can decorate them.
+ * <p>
+ * The shared entries carry their own expiry, since a Spring cache has no time to live of its own, and their keys a
+ * generation of the tenant kept in the shared cache, so invalidating a tenant drops its shared entries on all the
+ * nodes. The writes made through the {@link StoresWriter} invalidate the store in both levels; the first level of the
+ * other nodes, and without a shared cache every node, see a write when their entries expire, within the time to live.
+ */
+@Component
+public class StoresCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StoresCache.class);
+
+    /**
+     * The counters of the cache since startup.
+     */
+    public static class Stats {
+
+        private final long hits;
+
+        private final long sharedHits;
+
+        private final long misses;
+
+        private final long evictions;
+
+        private final int size;
+
+        Stats(long hits, long sharedHits, long misses, long evictions, int size) {
+            this.hits = hits;
+            this.sharedHits = sharedHits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.size = size;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getSharedHits() {
+            return sharedHits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public double getHitRatio() {
+            long requests = hits + sharedHits + misses;
+            return requests == 0 ? 0 : (double) (hits + sharedHits) / requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d hits, %d shared hits, %d misses (%.1f%% hit ratio), %d evictions, %d entries",
+                    hits, sharedHits, misses, getHitRatio() * 100, evictions, size);
+        }
+    }
+
+    private static class Entry implements Serializable {
+
+        private final Store store;
+
+        private final long expires;
+
+        Entry(Store store, long expires) {
+            this.store = store;
+            this.expires = expires;
+        }
+    }
+
+    @Value("${smartbip.basis.stores.cache.maxSize:10000}")
+    private int maxSize;
+
+    @Value("${smartbip.basis.stores.cache.ttlSeconds:300}")
+    private long ttlSeconds;
+
+    @Value("${smartbip.basis.stores.cache.shared:false}")
+    private boolean sharedEnabled;
+
+    @Value("${smartbip.basis.stores.cache.sharedName:stores}")
+    private String sharedName;
+
+    @Value("${smartbip.basis.stores.cache.statsMinutes:60}")
+    private long statsMinutes;
+
+    @Autowired
+    private StoresService storesService;
+
+    @Autowired(required = false)
+    private CacheManager cacheManager;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong sharedHits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "stores-cache-stats");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Map<String, Entry> entries;
+
+    private Cache shared;
+
+    @PostConstruct
+    void init() {
+
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        if (sharedEnabled && cacheManager != null) {
+            shared = cacheManager.getCache(sharedName);
+        }
+
+        if (statsMinutes > 0) {
+            scheduler.scheduleWithFixedDelay(() -> LOGGER.info("Stores cache: {}", getStats()), statsMinutes,
+                    statsMinutes, TimeUnit.MINUTES);
+        }
+
+        LOGGER.info("Stores cache of {} entries for {} s, shared cache {}", maxSize, ttlSeconds,
+                shared != null ? sharedName : "disabled");
+    }
+
+    @PreDestroy
+    void destroy() {
+
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Reads a store of a tenant by id.
+     */
+    public Store read(String tid, String id) throws EntityNotFoundException {
+
+        String key = key(tid, id);
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expires > now) {
+                hits.incrementAndGet();
+                return StoresSnapshot.copy(entry.store);
+            }
+            if (entry != null) {
+                entries.remove(key);
+            }
+        }
+
+        String sharedKey = sharedKey(tid, id);
+        Entry entry = readShared(sharedKey, now);
+        if (entry != null) {
+            sharedHits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            entry = new Entry(StoresSnapshot.copy(storesService.read(tid, id)),
+                    now + TimeUnit.SECONDS.toMillis(ttlSeconds));
+            writeShared(sharedKey, entry);
+        }
+
+        synchronized (this) {
+            entries.put(key, entry);
+        }
+
+        return StoresSnapshot.copy(entry.store);
+    }
+
+    /**
+     * Invalidates a store after it changed.
+     */
+    public void invalidate(String tid, String id) {
+
+        String key = key(tid, id);
+
+        synchronized (this) {
+            entries.remove(key);
+        }
+
+        if (shared != null) {
+            try {
+                shared.evict(sharedKey(tid, id));
+            } catch (RuntimeException e) {
+                LOGGER.warn("Error evicting store {} from the shared cache: {}", key, ExceptionUtils.getMessage(e));
+            }
+        }
+    }
+
+    /**
+     * Invalidates the stores of a tenant, in the first level of this node and in the shared cache.
+     */
+    public void invalidate(String tid) {
+
+        String prefix = key(tid, "");
+
+        synchronized (this) {
+            entries.keySet().removeIf(key -> key.startsWith(prefix));
+        }
+
+        if (shared != null) {
+            try {
+                shared.put(generationKey(tid), UUID.randomUUID().toString());
+            } catch (RuntimeException e) {
+                LOGGER.warn("Error invalidating the stores of tenant {} in the shared cache: {}", tid,
+                        ExceptionUtils.getMessage(e));
+            }
+        }
+    }
+
+    public Stats getStats() {
+
+        int size;
+        synchronized (this) {
+            size = entries.size();
+        }
+        return new Stats(hits.get(), sharedHits.get(), misses.get(), evictions.get(), size);
+    }
+
+    private Entry readShared(String key, long now) {
+
+        if (key == null) {
+            return null;
+        }
+
+        try {
+            Entry entry = shared.get(key, Entry.class);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expires <= now) {
+                shared.evict(key);
+                return null;
+            }
+            return new Entry(StoresSnapshot.copy(entry.store), entry.expires);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Error reading store {} from the shared cache: {}", key, ExceptionUtils.getMessage(e));
+            return null;
+        }
+    }
+
+    private void writeShared(String key, Entry entry) {
+
+        if (key == null) {
+            return;
+        }
+
+        try {
+            shared.put(key, entry);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Error writing store {} to the shared cache: {}", key, ExceptionUtils.getMessage(e));
+        }
+    }
+
+    /**
+     * The key of a store in the shared cache, with the current generation of its tenant, null without a shared cache
+     * or if the generation cannot be read.
+     */
+    private String sharedKey(String tid, String id) {
+
+        if (shared == null) {
+            return null;
+        }
+
+        try {
+            String generation = shared.get(generationKey(tid), String.class);
+            return key(tid, id) + ":" + (generation != null ? generation : "0");
+        } catch (RuntimeException e) {
+            LOGGER.warn("Error reading the stores generation of tenant {} from the shared cache: {}", tid,
+                    ExceptionUtils.getMessage(e));
+            return null;
+        }
+    }
+
+    private static String generationKey(String tid) {
+
+        return "generation:" + tid;
+    }
+
+    private static String key(String tid, String id) {
+
+        return tid + ":" + id;
+    }
+}
@@ -0,0 +1,238 @@
+package com.retapps.smartbip.basis.engines;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.retapps.smartbip.basis.models.AddressCounty;
+import com.retapps.smartbip.basis.models.AddressState;
+import com.retapps.smartbip.basis.models.Store;
+import com.retapps.smartbip.basis.services.StoresService;
+import com.retapps.smartbip.common.models.DeliveryMode;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The store directory of a tenant, served from memory: the states and counties, and the enabled stores by delivery
+ * mode and state, county or city.
+ * <p>
+ * The stores directory is derived from the {@link StoresSnapshot} of the tenant, so it is built once per version of
+ * the stores and replaced atomically with them, and its {@link #getVersion(String) version} changes only when the
+ * stores do, to tag the responses.
+ * <p>
+ * The states and counties are address data, which change independently of the stores: they are read from the stores
+ * service and cached for {@code smartbip.basis.stores.addresses.cacheSeconds}, and tagged by a fingerprint of their
+ * own content. The tenants without stores are not known to the snapshot engine and get no states nor counties, so an
+ * arbitrary tenant id neither reaches the database nor fills the cache.
+ */
+@Component
+public class StoresDirectory {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StoresDirectory.class);
+
+    private static final int MAX_ADDRESS_QUERIES = 1000;
+
+    private static final int VERSION_LENGTH = 16;
+
+    /**
+     * A cached address list and the fingerprint of its content.
+     */
+    private static class Addresses<T> {
+
+        private static final Addresses<?> EMPTY = new Addresses<>(Collections.emptyList(), "empty", Long.MAX_VALUE);
+
+        private final List<T> items;
+
+        private final String fingerprint;
+
+        private final long expiresAt;
+
+        Addresses(List<T> items, String fingerprint, long expiresAt) {
+            this.items = items;
+            this.fingerprint = fingerprint;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class Directory {
+
+        private final Map<DeliveryMode, Map<String, List<Integer>>> byState = new EnumMap<>(DeliveryMode.class);
+
+        private final Map<DeliveryMode, Map<String, List<Integer>>> byCounty = new EnumMap<>(DeliveryMode.class);
+
+        private final Map<DeliveryMode, Map<String, List<Integer>>> byCity = new EnumMap<>(DeliveryMode.class);
+
+        Directory(StoresSnapshot snapshot) {
+
+            List<Store> stores = snapshot.getStores();
+            for (int i = 0; i < stores.size(); i++) {
+                Store store = stores.get(i);
+                if (!Boolean.TRUE.equals(store.getEnabled()) || store.getDeliveryModes() == null) {
+                    continue;
+                }
+                for (DeliveryMode mode : store.getDeliveryModes()) {
+                    add(byState, mode, store.getState(), i);
+                    add(byCounty, mode, store.getCounty(), i);
+                    add(byCity, mode, store.getCity(), i);
+                }
+            }
+        }
+
+        private static void add(Map<DeliveryMode, Map<String, List<Integer>>> index, DeliveryMode mode, String key,
+                                int position) {
+            if (key != null) {
+                index.computeIfAbsent(mode, k -> new HashMap<>()).computeIfAbsent(key, k -> new ArrayList<>())
+                        .add(position);
+            }
+        }
+
+        private static List<Integer> get(Map<DeliveryMode, Map<String, List<Integer>>> index, DeliveryMode mode,
+                                         String key) {
+            Map<String, List<Integer>> byKey = index.get(mode);
+            List<Integer> positions = byKey != null ? byKey.get(key) : null;
+            return positions != null ? positions : Collections.emptyList();
+        }
+    }
+
+    @Autowired
+    private StoresSnapshotEngine snapshotEngine;
+
+    @Autowired
+    private StoresService storesService;
+
+    @Value("${smartbip.basis.stores.addresses.cacheSeconds:300}")
+    private long addressesCacheSeconds;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final ConcurrentMap<List<String>, Addresses<?>> addresses = new ConcurrentHashMap<>();
+
+    /**
+     * The version of the store directory of a tenant, the same on all the nodes for the same stores.
+     */
+    public String getVersion(String tid) {
+
+        return snapshotEngine.get(tid).getFingerprint().substring(0, VERSION_LENGTH);
+    }
+
+    /**
+     * The version of the states of a tenant, the same on all the nodes for the same states.
+     */
+    public String getStatesVersion(String tid) {
+
+        return states(tid).fingerprint;
+    }
+
+    public List<AddressState> readAllStates(String tid) {
+
+        return states(tid).items;
+    }
+
+    /**
+     * The version of the counties of a tenant matching a state and a query, the same on all the nodes for the same
+     * counties.
+     */
+    public String getCountiesVersion(String tid, String state, String query) {
+
+        return counties(tid, state, query).fingerprint;
+    }
+
+    public List<AddressCounty> findCounties(String tid, String state, String query) {
+
+        return counties(tid, state, query).items;
+    }
+
+    /**
+     * The enabled stores with a delivery mode in a city, else in a county, else in a state, in name order, decorated.
+     * Empty if no place is given.
+     */
+    public List<Store> readAllEnabledByDeliveryMode(String tid, DeliveryMode mode, String state, String county,
+                                                    String city) {
+
+        StoresSnapshot snapshot = snapshotEngine.get(tid);
+        Directory directory = snapshot.derive(Directory.class, Directory::new);
+
+        List<Integer> positions;
+        if (StringUtils.isNotBlank(city)) {
+            positions = Directory.get(directory.byCity, mode, city);
+        } else if (StringUtils.isNotBlank(county)) {
+            positions = Directory.get(directory.byCounty, mode, county);
+        } else if (StringUtils.isNotBlank(state)) {
+            positions = Directory.get(directory.byState, mode, state);
+        } else {
+            positions = Collections.emptyList();
+        }
+
+        List<Store> decorated = snapshotEngine.getDecoratedStores(snapshot);
+        List<Store> stores = new ArrayList<>(positions.size());
+        for (int position : positions) {
+            stores.add(StoresSnapshot.copy(decorated.get(position)));
+        }
+
+        LOGGER.trace("Found {} enabled stores by delivery mode {} for tenant {}", stores.size(), mode, tid);
+
+        return stores;
+    }
+
+    private Addresses<AddressState> states(String tid) {
+
+        return addresses(tid, Collections.singletonList(tid), () -> storesService.readAllStates(tid));
+    }
+
+    private Addresses<AddressCounty> counties(String tid, String state, String query) {
+
+        List<String> key = Arrays.asList(tid, StringUtils.trimToNull(state), StringUtils.trimToNull(query));
+        return addresses(tid, key, () -> storesService.findCounties(tid, state, query));
+    }
+
+    /**
+     * An address list of a tenant, read through the cache, empty for the tenants without stores.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> Addresses<T> addresses(String tid, List<String> key, Supplier<List<T>> reader) {
+
+        long now = System.currentTimeMillis();
+
+        Addresses<T> cached = (Addresses<T>) addresses.get(key);
+        if (cached != null && cached.expiresAt > now) {
+            return cached;
+        }
+
+        if (snapshotEngine.get(tid).size() == 0) {
+            return (Addresses<T>) Addresses.EMPTY;
+        }
+
+        List<T> items = Collections.unmodifiableList(new ArrayList<>(reader.get()));
+        Addresses<T> loaded = new Addresses<>(items, fingerprint(items),
+                now + TimeUnit.SECONDS.toMillis(addressesCacheSeconds));
+
+        if (addresses.size() >= MAX_ADDRESS_QUERIES) {
+            addresses.values().removeIf(entry -> entry.expiresAt <= now);
+        }
+        if (cached != null || addresses.size() < MAX_ADDRESS_QUERIES) {
+            addresses.put(key, loaded);
+        }
+
+        LOGGER.trace("Read {} addresses {} of tenant {}", items.size(), key, tid);
+
+        return loaded;
+    }
+
+    private String fingerprint(List<?> items) {
+
+        try {
+            return DigestUtils.sha256Hex(objectMapper.writeValueAsBytes(items)).substring(0, VERSION_LENGTH);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Error fingerprinting addresses", e);
+        }
+    }
+}
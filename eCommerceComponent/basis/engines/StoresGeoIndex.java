@@ -0,0 +1,277 @@
+package com.retapps.smartbip.basis.engines;
+
+import com.retapps.smartbip.basis.models.Store;
+import com.retapps.smartbip.common.services.View;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nearest store search over a grid of latitude and longitude cells.
+ * <p>
+ * The located stores of a {@link StoresSnapshot} are bucketed in square cells of {@code cellDegrees}, and the k
+ * nearest stores matching a query are found by visiting the rings of cells around the position, nearest first, until
+ * the next ring cannot hold a store nearer than the k-th found: only the stores around the position are measured,
+ * instead of all the stores of the tenant. When the rings to visit outnumber the stores, the stores are scanned
+ * instead. The grid is derived from the snapshot, so it is rebuilt, on the first search, when the stores change: the
+ * cells hold snapshot positions, which a store added or renamed shifts, and a rebuild is a single pass over arrays,
+ * far cheaper than the reload of the snapshot it follows. Distances are great circle kilometers, the stores without
+ * a position follow the located ones in name order, and the stores are
+ * {@link StoresSnapshotEngine#getDecoratedStores decorated}. The stores matching the query are selected with the
+ * bitmaps of the {@link StoresQueryEngine}.
+ */
+@Component
+public class StoresGeoIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StoresGeoIndex.class);
+
+    private static final double EARTH_RADIUS_KM = 6371.0088;
+
+    private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180;
+
+    /**
+     * The k nearest stores matching a query, with their distance, and the number of stores matching the query.
+     */
+    public static class Result {
+
+        private final List<Store> stores;
+
+        private final int total;
+
+        Result(List<Store> stores, int total) {
+            this.stores = stores;
+            this.total = total;
+        }
+
+        public List<Store> getStores() {
+            return stores;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    private static class Grid {
+
+        private final double cellDegrees;
+
+        private final Map<Long, int[]> cells = new HashMap<>();
+
+        private final int[] located;
+
+        private final int[] unlocated;
+
+        private final double[] latitudes;
+
+        private final double[] longitudes;
+
+        private final double maxAbsLatitude;
+
+        Grid(StoresSnapshot snapshot, double cellDegrees) {
+
+            this.cellDegrees = cellDegrees;
+
+            List<Store> stores = snapshot.getStores();
+            latitudes = new double[stores.size()];
+            longitudes = new double[stores.size()];
+
+            Map<Long, List<Integer>> buckets = new HashMap<>();
+            List<Integer> locatedPositions = new ArrayList<>();
+            List<Integer> unlocatedPositions = new ArrayList<>();
+            double maxAbs = 0;
+
+            for (int i = 0; i < stores.size(); i++) {
+                Store store = stores.get(i);
+                if (store.getLatitude() == null || store.getLongitude() == null) {
+                    unlocatedPositions.add(i);
+                    continue;
+                }
+                latitudes[i] = store.getLatitude();
+                longitudes[i] = store.getLongitude();
+                maxAbs = Math.max(maxAbs, Math.abs(latitudes[i]));
+                buckets.computeIfAbsent(key(row(latitudes[i]), column(longitudes[i])), k -> new ArrayList<>()).add(i);
+                locatedPositions.add(i);
+            }
+
+            for (Map.Entry<Long, List<Integer>> bucket : buckets.entrySet()) {
+                cells.put(bucket.getKey(), toArray(bucket.getValue()));
+            }
+            located = toArray(locatedPositions);
+            unlocated = toArray(unlocatedPositions);
+            maxAbsLatitude = maxAbs;
+        }
+
+        int row(double latitude) {
+            return (int) Math.floor((latitude + 90) / cellDegrees);
+        }
+
+        int column(double longitude) {
+            return (int) Math.floor((longitude + 180) / cellDegrees);
+        }
+
+        int columns() {
+            return (int) Math.ceil(360 / cellDegrees);
+        }
+
+        int rows() {
+            return (int) Math.ceil(180 / cellDegrees);
+        }
+
+        static long key(int row, int column) {
+            return ((long) row << 32) | (column & 0xFFFFFFFFL);
+        }
+
+        private static int[] toArray(List<Integer> values) {
+            int[] array = new int[values.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = values.get(i);
+            }
+            return array;
+        }
+    }
+
+    private static class Candidate {
+
+        private final int position;
+
+        private final double distance;
+
+        Candidate(int position, double distance) {
+            this.position = position;
+            this.distance = distance;
+        }
+    }
+
+    @Value("${smartbip.basis.stores.geo.cellDegrees:0.25}")
+    private double cellDegrees;
+
+    @Autowired
+    private StoresSnapshotEngine snapshotEngine;
+
+    @Autowired
+    private StoresQueryEngine queryEngine;
+
+    /**
+     * The k nearest stores of a tenant matching a query, in a view.
+     */
+    public Result nearest(String tid, double latitude, double longitude, StoresQuery query, View view, int k) {
+
+        long start = System.nanoTime();
+
+        StoresSnapshot snapshot = snapshotEngine.get(tid);
+        Grid grid = snapshot.derive(Grid.class, s -> new Grid(s, cellDegrees));
+        BitSet selected = queryEngine.select(snapshot, query);
+
+        // Max heap of the k nearest found so far
+        PriorityQueue<Candidate> nearest = new PriorityQueue<>(Math.max(1, k),
+                (a, b) -> Double.compare(b.distance, a.distance));
+
+        if (k > 0) {
+            search(grid, selected, latitude, longitude, k, nearest);
+        }
+
+        List<Candidate> candidates = new ArrayList<>(nearest);
+        candidates.sort(Comparator.comparingDouble(c -> c.distance));
+
+        List<Store> decorated = snapshotEngine.getDecoratedStores(snapshot, view);
+        List<Store> result = new ArrayList<>(Math.min(k, candidates.size() + grid.unlocated.length));
+        for (Candidate candidate : candidates) {
+            Store store = StoresSnapshot.copy(decorated.get(candidate.position));
+            store.setDistance(candidate.distance);
+            result.add(store);
+        }
+        for (int i = 0; i < grid.unlocated.length && result.size() < k; i++) {
+            if (selected.get(grid.unlocated[i])) {
+                result.add(StoresSnapshot.copy(decorated.get(grid.unlocated[i])));
+            }
+        }
+
+        int total = selected.cardinality();
+
+        LOGGER.trace("Found {} nearest stores of {} for tenant {} in {} us", result.size(), total, tid,
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+
+        return new Result(result, total);
+    }
+
+    private static void search(Grid grid, BitSet selected, double latitude, double longitude, int k,
+                               PriorityQueue<Candidate> nearest) {
+
+        int row = grid.row(latitude);
+        int column = grid.column(longitude);
+        int columns = grid.columns();
+        int maxRing = Math.max(grid.rows(), columns / 2 + 1);
+
+        // The distance covered by a cell, where it is narrowest
+        double cellKm = grid.cellDegrees * KM_PER_DEGREE
+                * Math.cos(Math.toRadians(Math.min(89, Math.max(grid.maxAbsLatitude, Math.abs(latitude)))));
+
+        long visited = 0;
+        for (int ring = 0; ring <= maxRing; ring++) {
+
+            if (nearest.size() == k && (ring - 1) * cellKm > nearest.peek().distance) {
+                return;
+            }
+
+            visited += ring == 0 ? 1 : 8L * ring;
+            if (visited > grid.located.length || 2 * ring + 1 >= columns) {
+                // Cheaper to measure all the stores than to keep visiting the rings
+                nearest.clear();
+                for (int position : grid.located) {
+                    offer(grid, selected, position, latitude, longitude, k, nearest);
+                }
+                return;
+            }
+
+            for (int dRow = -ring; dRow <= ring; dRow++) {
+                boolean edgeRow = Math.abs(dRow) == ring;
+                for (int dColumn = -ring; dColumn <= ring; dColumn += edgeRow ? 1 : 2 * ring) {
+                    int[] cell = grid.cells.get(Grid.key(row + dRow, Math.floorMod(column + dColumn, columns)));
+                    if (cell != null) {
+                        for (int position : cell) {
+                            offer(grid, selected, position, latitude, longitude, k, nearest);
+                        }
+                    }
+                    if (ring == 0) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void offer(Grid grid, BitSet selected, int position, double latitude, double longitude, int k,
+                              PriorityQueue<Candidate> nearest) {
+
+        if (!selected.get(position)) {
+            return;
+        }
+
+        double distance = distance(latitude, longitude, grid.latitudes[position], grid.longitudes[position]);
+        if (nearest.size() < k) {
+            nearest.add(new Candidate(position, distance));
+        } else if (distance < nearest.peek().distance) {
+            nearest.poll();
+            nearest.add(new Candidate(position, distance));
+        }
+    }
+
+    /**
+     * The great circle distance in kilometers between two positions.
+     */
+    public static double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+
+        double dLatitude = Math.toRadians(latitude2 - latitude1);
+        double dLongitude = Math.toRadians(longitude2 - longitude1);
+        double a = Math.sin(dLatitude / 2) * Math.sin(dLatitude / 2)
+                + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2))
+                * Math.sin(dLongitude / 2) * Math.sin(dLongitude / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
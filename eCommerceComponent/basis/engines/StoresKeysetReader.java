@@ -0,0 +1,76 @@
+package com.retapps.smartbip.basis.engines;
+
+import com.retapps.smartbip.basis.entities.StoreEntity;
+import com.retapps.smartbip.basis.models.Store;
+import com.retapps.smartbip.common.services.View;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.data.jpa.domain.Specifications;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.validation.constraints.NotNull;
+import java.util.Locale;
+
+import static com.retapps.smartbip.basis.mappers.StoreMapper.fromEntities;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+import static org.springframework.data.jpa.domain.Specifications.where;
+
+/**
+ * Keyset paginated listing of the enabled stores of a tenant in name order, see {@link KeysetPager}.
+ */
+@Component
+@Transactional(readOnly = true)
+public class StoresKeysetReader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StoresKeysetReader.class);
+
+    private static final String SORT_PROPERTY = "name";
+
+    @Autowired
+    private KeysetPager pager;
+
+    /**
+     * Reads the page of enabled stores after a cursor.
+     *
+     * @param query         part of the store name, optional
+     * @param enabledMss    whether the stores must have the MSS enabled, optional
+     * @param enabledBlists whether the stores must have the shopping lists enabled, optional
+     */
+    public KeysetPage<Store> read(@NotNull String tid, String query, Boolean enabledMss, Boolean enabledBlists,
+                                  View view, String cursor, int size, boolean count) {
+
+        LOGGER.debug("Reading stores for query {} after {} and tenant {}", query, cursor, tid);
+
+        Specifications<StoreEntity> specifications = where(hasAttribute("tid", tid))
+                .and(hasAttribute("enabled", true));
+        if (isNotBlank(query)) {
+            specifications = specifications.and(likesName(query));
+        }
+        if (enabledMss != null) {
+            specifications = specifications.and(hasAttribute("mssEnabled", enabledMss));
+        }
+        if (enabledBlists != null) {
+            specifications = specifications.and(hasAttribute("blistsEnabled", enabledBlists));
+        }
+
+        KeysetPage<StoreEntity> page = pager.seek(StoreEntity.class, specifications, SORT_PROPERTY,
+                Sort.Direction.ASC, cursor, size, count);
+
+        return new KeysetPage<>(fromEntities(view, page.getItems()), page.getNext(), page.getTotal());
+    }
+
+    private static Specification<StoreEntity> hasAttribute(String attribute, Object value) {
+
+        return (root, query, cb) -> cb.equal(root.get(attribute), value);
+    }
+
+    private static Specification<StoreEntity> likesName(String name) {
+
+        String pattern = "%" + name.trim().toLowerCase(Locale.ROOT) + "%";
+        return (root, query, cb) -> cb.like(cb.lower(root.<String>get("name")), pattern);
+    }
+}
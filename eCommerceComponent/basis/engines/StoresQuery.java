@@ -0,0 +1,104 @@
+package com.retapps.smartbip.basis.engines;
+
+import com.retapps.smartbip.common.models.DeliveryMode;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Objects;
+
+/**
+ * The filters of a store listing over a {@link StoresSnapshot}: only the enabled stores are listed, and every
+ * optional filter left null matches all the stores.
+ */
+public class StoresQuery {
+
+    private final String query;
+
+    private final String state;
+
+    private final String county;
+
+    private final String city;
+
+    private final Boolean enabledMss;
+
+    private final Boolean enabledBlists;
+
+    private final DeliveryMode delivery;
+
+    /**
+     * @param query the text query of the store search
+     */
+    public StoresQuery(String query, String state, String county, String city, Boolean enabledMss,
+                       Boolean enabledBlists) {
+        this(query, state, county, city, enabledMss, enabledBlists, null);
+    }
+
+    /**
+     * @param query the text query of the store search
+     * @param delivery a delivery mode of the stores
+     */
+    public StoresQuery(String query, String state, String county, String city, Boolean enabledMss,
+                       Boolean enabledBlists, DeliveryMode delivery) {
+        this.query = StringUtils.trimToNull(query);
+        this.state = StringUtils.trimToNull(state);
+        this.county = StringUtils.trimToNull(county);
+        this.city = StringUtils.trimToNull(city);
+        this.enabledMss = enabledMss;
+        this.enabledBlists = enabledBlists;
+        this.delivery = delivery;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public String getCounty() {
+        return county;
+    }
+
+    public String getCity() {
+        return city;
+    }
+
+    public Boolean getEnabledMss() {
+        return enabledMss;
+    }
+
+    public Boolean getEnabledBlists() {
+        return enabledBlists;
+    }
+
+    public DeliveryMode getDelivery() {
+        return delivery;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        StoresQuery that = (StoresQuery) o;
+        return Objects.equals(query, that.query) && Objects.equals(state, that.state)
+                && Objects.equals(county, that.county) && Objects.equals(city, that.city)
+                && Objects.equals(enabledMss, that.enabledMss) && Objects.equals(enabledBlists, that.enabledBlists)
+                && delivery == that.delivery;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(query, state, county, city, enabledMss, enabledBlists, delivery);
+    }
+
+    @Override
+    public String toString() {
+        return "StoresQuery{query='" + query + "', state='" + state + "', county='" + county + "', city='" + city
+                + "', enabledMss=" + enabledMss + ", enabledBlists=" + enabledBlists + ", delivery=" + delivery + "}";
+    }
+}
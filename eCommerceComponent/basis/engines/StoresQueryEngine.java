@@ -0,0 +1,193 @@
+package com.retapps.smartbip.basis.engines;
+
+import com.retapps.smartbip.basis.models.Store;
+import com.retapps.smartbip.basis.services.StoresService;
+import com.retapps.smartbip.common.models.DeliveryMode;
+import com.retapps.smartbip.common.services.View;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Store listings over the {@link StoresSnapshot} of a tenant, filtered with bitmaps.
+ * <p>
+ * Every filter value of a {@link StoresQuery} has a precomputed bitmap of the positions of the matching stores in the
+ * snapshot: the enabled stores, the stores with MSS and baskets lists enabled or disabled, and the stores by delivery
+ * mode, state, county and city. A query is the AND of the bitmaps of its filters. The bitmaps are derived from the
+ * snapshot, so they are rebuilt when the stores change. The results are in name order, the snapshot order, and
+ * {@link StoresSnapshotEngine#getDecoratedStores decorated}, in the full or summary view.
+ * <p>
+ * The text of a query keeps the semantics of the {@link StoresService#search store search}: the ids of the stores
+ * the service matches for the text alone are read once per query and ANDed with the bitmaps of the other filters, so
+ * the delivery mode and the flags apply to the text queries too.
+ * <p>
+ * The listings replace the service search called with its two flags before the MSS and baskets lists ones set to
+ * true, which this engine maps to the enabled stores only.
+ */
+@Component
+public class StoresQueryEngine {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StoresQueryEngine.class);
+
+    private static class Bitmaps {
+
+        private final BitSet enabled = new BitSet();
+
+        private final BitSet mssEnabled = new BitSet();
+
+        private final BitSet mssDisabled = new BitSet();
+
+        private final BitSet blistsEnabled = new BitSet();
+
+        private final BitSet blistsDisabled = new BitSet();
+
+        private final Map<DeliveryMode, BitSet> byDelivery = new EnumMap<>(DeliveryMode.class);
+
+        private final Map<String, BitSet> byState = new HashMap<>();
+
+        private final Map<String, BitSet> byCounty = new HashMap<>();
+
+        private final Map<String, BitSet> byCity = new HashMap<>();
+
+        Bitmaps(StoresSnapshot snapshot) {
+
+            List<Store> stores = snapshot.getStores();
+
+            for (int i = 0; i < stores.size(); i++) {
+                Store store = stores.get(i);
+
+                set(enabled, Boolean.TRUE.equals(store.getEnabled()), i);
+                set(mssEnabled, Boolean.TRUE.equals(store.getMssEnabled()), i);
+                set(mssDisabled, Boolean.FALSE.equals(store.getMssEnabled()), i);
+                set(blistsEnabled, Boolean.TRUE.equals(store.getBlistsEnabled()), i);
+                set(blistsDisabled, Boolean.FALSE.equals(store.getBlistsEnabled()), i);
+
+                if (store.getDeliveryModes() != null) {
+                    for (DeliveryMode mode : store.getDeliveryModes()) {
+                        byDelivery.computeIfAbsent(mode, k -> new BitSet()).set(i);
+                    }
+                }
+                add(byState, store.getState(), i);
+                add(byCounty, store.getCounty(), i);
+                add(byCity, store.getCity(), i);
+            }
+        }
+
+        private static void set(BitSet bitmap, boolean value, int position) {
+            if (value) {
+                bitmap.set(position);
+            }
+        }
+
+        private static void add(Map<String, BitSet> index, String key, int position) {
+            if (key != null) {
+                index.computeIfAbsent(key, k -> new BitSet()).set(position);
+            }
+        }
+
+        private static BitSet flag(BitSet enabled, BitSet disabled, Boolean value) {
+            return value == null ? null : value ? enabled : disabled;
+        }
+
+        private static <K> BitSet get(Map<K, BitSet> index, K key) {
+            if (key == null) {
+                return null;
+            }
+            BitSet bitmap = index.get(key);
+            return bitmap != null ? bitmap : new BitSet();
+        }
+    }
+
+    @Autowired
+    private StoresSnapshotEngine snapshotEngine;
+
+    @Autowired
+    private StoresService storesService;
+
+    /**
+     * A page of the stores of a tenant matching a query, in name order. The sort of the page request is ignored.
+     */
+    public Page<Store> search(String tid, StoresQuery query, View view, Pageable pageable) {
+
+        long start = System.nanoTime();
+
+        StoresSnapshot snapshot = snapshotEngine.get(tid);
+        BitSet selected = select(snapshot, query);
+
+        List<Store> stores = snapshotEngine.getDecoratedStores(snapshot, view);
+        List<Store> content = new ArrayList<>(Math.min(pageable.getPageSize(), selected.cardinality()));
+
+        int skip = pageable.getOffset();
+        for (int i = selected.nextSetBit(0); i >= 0 && content.size() < pageable.getPageSize();
+             i = selected.nextSetBit(i + 1)) {
+            if (skip > 0) {
+                skip--;
+            } else {
+                content.add(StoresSnapshot.copy(stores.get(i)));
+            }
+        }
+
+        int total = selected.cardinality();
+
+        LOGGER.trace("Found {} stores of {} for tenant {} and {} in {} us", content.size(), total, tid, query,
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+
+        return new PageImpl<>(content, pageable, total);
+    }
+
+    /**
+     * The positions in a snapshot of the stores matching a query. The bitmap is a new one, that callers can modify.
+     */
+    BitSet select(StoresSnapshot snapshot, StoresQuery query) {
+
+        Bitmaps bitmaps = snapshot.derive(Bitmaps.class, Bitmaps::new);
+
+        BitSet selected = (BitSet) bitmaps.enabled.clone();
+        and(selected, Bitmaps.flag(bitmaps.mssEnabled, bitmaps.mssDisabled, query.getEnabledMss()));
+        and(selected, Bitmaps.flag(bitmaps.blistsEnabled, bitmaps.blistsDisabled, query.getEnabledBlists()));
+        and(selected, Bitmaps.get(bitmaps.byDelivery, query.getDelivery()));
+        and(selected, Bitmaps.get(bitmaps.byState, query.getState()));
+        and(selected, Bitmaps.get(bitmaps.byCounty, query.getCounty()));
+        and(selected, Bitmaps.get(bitmaps.byCity, query.getCity()));
+
+        if (query.getQuery() != null && !selected.isEmpty()) {
+            selected.and(matching(snapshot, query.getQuery()));
+        }
+
+        return selected;
+    }
+
+    /**
+     * The positions in a snapshot of the stores the service search matches for a text, whatever their other
+     * properties, which the bitmaps filter.
+     */
+    private BitSet matching(StoresSnapshot snapshot, String text) {
+
+        Page<Store> matches = storesService.search(snapshot.getTid(), text, null, null, null, null, null, true, true,
+                null, null, View.SUMMARY, new PageRequest(0, Math.max(1, snapshot.size())));
+
+        BitSet matching = new BitSet(snapshot.size());
+        for (Store store : matches) {
+            int position = snapshot.indexOf(store.getId());
+            if (position >= 0) {
+                matching.set(position);
+            }
+        }
+        return matching;
+    }
+
+    private static void and(BitSet selected, BitSet filter) {
+
+        if (filter != null) {
+            selected.and(filter);
+        }
+    }
+}
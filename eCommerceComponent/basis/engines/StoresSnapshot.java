@@ -0,0 +1,120 @@
+package com.retapps.smartbip.basis.engines;
+
+import com.retapps.smartbip.basis.models.Store;
+import org.springframework.beans.BeanUtils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Immutable snapshot of all the stores of a tenant, in name order, in the full and in the summary view.
+ * <p>
+ * A snapshot has a version, increased every time the stores of the tenant change, and a fingerprint of its content.
+ * The indexes built over the stores are derived once per snapshot and memoized in it, so they are consistent with the
+ * stores and are replaced with them. The stores are shared by all the readers and must not be modified: the results
+ * handed out of an index are {@link #copy(Store) copies}.
+ */
+public class StoresSnapshot {
+
+    private final String tid;
+
+    private final long version;
+
+    private final String fingerprint;
+
+    private final Date loaded = new Date();
+
+    private final List<Store> stores;
+
+    private final List<Store> summaries;
+
+    private final Map<String, Integer> positions;
+
+    private final ConcurrentMap<Object, Object> derived = new ConcurrentHashMap<>();
+
+    StoresSnapshot(String tid, long version, String fingerprint, List<Store> stores, List<Store> summaries) {
+        this.tid = tid;
+        this.version = version;
+        this.fingerprint = fingerprint;
+        this.stores = Collections.unmodifiableList(new ArrayList<>(stores));
+        this.summaries = Collections.unmodifiableList(new ArrayList<>(summaries));
+
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < stores.size(); i++) {
+            positions.put(stores.get(i).getId(), i);
+        }
+        this.positions = positions;
+    }
+
+    public String getTid() {
+        return tid;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public Date getLoaded() {
+        return loaded;
+    }
+
+    public List<Store> getStores() {
+        return stores;
+    }
+
+    /**
+     * The stores in the summary view, in the same order as the {@link #getStores() stores}.
+     */
+    public List<Store> getSummaries() {
+        return summaries;
+    }
+
+    public int size() {
+        return stores.size();
+    }
+
+    /**
+     * The position of a store in the snapshot, -1 if not found.
+     */
+    public int indexOf(String id) {
+        Integer position = positions.get(id);
+        return position != null ? position : -1;
+    }
+
+    public Store getStore(String id) {
+        int position = indexOf(id);
+        return position >= 0 ? stores.get(position) : null;
+    }
+
+    /**
+     * The structure derived from this snapshot for a key, built on first use. Concurrent first uses can build it more
+     * than once, only one is kept.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T derive(Object key, Function<StoresSnapshot, T> builder) {
+        Object value = derived.get(key);
+        if (value == null) {
+            value = builder.apply(this);
+            Object previous = derived.putIfAbsent(key, value);
+            if (previous != null) {
+                value = previous;
+            }
+        }
+        return (T) value;
+    }
+
+    /**
+     * A shallow copy of a store, that callers can decorate or set the distance of.
+     */
+    public static Store copy(Store store) {
+        Store copy = new Store();
+        BeanUtils.copyProperties(store, copy);
+        return copy;
+    }
+}
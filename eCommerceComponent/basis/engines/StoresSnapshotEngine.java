@@ -0,0 +1,290 @@
+package com.retapps.smartbip.basis.engines;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.retapps.smartbip.basis.entities.StoreEntity;
+import com.retapps.smartbip.basis.models.Store;
+import com.retapps.smartbip.basis.repositories.StoresRepository;
+import com.retapps.smartbip.common.services.View;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+import static com.retapps.smartbip.basis.mappers.StoreMapper.fromEntity;
+
+/**
+ * Keeps a {@link StoresSnapshot} of the stores of every tenant in use.
+ * <p>
+ * The snapshot of a tenant is loaded on first use and reloaded in the background at a fixed interval, since the stores
+ * are mostly changed by other nodes and applications; the writes of this node {@link #refresh(String) refresh} it
+ * right away. A reload with the same content keeps the current snapshot, with its version and derived indexes, so the
+ * version changes only when the stores do. The snapshots are replaced atomically: a reader always sees one version.
+ */
+@Component
+public class StoresSnapshotEngine {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StoresSnapshotEngine.class);
+
+    private static final int PAGE_SIZE = 1000;
+
+    private static final String DECORATED = "decorated";
+
+    private static final String DECORATED_SUMMARIES = "decoratedSummaries";
+
+    /**
+     * The decorated stores of a snapshot, with the decorator generation and the time they were decorated at.
+     */
+    private static class Decorated {
+
+        private final List<Store> stores;
+
+        private final long generation;
+
+        private final long decorated = System.currentTimeMillis();
+
+        Decorated(List<Store> stores, long generation) {
+            this.stores = stores;
+            this.generation = generation;
+        }
+    }
+
+    @Value("${smartbip.basis.stores.snapshot.refreshSeconds:300}")
+    private long refreshSeconds;
+
+    @Value("${smartbip.basis.stores.snapshot.decoratedSeconds:60}")
+    private long decoratedSeconds;
+
+    @Autowired
+    private StoresRepository repository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final ConcurrentMap<String, StoresSnapshot> snapshots = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "stores-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private TransactionTemplate transactionTemplate;
+
+    private volatile BiConsumer<String, Store> decorator;
+
+    private final AtomicLong decoratorGeneration = new AtomicLong();
+
+    @PostConstruct
+    void init() {
+
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setReadOnly(true);
+
+        if (refreshSeconds > 0) {
+            scheduler.scheduleWithFixedDelay(this::refreshAll, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    void destroy() {
+
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * The current snapshot of the stores of a tenant. A tenant without stores gets an empty snapshot that is not
+     * kept nor reloaded, so requests for unknown tenants leave nothing behind.
+     */
+    public StoresSnapshot get(String tid) {
+
+        StoresSnapshot snapshot = snapshots.get(tid);
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        StoresSnapshot loaded = load(tid, null);
+        if (loaded.size() == 0) {
+            return loaded;
+        }
+
+        snapshot = snapshots.putIfAbsent(tid, loaded);
+        return snapshot != null ? snapshot : loaded;
+    }
+
+    /**
+     * Sets the decoration of the stores handed out of the snapshots, such as the image urls.
+     */
+    public void setDecorator(BiConsumer<String, Store> decorator) {
+
+        this.decorator = decorator;
+        decoratorGeneration.incrementAndGet();
+    }
+
+    /**
+     * The decorated stores of a snapshot, in the snapshot order, and the results are
+     * {@link StoresSnapshot#copy(Store) copied} from them. Every store is decorated on first use and again when the
+     * decoration is older than {@code smartbip.basis.stores.snapshot.decoratedSeconds} or the decorator is replaced,
+     * so the changes of the decorator configuration show up within that time even if the stores do not change.
+     */
+    public List<Store> getDecoratedStores(StoresSnapshot snapshot) {
+
+        return getDecoratedStores(snapshot, View.FULL);
+    }
+
+    /**
+     * The decorated stores of a snapshot in a view, {@link View#SUMMARY summary} or else full.
+     */
+    public List<Store> getDecoratedStores(StoresSnapshot snapshot, View view) {
+
+        boolean summary = view == View.SUMMARY;
+
+        AtomicReference<Decorated> holder = snapshot.derive(summary ? DECORATED_SUMMARIES : DECORATED,
+                s -> new AtomicReference<>());
+
+        long generation = decoratorGeneration.get();
+        Decorated decorated = holder.get();
+        if (decorated == null || decorated.generation != generation
+                || System.currentTimeMillis() - decorated.decorated > TimeUnit.SECONDS.toMillis(decoratedSeconds)) {
+            // Concurrent decorations of the same snapshot are equivalent, the last one is kept
+            decorated = new Decorated(decorate(snapshot, summary), generation);
+            holder.set(decorated);
+        }
+
+        return decorated.stores;
+    }
+
+    private List<Store> decorate(StoresSnapshot snapshot, boolean summary) {
+
+        long start = System.nanoTime();
+
+        BiConsumer<String, Store> current = decorator;
+        List<Store> decorated = new ArrayList<>(snapshot.size());
+        for (Store store : summary ? snapshot.getSummaries() : snapshot.getStores()) {
+            Store copy = StoresSnapshot.copy(store);
+            if (current != null) {
+                current.accept(snapshot.getTid(), copy);
+            }
+            decorated.add(copy);
+        }
+
+        LOGGER.debug("Decorated {} {} stores of tenant {} version {} in {} us", decorated.size(),
+                summary ? View.SUMMARY : View.FULL, snapshot.getTid(), snapshot.getVersion(),
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+
+        return Collections.unmodifiableList(decorated);
+    }
+
+    /**
+     * Reloads the snapshot of a tenant after its stores changed, if the tenant is in use.
+     */
+    public void refresh(String tid) {
+
+        synchronized (this) {
+            StoresSnapshot current = snapshots.get(tid);
+            if (current == null) {
+                return;
+            }
+
+            StoresSnapshot snapshot = load(tid, current);
+            if (snapshot.size() == 0) {
+                snapshots.remove(tid);
+                LOGGER.debug("Stores of tenant {} removed, snapshot dropped", tid);
+            } else if (snapshot != current) {
+                snapshots.put(tid, snapshot);
+                LOGGER.debug("Stores of tenant {} changed, snapshot version {}", tid, snapshot.getVersion());
+            }
+        }
+    }
+
+    private void refreshAll() {
+
+        for (String tid : new ArrayList<>(snapshots.keySet())) {
+            try {
+                refresh(tid);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Error refreshing stores snapshot of tenant {}: {}", tid, ExceptionUtils.getMessage(e));
+            }
+        }
+    }
+
+    /**
+     * Loads the stores of a tenant, the current snapshot if they did not change.
+     */
+    private StoresSnapshot load(String tid, StoresSnapshot current) {
+
+        long start = System.currentTimeMillis();
+
+        List<Store> summaries = new ArrayList<>();
+        List<Store> stores = transactionTemplate.execute(status -> {
+
+            List<Store> result = new ArrayList<>();
+
+            Page<StoreEntity> page;
+            PageRequest request = new PageRequest(0, PAGE_SIZE,
+                    new Sort(new Sort.Order(Sort.Direction.ASC, "name"), new Sort.Order(Sort.Direction.ASC, "id")));
+            do {
+                page = repository.findAll(hasTenant(tid), request);
+                for (StoreEntity entity : page) {
+                    result.add(fromEntity(View.FULL, entity));
+                    summaries.add(fromEntity(View.SUMMARY, entity));
+                }
+                request = (PageRequest) page.nextPageable();
+            } while (page.hasNext());
+
+            return result;
+        });
+
+        String fingerprint = fingerprint(stores);
+        if (current != null && current.getFingerprint().equals(fingerprint)) {
+            return current;
+        }
+
+        StoresSnapshot snapshot = new StoresSnapshot(tid, current != null ? current.getVersion() + 1 : 1,
+                fingerprint, stores, summaries);
+
+        LOGGER.debug("Loaded stores snapshot of tenant {}: {} stores in {} ms", tid, stores.size(),
+                System.currentTimeMillis() - start);
+
+        return snapshot;
+    }
+
+    private String fingerprint(List<Store> stores) {
+
+        try {
+            return DigestUtils.sha256Hex(objectMapper.writeValueAsBytes(stores));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Error fingerprinting stores", e);
+        }
+    }
+
+    private static Specification<StoreEntity> hasTenant(String tid) {
+
+        return (root, query, cb) -> cb.equal(root.get("tid"), tid);
+    }
+}
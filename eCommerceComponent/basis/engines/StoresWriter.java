@@ -0,0 +1,49 @@
+package com.retapps.smartbip.basis.engines;
+
+import com.retapps.smartbip.basis.services.StoresService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Runs the writes of the {@link StoresService} and propagates them to the store caches.
+ * <p>
+ * Every write of a store goes through here: the {@link StoresCache} entry of the store is invalidated at once, so this
+ * node does not serve it while the write is in progress, and again after the transaction of the write commits, when
+ * the {@link StoresSnapshotEngine} snapshot of the tenant is refreshed too. Outside a transaction both happen at once.
+ */
+@Component
+public class StoresWriter {
+
+    @Autowired
+    private StoresCache storesCache;
+
+    @Autowired
+    private StoresSnapshotEngine snapshotEngine;
+
+    /**
+     * Runs a write of a store of a tenant.
+     */
+    public void write(String tid, String id, Runnable write) {
+
+        storesCache.invalidate(tid, id);
+
+        write.run();
+
+        Runnable changed = () -> {
+            storesCache.invalidate(tid, id);
+            snapshotEngine.refresh(tid);
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    changed.run();
+                }
+            });
+        } else {
+            changed.run();
+        }
+    }
+}